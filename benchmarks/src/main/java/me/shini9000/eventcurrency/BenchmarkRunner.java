@@ -0,0 +1,54 @@
+package me.shini9000.eventcurrency;
+
+import java.io.File;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the whole suite, sweeping {@link CurrencyBenchmark} over 1 to 64 threads, and writes every
+ * result to one JMH JSON file (default results/jmh-&lt;timestamp&gt;.json) for comparing runs.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar me.shini9000.eventcurrency.BenchmarkRunner [output.json]
+ * </pre>
+ */
+public final class BenchmarkRunner {
+
+    private static final int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        String stamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+        File output = new File(args.length > 0 ? args[0] : "results/jmh-" + stamp + ".json");
+
+        List<RunResult> results = new ArrayList<>();
+        for (int threads : THREADS) {
+            results.addAll(new Runner(new OptionsBuilder()
+                    .include(CurrencyBenchmark.class.getName())
+                    .threads(threads)
+                    .build()).run());
+        }
+        results.addAll(new Runner(new OptionsBuilder()
+                .include(PersistenceBenchmark.class.getName())
+                .include(StorageBackendBenchmark.class.getName())
+                .include(BridgeDecodeBenchmark.class.getName())
+                .build()).run());
+
+        File dir = output.getAbsoluteFile().getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IllegalStateException("Failed to create " + dir);
+        }
+        ResultFormatFactory.getInstance(ResultFormatType.JSON, output.getPath()).writeOut(results);
+        System.out.println("Wrote " + results.size() + " results to " + output.getPath());
+    }
+}
@@ -0,0 +1,89 @@
+package me.shini9000.eventcurrency;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of decoding what {@link VelocityBridgeListener} receives: {@code ops} operations either as
+ * one v2 batch frame or as that many legacy single-operation messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BridgeDecodeBenchmark {
+
+    @Param({"1", "64", "1024"})
+    public int ops;
+
+    private byte[] batch;
+    private byte[][] legacy;
+
+    @Setup
+    public void setUp() throws IOException {
+        SplittableRandom random = new SplittableRandom(42);
+        BridgeWriter writer = new BridgeWriter("Console");
+        legacy = new byte[ops][];
+        for (int i = 0; i < ops; i++) {
+            UUID target = new UUID(random.nextLong(), random.nextLong());
+            long amount = random.nextLong(1, 10_000L);
+            writer.add(BridgeProtocol.OP_GIVE, target, amount);
+            legacy[i] = legacyMessage("give", target, amount, "Console");
+        }
+        batch = writer.toByteArray();
+    }
+
+    private static byte[] legacyMessage(String action, UUID target, long amount, String executor) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(action);
+            out.writeUTF(target.toString());
+            out.writeLong(amount);
+            out.writeUTF(executor);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public void decodeBatch(Blackhole bh) {
+        BridgeReader in = BridgeReader.read(batch);
+        while (in.next()) {
+            bh.consume(in.opcode());
+            bh.consume(in.msb());
+            bh.consume(in.lsb());
+            bh.consume(in.amount());
+        }
+    }
+
+    @Benchmark
+    public void decodeLegacy(Blackhole bh) {
+        for (byte[] message : legacy) {
+            BridgeReader in = BridgeReader.read(message);
+            while (in.next()) {
+                bh.consume(in.opcode());
+                bh.consume(in.msb());
+                bh.consume(in.lsb());
+                bh.consume(in.amount());
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package me.shini9000.eventcurrency;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Awarding every participant of an event: one batched {@link EventCurrency#addAll} against one
+ * {@link EventCurrency#add} per player, journal included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BulkGrantBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int players;
+
+    private Path dir;
+    private EventCurrency plugin;
+    private List<UUID> ids;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("ec-bulk-bench");
+        plugin = StubProxyServer.enablePlugin(dir);
+        ids = new ArrayList<>(players);
+        for (int i = 0; i < players; i++) {
+            ids.add(new UUID(0xB01CL, i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        plugin.onDisable();
+        Benchmarks.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public long[] addAll() {
+        return plugin.addAll(ids, 1L);
+    }
+
+    @Benchmark
+    public long addEach() {
+        long last = 0L;
+        for (UUID id : ids) {
+            last = plugin.add(id, 1L);
+        }
+        return last;
+    }
+}
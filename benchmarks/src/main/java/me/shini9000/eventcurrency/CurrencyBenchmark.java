@@ -0,0 +1,93 @@
+package me.shini9000.eventcurrency;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Throughput of the public currency API on an enabled plugin, journal included. With
+ * {@code contention=same} every thread works on one account (one pair for transfers); with
+ * {@code distinct} each thread has its own. The thread count comes from the runner ({@code -t}, or the sweep in
+ * {@link BenchmarkRunner}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CurrencyBenchmark {
+
+    private static final UUID SHARED = new UUID(0x5EEDL, 0L);
+    private static final UUID SHARED_PEER = new UUID(0x9EE2L, 0L);
+    private static final long START_BALANCE = Long.MAX_VALUE / 2;
+
+    @Param({"same", "distinct"})
+    public String contention;
+
+    private Path dir;
+    private EventCurrency plugin;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("ec-currency-bench");
+        plugin = StubProxyServer.enablePlugin(dir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        plugin.onDisable();
+        Benchmarks.deleteRecursively(dir);
+    }
+
+    @State(Scope.Thread)
+    public static class Account {
+        UUID id;
+        UUID peer; // receives this thread's transfers
+
+        @Setup(Level.Trial)
+        public void pick(CurrencyBenchmark bench, ThreadParams params) {
+            boolean same = "same".equals(bench.contention);
+            id = same ? SHARED : new UUID(0x5EEDL, params.getThreadIndex() + 1L);
+            peer = same ? SHARED_PEER : new UUID(0x9EE2L, params.getThreadIndex() + 1L);
+            bench.plugin.setBalance(id, START_BALANCE); // spend never runs dry
+        }
+    }
+
+    @Benchmark
+    public long add(Account account) {
+        return plugin.add(account.id, 1L);
+    }
+
+    @Benchmark
+    public boolean spend(Account account) {
+        return plugin.spend(account.id, 1L);
+    }
+
+    @Benchmark
+    public boolean transfer(Account account) {
+        return plugin.transfer(account.id, account.peer, 1L);
+    }
+
+    @Benchmark
+    public long getBalance(Account account) {
+        return plugin.getBalance(account.id);
+    }
+}
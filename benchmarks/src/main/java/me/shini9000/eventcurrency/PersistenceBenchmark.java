@@ -0,0 +1,94 @@
+package me.shini9000.eventcurrency;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.helpers.NOPLogger;
+
+/**
+ * Latency of {@link Ledger#saveBalances()} (a full snapshot of the default file store) and of a
+ * cold start that loads it back and replays the journal.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PersistenceBenchmark {
+
+    private static final Logger LOG = NOPLogger.NOP_LOGGER;
+
+    @State(Scope.Benchmark)
+    public static class Store {
+        @Param({"10000", "100000", "1000000"})
+        public int accounts;
+
+        Path dir;
+        EventCurrencyConfig config;
+        Ledger ledger;
+        Ledger loaded;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = Files.createTempDirectory("ec-persistence-bench");
+            config = EventCurrencyConfig.load(dir.toFile(), LOG);
+            ledger = open();
+            SplittableRandom random = new SplittableRandom(42);
+            for (int i = 0; i < accounts; i++) {
+                ledger.set(random.nextLong(), random.nextLong(), random.nextLong(1_000_000L));
+            }
+            ledger.saveBalances();
+        }
+
+        Ledger open() {
+            File folder = dir.toFile();
+            Ledger l = new Ledger(folder, config, LOG, new FileLedgerStorage(folder, 16, LOG), new Metrics());
+            l.open(null);
+            return l;
+        }
+
+        // Closing a loaded ledger has nothing dirty to write, so every load sees the same store
+        @TearDown(Level.Invocation)
+        public void closeLoaded() {
+            if (loaded != null) {
+                loaded.close();
+                loaded = null;
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            ledger.close();
+            Benchmarks.deleteRecursively(dir);
+        }
+    }
+
+    @Benchmark
+    public void saveBalances(Store store) {
+        store.ledger.saveBalances();
+    }
+
+    @Benchmark
+    public int loadBalances(Store store) {
+        store.loaded = store.open();
+        return store.loaded.table().size();
+    }
+}
@@ -0,0 +1,113 @@
+package me.shini9000.eventcurrency;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.slf4j.helpers.NOPLogger;
+
+/**
+ * Flush and load cost of each {@link LedgerStorage} backend. {@code flushAll} is a full rewrite,
+ * {@code flushDirty} a routine checkpoint with 1% of accounts changed, and {@code load} a cold
+ * start reading every account (the h2 store is opened in eager mode here).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class StorageBackendBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int accounts;
+
+    @Param({"file", "yaml", "h2"})
+    public String backend;
+
+    private File dir;
+    private BalanceTable table;
+    private LedgerStorage storage;
+    private long[] dirtyKeys;
+    private long[] dirtyBalances;
+    private long generation;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("ec-storage-bench").toFile();
+        table = new BalanceTable();
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < accounts; i++) {
+            table.set(random.nextLong(), random.nextLong(), random.nextLong(1_000_000L));
+        }
+        int dirty = accounts / 100;
+        dirtyKeys = new long[dirty * 2];
+        dirtyBalances = new long[dirty];
+        int[] n = {0};
+        table.forEach((msb, lsb, balance) -> {
+            if (n[0] < dirty) {
+                dirtyKeys[2 * n[0]] = msb;
+                dirtyKeys[2 * n[0] + 1] = lsb;
+                dirtyBalances[n[0]] = balance + 1;
+                n[0]++;
+            }
+        });
+        storage = open(backend, dir);
+    }
+
+    // Every iteration starts from a fully written store without pending deltas
+    @Setup(Level.Iteration)
+    public void resetStore() throws IOException {
+        storage.writeAll(++generation, table::forEach);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        storage.close();
+        Benchmarks.deleteRecursively(dir.toPath());
+    }
+
+    static LedgerStorage open(String backend, File dir) throws IOException {
+        return switch (backend) {
+            case "file" -> new FileLedgerStorage(dir, 16, NOPLogger.NOP_LOGGER);
+            case "yaml" -> new YamlLedgerStorage(dir, NOPLogger.NOP_LOGGER);
+            case "h2" -> new SqlLedgerStorage(dir, 4, 1000, false, NOPLogger.NOP_LOGGER);
+            default -> throw new IllegalArgumentException(backend);
+        };
+    }
+
+    @Benchmark
+    public void flushAll() throws IOException {
+        storage.writeAll(++generation, table::forEach);
+    }
+
+    @Benchmark
+    public void flushDirty() throws IOException {
+        if (storage.wantsFullWrite()) {
+            storage.writeAll(++generation, table::forEach); // yaml cannot write less
+        } else {
+            storage.writeChanges(++generation, dirtyKeys, dirtyBalances);
+        }
+    }
+
+    @Benchmark
+    public long load(Blackhole bh) throws IOException {
+        return storage.load((msb, lsb, balance) -> bh.consume(balance));
+    }
+}
@@ -0,0 +1,58 @@
+package me.shini9000.eventcurrency;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import com.velocitypowered.api.proxy.ProxyServer;
+import org.slf4j.helpers.NOPLogger;
+
+/**
+ * Stands in for the proxy so the plugin can be enabled inside a benchmark. Every interface method
+ * returns another stub (so {@code getCommandManager().metaBuilder(..).build()} chains work),
+ * primitives return zero, optionals and collections are empty and everything else is null.
+ * Nothing is ever scheduled or sent.
+ */
+final class StubProxyServer {
+
+    private StubProxyServer() {
+    }
+
+    static ProxyServer create() {
+        return stub(ProxyServer.class);
+    }
+
+    /** Constructs and enables the plugin with its data folder under {@code dir}. */
+    static EventCurrency enablePlugin(Path dir) {
+        EventCurrency plugin = new EventCurrency(create(), NOPLogger.NOP_LOGGER, dir.resolve("eventcurrency"));
+        plugin.onEnable();
+        return plugin;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type) {
+        return (T) Proxy.newProxyInstance(StubProxyServer.class.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "toString" -> type.getSimpleName() + "Stub";
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    default -> empty(method.getReturnType());
+                });
+    }
+
+    private static Object empty(Class<?> type) {
+        if (type == void.class) return null;
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == double.class) return 0.0;
+        if (type == Optional.class) return Optional.empty();
+        if (type == Collection.class || type == List.class) return List.of();
+        if (type == Set.class) return Set.of();
+        if (type.isInterface()) return stub(type);
+        return null;
+    }
+}
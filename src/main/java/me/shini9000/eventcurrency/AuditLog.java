@@ -0,0 +1,479 @@
+package me.shini9000.eventcurrency;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+
+/**
+ * Who changed which balance, when and by how much.
+ *
+ * Mutations only put an entry on a lock-free queue. A background thread drains it every
+ * {@code flushIntervalMs} (or sooner, once a block's worth is waiting) and writes each batch as one
+ * Deflate-compressed block to the current segment, audit/audit-&lt;start millis&gt;.log. Segments
+ * roll over at {@code segmentBytes} and are deleted once all of their entries are older than the
+ * retention period. When the queue is full, entries are dropped and counted instead of holding up
+ * the mutation.
+ *
+ * Lookups need no separate index files. Segment names give a coarse time index. Each block header
+ * carries the block's time range and a small Bloom filter of the accounts in it, so a player's
+ * history is read newest first and only blocks that may mention them are inflated.
+ *
+ * <pre>
+ * segment: int magic "ECAU"   int version   blocks...
+ * block:   int compressed length   int entry count   long first millis   long last millis
+ *          short filter longs   filter longs x long   int crc32(compressed)   compressed entries
+ * entry:   long millis   long msb   long lsb   long delta   long balance
+ *          byte length, UTF-8 actor   byte length, UTF-8 source   (each at most 64 bytes)
+ * </pre>
+ *
+ * Segments are not forced to disk until they roll or the log closes; the balance journal, not this
+ * log, is what makes changes durable.
+ */
+final class AuditLog implements AutoCloseable {
+
+    /** Who made a change and through what: a command, a backend, the plugin API or another proxy. */
+    record Cause(String actor, String source) {
+
+        static final Cause API = new Cause("plugin", "api");
+        static final Cause EXPIRY = new Cause("system", "expiry");
+        static final Cause DECAY = new Cause("system", "decay");
+
+        static Cause command(String actor) {
+            return new Cause(actor, "command");
+        }
+
+        static Cause backend(String backend, String executor) {
+            return new Cause(executor == null || executor.isEmpty() ? "-" : executor, "backend:" + backend);
+        }
+
+        static Cause replica(String node) {
+            return new Cause("system", "replica:" + node);
+        }
+    }
+
+    record Entry(long millis, long msb, long lsb, long delta, long balance, String actor, String source) {
+    }
+
+    private static final int MAGIC = 0x45434155; // "ECAU"
+    private static final int VERSION = 1;
+    private static final int SEGMENT_HEADER_BYTES = 8;
+    private static final int BLOCK_HEADER_BYTES = 4 + 4 + 8 + 8 + 2;
+    private static final int BLOCK_ENTRIES = 512;
+    private static final int MAX_BLOCK_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_STRING_BYTES = 64;
+    private static final Pattern FILE_NAME = Pattern.compile("audit-(\\d+)\\.log");
+
+    private final File directory;
+    private final Logger logger;
+    private final Metrics metrics;
+    private final long segmentBytes;
+    private final long retentionMillis;
+    private final long flushIntervalMs;
+    private final int capacity;
+
+    private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "EventCurrency-Audit");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Writer thread only
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED); // entries repeat a lot, the fastest level already packs them well
+    private final Inflater inflater = new Inflater();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer raw = ByteBuffer.allocate(64 * 1024);
+    private byte[] compressed = new byte[64 * 1024];
+    private FileChannel channel;
+    private File current;
+    private long currentStart;
+    private long currentSize;
+
+    AuditLog(File directory, Logger logger, Metrics metrics, String currency, long segmentBytes, long retentionMillis,
+             long flushIntervalMs, int capacity) {
+        this.directory = directory;
+        this.logger = logger;
+        this.metrics = metrics;
+        this.segmentBytes = Math.max(64 * 1024, segmentBytes);
+        this.retentionMillis = retentionMillis;
+        this.flushIntervalMs = Math.max(10L, flushIntervalMs);
+        this.capacity = Math.max(BLOCK_ENTRIES, capacity);
+        metrics.gauge("audit_queued", "Audit entries waiting to be written", currency, queued::get);
+    }
+
+    /** Starts the background writer; entries logged before this are kept and written with the first flush. */
+    void open() {
+        writer.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        writer.scheduleWithFixedDelay(this::deleteExpired, 0L, 1L, TimeUnit.HOURS);
+    }
+
+    // --------------- Logging ---------------
+
+    /** Hot path: queues the entry and returns; never waits for I/O. */
+    void log(long msb, long lsb, long delta, long balance, Cause cause) {
+        if (queued.incrementAndGet() > capacity) {
+            queued.decrementAndGet();
+            metrics.auditDropped.increment();
+            return;
+        }
+        queue.add(new Entry(System.currentTimeMillis(), msb, lsb, delta, balance, cause.actor(), cause.source()));
+        if (queued.get() >= BLOCK_ENTRIES && flushRequested.compareAndSet(false, true)) {
+            try {
+                writer.execute(this::flush);
+            } catch (RejectedExecutionException ex) {
+                // closing; close() writes what is left
+            }
+        }
+    }
+
+    private void flush() {
+        flushRequested.set(false);
+        try {
+            List<Entry> batch = new ArrayList<>(BLOCK_ENTRIES);
+            Entry e;
+            while ((e = queue.poll()) != null) {
+                queued.decrementAndGet();
+                batch.add(e);
+                if (batch.size() == BLOCK_ENTRIES) {
+                    writeBlock(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                writeBlock(batch);
+            }
+        } catch (IOException ex) {
+            logger.error("Failed to write the audit log", ex);
+        }
+    }
+
+    private void writeBlock(List<Entry> batch) throws IOException {
+        if (channel == null || currentSize >= segmentBytes) {
+            roll(batch.get(0).millis());
+        }
+        raw.clear();
+        long[] filter = new long[filterLongs(batch.size())];
+        for (Entry e : batch) {
+            encode(e);
+            addToFilter(filter, e.msb(), e.lsb());
+        }
+        deflater.reset();
+        deflater.setInput(raw.array(), 0, raw.position());
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        crc.reset();
+        crc.update(compressed, 0, length);
+
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_BYTES + filter.length * 8 + 4);
+        header.putInt(length).putInt(batch.size())
+                .putLong(batch.get(0).millis()).putLong(batch.get(batch.size() - 1).millis())
+                .putShort((short) filter.length);
+        for (long word : filter) {
+            header.putLong(word);
+        }
+        header.putInt((int) crc.getValue()).flip();
+        ByteBuffer body = ByteBuffer.wrap(compressed, 0, length);
+        ByteBuffer[] parts = { header, body };
+        long bytes = header.remaining() + length;
+        while (body.hasRemaining()) {
+            channel.write(parts);
+        }
+        currentSize += bytes;
+        metrics.auditEntries.add(batch.size());
+    }
+
+    private void encode(Entry e) {
+        byte[] actor = truncate(e.actor());
+        byte[] source = truncate(e.source());
+        if (raw.remaining() < 40 + 2 + actor.length + 2 + source.length) {
+            ByteBuffer bigger = ByteBuffer.allocate(raw.capacity() * 2);
+            raw.flip();
+            raw = bigger.put(raw);
+        }
+        raw.putLong(e.millis()).putLong(e.msb()).putLong(e.lsb()).putLong(e.delta()).putLong(e.balance());
+        raw.put((byte) actor.length).put(actor).put((byte) source.length).put(source);
+    }
+
+    private static byte[] truncate(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        return bytes.length <= MAX_STRING_BYTES ? bytes : Arrays.copyOf(bytes, MAX_STRING_BYTES);
+    }
+
+    // Starts a new segment named after its first entry; segments never share a name
+    private void roll(long millis) throws IOException {
+        closeSegment();
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create audit folder: " + directory.getAbsolutePath());
+        }
+        long start = Math.max(millis, currentStart + 1);
+        List<Long> existing = listSegments();
+        if (!existing.isEmpty()) {
+            start = Math.max(start, existing.get(existing.size() - 1) + 1);
+        }
+        File file = fileFor(start);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES).putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        current = file;
+        currentStart = start;
+        currentSize = SEGMENT_HEADER_BYTES;
+    }
+
+    private void closeSegment() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.force(false);
+            channel.close();
+        } catch (IOException ex) {
+            logger.error("Failed to close audit segment {}", current.getName(), ex);
+        }
+        channel = null;
+    }
+
+    // A segment only holds entries from before the next one started
+    private void deleteExpired() {
+        if (retentionMillis <= 0) {
+            return;
+        }
+        long horizon = System.currentTimeMillis() - retentionMillis;
+        List<Long> segments = listSegments();
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (segments.get(i + 1) <= horizon && segments.get(i) != currentStart
+                    && !fileFor(segments.get(i)).delete()) {
+                logger.warn("Could not delete expired audit segment {}", fileFor(segments.get(i)).getName());
+            }
+        }
+    }
+
+    // --------------- History ---------------
+
+    /**
+     * The most recent {@code limit} entries for the account, newest first. Runs on the writer
+     * thread after everything logged so far has been written.
+     */
+    CompletableFuture<List<Entry>> history(long msb, long lsb, int limit) {
+        return CompletableFuture.supplyAsync(() -> {
+            flush();
+            List<Entry> out = new ArrayList<>();
+            List<Long> segments = listSegments();
+            for (int i = segments.size() - 1; i >= 0 && out.size() < limit; i--) {
+                File file = fileFor(segments.get(i));
+                try {
+                    readSegment(file, msb, lsb, limit, out);
+                } catch (IOException ex) {
+                    logger.warn("Skipping unreadable audit segment {}: {}", file.getName(), ex.getMessage());
+                }
+            }
+            return out;
+        }, writer);
+    }
+
+    private record Block(long offset, int length, int count, long[] filter, int checksum) {
+    }
+
+    // Reads the block headers front to back, then inflates the candidate blocks newest first
+    private void readSegment(File file, long msb, long lsb, int limit, List<Entry> out) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES);
+            if (readFully(ch, header, 0) < SEGMENT_HEADER_BYTES || header.getInt(0) != MAGIC
+                    || header.getInt(4) != VERSION) {
+                throw new IOException("not an audit segment");
+            }
+            List<Block> candidates = new ArrayList<>();
+            long pos = SEGMENT_HEADER_BYTES;
+            ByteBuffer fixed = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+            while (pos + BLOCK_HEADER_BYTES <= size) {
+                fixed.clear();
+                readFully(ch, fixed, pos);
+                int length = fixed.getInt(0);
+                int count = fixed.getInt(4);
+                int filterLongs = fixed.getShort(24) & 0xFFFF;
+                long bodyAt = pos + BLOCK_HEADER_BYTES + filterLongs * 8L + 4;
+                if (length <= 0 || length > MAX_BLOCK_BYTES || bodyAt + length > size) {
+                    break; // torn tail from a crash
+                }
+                ByteBuffer rest = ByteBuffer.allocate(filterLongs * 8 + 4);
+                readFully(ch, rest, pos + BLOCK_HEADER_BYTES);
+                long[] filter = new long[filterLongs];
+                rest.flip();
+                rest.asLongBuffer().get(filter);
+                if (mayContain(filter, msb, lsb)) {
+                    candidates.add(new Block(bodyAt, length, count, filter, rest.getInt(filterLongs * 8)));
+                }
+                pos = bodyAt + length;
+            }
+            for (int b = candidates.size() - 1; b >= 0 && out.size() < limit; b--) {
+                Block block = candidates.get(b);
+                List<Entry> matches = readBlock(ch, block, msb, lsb);
+                for (int k = matches.size() - 1; k >= 0 && out.size() < limit; k--) {
+                    out.add(matches.get(k));
+                }
+            }
+        }
+    }
+
+    private List<Entry> readBlock(FileChannel ch, Block block, long msb, long lsb) throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(block.length());
+        readFully(ch, body, block.offset());
+        crc.reset();
+        crc.update(body.array(), 0, block.length());
+        if ((int) crc.getValue() != block.checksum()) {
+            throw new IOException("corrupt block at " + block.offset());
+        }
+        inflater.reset();
+        inflater.setInput(body.array(), 0, block.length());
+        byte[] out = new byte[Math.max(64, block.count() * (40 + 2 + 2 * MAX_STRING_BYTES))];
+        int n = 0;
+        try {
+            while (!inflater.finished() && n < out.length) {
+                int read = inflater.inflate(out, n, out.length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("corrupt block at " + block.offset(), ex);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(out, 0, n);
+        List<Entry> matches = new ArrayList<>();
+        for (int i = 0; i < block.count() && buf.remaining() >= 42; i++) {
+            long millis = buf.getLong();
+            long m = buf.getLong();
+            long l = buf.getLong();
+            long delta = buf.getLong();
+            long balance = buf.getLong();
+            String actor = readString(buf);
+            String source = readString(buf);
+            if (m == msb && l == lsb) {
+                matches.add(new Entry(millis, m, l, delta, balance, actor, source));
+            }
+        }
+        return matches;
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int length = buf.get() & 0xFF;
+        String s = new String(buf.array(), buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return s;
+    }
+
+    private static int readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, position + total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    // --------------- Bloom filter ---------------
+
+    // About 8 bits per entry, so roughly 3% false positives with three probes
+    private static int filterLongs(int entries) {
+        return Math.max(1, Integer.highestOneBit(Math.max(1, entries * 8 / 64 - 1)) << 1);
+    }
+
+    private static void addToFilter(long[] filter, long msb, long lsb) {
+        long h = BalanceTable.hash(msb, lsb);
+        int bits = filter.length * 64;
+        for (int k = 0; k < 3; k++) {
+            int bit = (int) (h >>> (k * 21)) & (bits - 1);
+            filter[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private static boolean mayContain(long[] filter, long msb, long lsb) {
+        long h = BalanceTable.hash(msb, lsb);
+        int bits = filter.length * 64;
+        for (int k = 0; k < 3; k++) {
+            int bit = (int) (h >>> (k * 21)) & (bits - 1);
+            if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // --------------- Files ---------------
+
+    private List<Long> listSegments() {
+        List<Long> out = new ArrayList<>();
+        String[] names = directory.list();
+        if (names == null) {
+            return out;
+        }
+        for (String name : names) {
+            Matcher m = FILE_NAME.matcher(name);
+            if (m.matches()) {
+                out.add(Long.parseLong(m.group(1)));
+            }
+        }
+        out.sort(null);
+        return out;
+    }
+
+    private File fileFor(long start) {
+        return new File(directory, "audit-" + start + ".log");
+    }
+
+    /** Writes whatever is still queued and closes the current segment, waiting at most {@code timeoutMs}. */
+    @Override
+    public void close() {
+        close(5000L);
+    }
+
+    void close(long timeoutMs) {
+        try {
+            writer.submit(() -> {
+                flush();
+                closeSegment();
+            }).get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (Exception ex) {
+            logger.warn("Audit log did not close cleanly, up to {} entries were not written", queued.get());
+        }
+        writer.shutdownNow();
+        deflater.end();
+        inflater.end();
+    }
+}
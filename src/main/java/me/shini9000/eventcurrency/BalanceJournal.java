@@ -0,0 +1,492 @@
+package me.shini9000.eventcurrency;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+
+/**
+ * Append-only, group-committed log of balance mutations.
+ *
+ * Every record carries the balance an account ended up with rather than the delta that got it
+ * there, so replaying a journal over a snapshot that already contains part of it is harmless.
+ * The journal is split into numbered generations; a snapshot remembers the first generation it
+ * does not cover, and everything older can be deleted once that snapshot is on disk.
+ */
+final class BalanceJournal implements AutoCloseable {
+
+    enum FsyncMode { ALWAYS, INTERVAL, NEVER }
+
+    private static final int MAGIC = 0x45434A4C; // "ECJL"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_BYTES = 16;
+    private static final int BLOCK_HEADER_BYTES = 8;
+    private static final int MAX_BLOCK_BYTES = 64 * 1024 * 1024;
+    private static final byte RECORD_SET = 1;
+    private static final int SET_BYTES = 1 + 8 + 8 + 8;
+    // One batched mutation: int count, then count x { long msb, long lsb, long balance }
+    private static final byte RECORD_BATCH = 2;
+    private static final int BATCH_ENTRY_BYTES = 8 + 8 + 8;
+    // Operation ID of the record that follows it in the same block
+    private static final byte RECORD_OPERATION = 3;
+    private static final int OPERATION_BYTES = 1 + 8;
+    private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final Pattern FILE_NAME = Pattern.compile("balances-(\\d+)\\.journal");
+
+    private final File directory;
+    private final Logger logger;
+    private final FsyncMode fsyncMode;
+    private final long fsyncIntervalNanos;
+    private final long groupCommitNanos;
+
+    // Guards the pending buffer; held only long enough to copy a record in.
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final Condition hasWork = appendLock.newCondition();
+    // Serialises "take pending buffer, write it out" so blocks reach the file in append order.
+    private final ReentrantLock ioLock = new ReentrantLock();
+
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+    private final ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+    private final CRC32 crc = new CRC32();
+
+    private FileChannel channel;
+    private volatile long generation;
+    private volatile long generationBytes;
+    private long lastSyncNanos;
+    private volatile boolean unsynced;
+    private volatile boolean running;
+    private boolean failing; // writer thread only
+    private Thread writer;
+
+    BalanceJournal(File directory, Logger logger, FsyncMode fsyncMode, long fsyncIntervalMs, long groupCommitMs) {
+        this.directory = directory;
+        this.logger = logger;
+        this.fsyncMode = fsyncMode;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, fsyncIntervalMs));
+        this.groupCommitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, groupCommitMs));
+    }
+
+    /** Starts a fresh generation file and the background writer. */
+    void open(long firstGeneration) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create journal folder: " + directory.getAbsolutePath());
+        }
+        ioLock.lock();
+        try {
+            this.channel = openGeneration(firstGeneration);
+            this.generation = firstGeneration;
+            this.lastSyncNanos = System.nanoTime();
+        } finally {
+            ioLock.unlock();
+        }
+        running = true;
+        writer = new Thread(this::runWriter, "EventCurrency-Journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // --------------- Appending ---------------
+
+    /**
+     * Appends a balance. A non-zero {@code operation} is written just before it in the same
+     * block, so replay sees either both or neither.
+     */
+    void appendSet(long msb, long lsb, long balance, long operation) {
+        int bytes = SET_BYTES + (operation != 0L ? OPERATION_BYTES : 0);
+        appendLock.lock();
+        try {
+            ByteBuffer buf = reserve(bytes);
+            boolean wasEmpty = buf.position() == 0;
+            if (operation != 0L) {
+                buf.put(RECORD_OPERATION).putLong(operation);
+            }
+            buf.put(RECORD_SET).putLong(msb).putLong(lsb).putLong(balance);
+            generationBytes += bytes;
+            if (wasEmpty) {
+                hasWork.signal();
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Appends the first {@code count} balances of a batch as one record. A record never spans
+     * blocks and blocks are checksummed, so replay applies the whole batch or none of it.
+     */
+    void appendBatch(long[] keys, long[] balances, int count, long operation) {
+        int bytes = 1 + 4 + count * BATCH_ENTRY_BYTES + (operation != 0L ? OPERATION_BYTES : 0);
+        appendLock.lock();
+        try {
+            ByteBuffer buf = reserve(bytes);
+            boolean wasEmpty = buf.position() == 0;
+            if (operation != 0L) {
+                buf.put(RECORD_OPERATION).putLong(operation);
+            }
+            buf.put(RECORD_BATCH).putInt(count);
+            for (int i = 0; i < count; i++) {
+                buf.putLong(keys[2 * i]).putLong(keys[2 * i + 1]).putLong(balances[i]);
+            }
+            generationBytes += bytes;
+            if (wasEmpty) {
+                hasWork.signal();
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private ByteBuffer reserve(int bytes) {
+        if (pending.remaining() < bytes) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + bytes));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        return pending;
+    }
+
+    /** Bytes appended to the current generation, written or not. */
+    long size() {
+        return generationBytes;
+    }
+
+    long generation() {
+        return generation;
+    }
+
+    // --------------- Writing ---------------
+
+    private void runWriter() {
+        while (running) {
+            appendLock.lock();
+            try {
+                if (pending.position() == 0 && running) {
+                    if (fsyncMode == FsyncMode.INTERVAL && unsynced) {
+                        hasWork.awaitNanos(fsyncIntervalNanos);
+                    } else {
+                        hasWork.await();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                appendLock.unlock();
+            }
+            if (groupCommitNanos > 0) {
+                // Let a burst of mutations pile up so it lands in one write.
+                LockSupport.parkNanos(groupCommitNanos);
+            }
+            try {
+                drain(false);
+                if (failing) {
+                    failing = false;
+                    logger.info("Balance journal writes have recovered");
+                }
+            } catch (IOException ex) {
+                if (!failing) {
+                    failing = true;
+                    logger.error("Failed to write balance journal, retrying", ex);
+                }
+                // The records are still pending; don't spin on a full or failing disk
+                LockSupport.parkNanos(RETRY_NANOS);
+            }
+        }
+    }
+
+    /** Writes everything appended so far; forces it to disk if {@code sync} or the fsync policy says so. */
+    private void drain(boolean sync) throws IOException {
+        ioLock.lock();
+        try {
+            writeTaken(takePending());
+            long now = System.nanoTime();
+            boolean force = sync
+                    || fsyncMode == FsyncMode.ALWAYS
+                    || (fsyncMode == FsyncMode.INTERVAL && now - lastSyncNanos >= fsyncIntervalNanos);
+            if (force && unsynced) {
+                channel.force(false);
+                unsynced = false;
+                lastSyncNanos = now;
+            }
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    private ByteBuffer takePending() {
+        appendLock.lock();
+        try {
+            ByteBuffer block = pending;
+            pending = spare;
+            block.flip();
+            return block;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Writes a block taken from {@code pending} and keeps its buffer as the next spare. If the write
+     * fails, a partly written block is cut off again and the records go back in front of anything
+     * appended since, so the next drain retries them in order instead of dropping them.
+     */
+    private void writeTaken(ByteBuffer block) throws IOException {
+        if (block.hasRemaining()) {
+            long start = -1L;
+            try {
+                start = channel.position();
+                writeBlock(channel, block);
+            } catch (IOException ex) {
+                block.rewind();
+                requeue(block);
+                if (start >= 0) {
+                    try {
+                        channel.truncate(start);
+                    } catch (IOException suppressed) {
+                        ex.addSuppressed(suppressed);
+                    }
+                }
+                throw ex;
+            }
+            unsynced = true;
+        }
+        block.clear();
+        spare = block;
+    }
+
+    private void requeue(ByteBuffer block) {
+        appendLock.lock();
+        try {
+            ByteBuffer merged = ByteBuffer.allocate(Math.max(pending.capacity(), block.remaining() + pending.position()));
+            merged.put(block);
+            pending.flip();
+            merged.put(pending);
+            pending.clear();
+            spare = pending;
+            pending = merged;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private void writeBlock(FileChannel target, ByteBuffer payload) throws IOException {
+        crc.reset();
+        crc.update(payload.duplicate());
+        blockHeader.clear();
+        blockHeader.putInt(payload.remaining()).putInt((int) crc.getValue()).flip();
+        ByteBuffer[] parts = { blockHeader, payload };
+        while (payload.hasRemaining()) {
+            target.write(parts);
+        }
+    }
+
+    /** Blocks until every record appended before this call has been written and forced to disk. */
+    void flush() throws IOException {
+        drain(true);
+    }
+
+    /**
+     * Seals the current generation and starts the next one. Records appended before this call end
+     * up in the sealed file; everything after lands in the new one. If sealing fails, the current
+     * generation stays open and keeps every record.
+     *
+     * @return the new generation number
+     */
+    long rotate() throws IOException {
+        ioLock.lock();
+        try {
+            long next;
+            ByteBuffer tail;
+            appendLock.lock();
+            try {
+                tail = pending;
+                pending = spare;
+                tail.flip();
+                next = generation + 1;
+                generation = next;
+                generationBytes = 0;
+            } finally {
+                appendLock.unlock();
+            }
+            int tailBytes = tail.remaining();
+            FileChannel opened;
+            try {
+                writeTaken(tail);
+                channel.force(false);
+                opened = openGeneration(next);
+            } catch (IOException ex) {
+                appendLock.lock();
+                try {
+                    generation = next - 1;
+                    generationBytes += tailBytes;
+                } finally {
+                    appendLock.unlock();
+                }
+                throw ex;
+            }
+            channel.close();
+            channel = opened;
+            unsynced = false;
+            lastSyncNanos = System.nanoTime();
+            return next;
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    private FileChannel openGeneration(long gen) throws IOException {
+        File file = fileFor(directory, gen);
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putLong(gen).flip();
+        while (header.hasRemaining()) {
+            ch.write(header);
+        }
+        ch.force(true);
+        return ch;
+    }
+
+    /** Removes sealed generations that a snapshot now covers. */
+    void deleteBefore(long gen) {
+        for (long g : listGenerations(directory)) {
+            if (g < gen && !fileFor(directory, g).delete()) {
+                logger.warn("Could not delete old journal generation {}", g);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        appendLock.lock();
+        try {
+            hasWork.signal();
+        } finally {
+            appendLock.unlock();
+        }
+        if (writer != null) {
+            try {
+                writer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        ioLock.lock();
+        try {
+            if (channel != null && channel.isOpen()) {
+                drain(true);
+                channel.close();
+            }
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    // --------------- Replay ---------------
+
+    /**
+     * Feeds every intact record from generation {@code fromGeneration} onwards to the visitor, in order,
+     * and the operation IDs tagged on them to {@code operations}. A torn or corrupt block (e.g. from a crash mid-write) ends replay of that generation.
+     *
+     * @return the highest generation found on disk, or {@code fromGeneration - 1} if there are none
+     */
+    static long replay(File directory, long fromGeneration, BalanceVisitor visitor, LongConsumer operations,
+                       Logger logger) throws IOException {
+        long highest = fromGeneration - 1;
+        for (long gen : listGenerations(directory)) {
+            if (gen < fromGeneration) {
+                continue;
+            }
+            highest = gen;
+            replayFile(fileFor(directory, gen), visitor, operations, logger);
+        }
+        return highest;
+    }
+
+    private static void replayFile(File file, BalanceVisitor visitor, LongConsumer operations, Logger logger)
+            throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < FILE_HEADER_BYTES) {
+                return;
+            }
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                logger.warn("Skipping {}: not a balance journal", file.getName());
+                return;
+            }
+            buf.getLong(); // generation, implied by the file name
+            CRC32 crc = new CRC32();
+            while (buf.remaining() >= BLOCK_HEADER_BYTES) {
+                int length = buf.getInt();
+                int checksum = buf.getInt();
+                if (length <= 0 || length > MAX_BLOCK_BYTES || length > buf.remaining()) {
+                    logger.warn("Journal {} ends with a torn block, ignoring the tail", file.getName());
+                    return;
+                }
+                ByteBuffer block = buf.slice().limit(length);
+                crc.reset();
+                crc.update(block.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    logger.warn("Journal {} has a corrupt block, ignoring the tail", file.getName());
+                    return;
+                }
+                buf.position(buf.position() + length);
+                while (block.hasRemaining()) {
+                    byte type = block.get();
+                    if (type == RECORD_SET && block.remaining() >= SET_BYTES - 1) {
+                        visitor.accept(block.getLong(), block.getLong(), block.getLong());
+                    } else if (type == RECORD_OPERATION && block.remaining() >= OPERATION_BYTES - 1) {
+                        operations.accept(block.getLong());
+                    } else if (type == RECORD_BATCH && block.remaining() >= 4
+                            && (long) block.getInt(block.position()) * BATCH_ENTRY_BYTES <= block.remaining() - 4) {
+                        int count = block.getInt();
+                        for (int i = 0; i < count; i++) {
+                            visitor.accept(block.getLong(), block.getLong(), block.getLong());
+                        }
+                    } else {
+                        logger.warn("Journal {} has an unknown record type {}, ignoring the tail", file.getName(), type);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<Long> listGenerations(File directory) {
+        List<Long> out = new ArrayList<>();
+        String[] names = directory.list();
+        if (names == null) {
+            return out;
+        }
+        for (String name : names) {
+            Matcher m = FILE_NAME.matcher(name);
+            if (m.matches()) {
+                out.add(Long.parseLong(m.group(1)));
+            }
+        }
+        out.sort(null);
+        return out;
+    }
+
+    private static File fileFor(File directory, long gen) {
+        return new File(directory, "balances-" + gen + ".journal");
+    }
+}
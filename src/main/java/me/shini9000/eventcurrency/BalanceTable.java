@@ -0,0 +1,661 @@
+package me.shini9000.eventcurrency;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Concurrent UUID → balance table specialised for this plugin's access pattern.
+ *
+ * Keys are stored as the two longs of the UUID and balances as raw longs, all in one flat
+ * {@code long[]} per segment (msb, lsb, balance per slot, linear probing). Nothing is boxed and no
+ * operation allocates. Each segment is guarded by its own {@link StampedLock}: writers take the
+ * write lock, readers first try an optimistic read and only fall back to the read lock if a writer
+ * got in the way.
+ *
+ * Balances are never negative, so {@code -1} in the balance column marks an empty slot.
+ *
+ * <p>{@link #snapshot()} gives a point-in-time view without stopping writers: it bumps a global
+ * epoch, and the first write to each segment after the bump copies that segment's array for the
+ * snapshot before changing it (copy-on-write). Segments nobody writes to are copied lazily by the
+ * snapshot itself.
+ *
+ * <p>With a {@link Loader} installed the table acts as a cache over a lazy storage backend: an
+ * account that is not resident is fetched on first use, under its segment's write lock so two
+ * threads cannot load it twice, and {@link #evict} may drop accounts again to bound memory.
+ */
+final class BalanceTable {
+
+    /**
+     * Called with the segment lock held, so calls for the same account arrive in mutation order.
+     * {@code operation} is the ID the caller tagged the mutation with, or 0.
+     */
+    interface UpdateListener {
+        void onUpdate(long msb, long lsb, long oldBalance, long newBalance, long operation);
+    }
+
+    /** Receives a whole batch while every segment it touched is still write-locked. */
+    interface BatchListener {
+        void onBatch(long[] keys, long[] balances, long operation);
+    }
+
+    /** Fetches an account that is not resident; returns -1 if the store has never seen it. */
+    interface Loader {
+        long load(long msb, long lsb);
+    }
+
+    /** Tested under the segment's write lock by {@link #evict}. */
+    interface KeyFilter {
+        boolean test(long msb, long lsb);
+    }
+
+    /** Returned by {@link #trySpend} when the account cannot cover the amount. */
+    static final long INSUFFICIENT = -1L;
+
+    private static final long EMPTY = -1L;
+    private static final int ADD = 0;
+    private static final int SPEND = 1;
+    private static final int DEDUCT = 2;
+    private static final int SLOT = 3;
+    private static final long[] EMPTY_SEGMENT = new long[0];
+    private static final float LOAD_FACTOR = 0.7f;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private volatile UpdateListener listener;
+    private volatile Loader loader;
+    private volatile int epoch;
+    private volatile Snapshot activeSnapshot;
+
+    BalanceTable() {
+        this(64, 256);
+    }
+
+    BalanceTable(int segmentCount, int initialSegmentCapacity) {
+        int count = Integer.highestOneBit(Math.max(1, segmentCount - 1) << 1);
+        this.segments = new Segment[count];
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(count);
+        int capacity = Integer.highestOneBit(Math.max(2, initialSegmentCapacity - 1) << 1);
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(i, capacity);
+        }
+    }
+
+    void setListener(UpdateListener listener) {
+        this.listener = listener;
+    }
+
+    void setLoader(Loader loader) {
+        this.loader = loader;
+    }
+
+    // --------------- Reads ---------------
+
+    long get(long msb, long lsb) {
+        long h = hash(msb, lsb);
+        Segment seg = segmentFor(h);
+        long stamp = seg.tryOptimisticRead();
+        long v = find(seg.slots, h, msb, lsb);
+        if (!seg.validate(stamp)) {
+            stamp = seg.readLock();
+            try {
+                v = find(seg.slots, h, msb, lsb);
+            } finally {
+                seg.unlockRead(stamp);
+            }
+        }
+        if (v == EMPTY && loader != null) {
+            return loadMissing(seg, h, msb, lsb);
+        }
+        return v == EMPTY ? 0L : v;
+    }
+
+    private long loadMissing(Segment seg, long h, long msb, long lsb) {
+        long stamp = seg.writeLock();
+        try {
+            preserve(seg);
+            int base = locate(seg, h, msb, lsb, false);
+            return base < 0 ? 0L : seg.slots[base + 2];
+        } finally {
+            seg.unlockWrite(stamp);
+        }
+    }
+
+    boolean contains(long msb, long lsb) {
+        long h = hash(msb, lsb);
+        Segment seg = segmentFor(h);
+        long stamp = seg.readLock();
+        try {
+            return find(seg.slots, h, msb, lsb) != EMPTY;
+        } finally {
+            seg.unlockRead(stamp);
+        }
+    }
+
+    int size() {
+        int total = 0;
+        for (Segment seg : segments) {
+            total += seg.size;
+        }
+        return total;
+    }
+
+    /**
+     * Visits every entry. Each segment is copied under its read lock and visited afterwards, so the
+     * visitor never blocks writers; the result is consistent per segment but not across segments.
+     */
+    void forEach(BalanceVisitor visitor) {
+        long[] scratch = new long[0];
+        for (Segment seg : segments) {
+            long stamp = seg.readLock();
+            int len;
+            try {
+                len = seg.slots.length;
+                if (scratch.length < len) {
+                    scratch = new long[len];
+                }
+                System.arraycopy(seg.slots, 0, scratch, 0, len);
+            } finally {
+                seg.unlockRead(stamp);
+            }
+            for (int base = 0; base < len; base += SLOT) {
+                long v = scratch[base + 2];
+                if (v != EMPTY) {
+                    visitor.accept(scratch[base], scratch[base + 1], v);
+                }
+            }
+        }
+    }
+
+    // --------------- Writes ---------------
+
+    /** Adds a positive amount, saturating at {@link Long#MAX_VALUE}, and returns the new balance. */
+    long add(long msb, long lsb, long amount) {
+        return add(msb, lsb, amount, 0L);
+    }
+
+    /** {@link #add} tagged with an operation ID that is passed on to the listener. */
+    long add(long msb, long lsb, long amount, long operation) {
+        long h = hash(msb, lsb);
+        Segment seg = segmentFor(h);
+        long stamp = seg.writeLock();
+        try {
+            preserve(seg);
+            int base = locate(seg, h, msb, lsb, true);
+            long old = seg.slots[base + 2];
+            long current = old == EMPTY ? 0L : old;
+            long updated = current > Long.MAX_VALUE - amount ? Long.MAX_VALUE : current + amount;
+            seg.store(base, msb, lsb, old, updated);
+            notify(msb, lsb, current, updated, operation);
+            return updated;
+        } finally {
+            seg.unlockWrite(stamp);
+        }
+    }
+
+    /** Deducts the amount if the account can cover it; returns the new balance or {@link #INSUFFICIENT}. */
+    long trySpend(long msb, long lsb, long amount) {
+        return trySpend(msb, lsb, amount, 0L);
+    }
+
+    long trySpend(long msb, long lsb, long amount, long operation) {
+        long h = hash(msb, lsb);
+        Segment seg = segmentFor(h);
+        long stamp = seg.writeLock();
+        try {
+            preserve(seg);
+            int base = locate(seg, h, msb, lsb, false);
+            if (base < 0 || seg.slots[base + 2] < amount) {
+                return INSUFFICIENT;
+            }
+            long current = seg.slots[base + 2];
+            long updated = current - amount;
+            seg.slots[base + 2] = updated;
+            notify(msb, lsb, current, updated, operation);
+            return updated;
+        } finally {
+            seg.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Overwrites the balance and returns the previous one (0 if the account was unknown). A
+     * non-resident account is fetched through the {@link Loader} first, so the previous balance is
+     * the stored one.
+     */
+    long set(long msb, long lsb, long balance) {
+        return set(msb, lsb, balance, 0L);
+    }
+
+    long set(long msb, long lsb, long balance, long operation) {
+        long h = hash(msb, lsb);
+        Segment seg = segmentFor(h);
+        long stamp = seg.writeLock();
+        try {
+            preserve(seg);
+            int base = locate(seg, h, msb, lsb, true);
+            long old = seg.slots[base + 2];
+            long previous = old == EMPTY ? 0L : old;
+            seg.store(base, msb, lsb, old, balance);
+            notify(msb, lsb, previous, balance, operation);
+            return previous;
+        } finally {
+            seg.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds a positive amount to every account in {@code keys} (msb/lsb pairs) and returns the new
+     * balances in the same order. See {@link #applyAll} for how the batch is applied.
+     */
+    long[] addAll(long[] keys, long amount, long operation, BatchListener batchListener) {
+        return applyAll(keys, amount, null, ADD, operation, batchListener);
+    }
+
+    /** Like {@link #addAll} but deducting; accounts that cannot cover the amount are left alone and get {@link #INSUFFICIENT}. */
+    long[] spendAll(long[] keys, long amount, long operation, BatchListener batchListener) {
+        return applyAll(keys, amount, null, SPEND, operation, batchListener);
+    }
+
+    /**
+     * Deducts a separate amount from each account, as much of it as the account holds, and returns
+     * the new balances; {@code amounts} is overwritten with what was actually taken. Unknown
+     * accounts stay unknown and report 0.
+     */
+    long[] deductAll(long[] keys, long[] amounts, long operation, BatchListener batchListener) {
+        return applyAll(keys, 0L, amounts, DEDUCT, operation, batchListener);
+    }
+
+    /**
+     * Locks every segment the batch touches (in index order, so batches never deadlock each other),
+     * applies all of it and reports it to {@code batchListener} before unlocking. A single-account
+     * update therefore lands entirely before or after the batch, in the table and in whatever the
+     * listener records. The per-account {@link UpdateListener} is not called.
+     *
+     * <p>Missing accounts are all fetched through the {@link Loader} before anything changes, so a
+     * loader that throws leaves the whole batch unapplied rather than half of it unrecorded.
+     */
+    private long[] applyAll(long[] keys, long amount, long[] amounts, int mode, long operation,
+                            BatchListener batchListener) {
+        int n = keys.length / 2;
+        long[] hashes = new long[n];
+        boolean[] touched = new boolean[segments.length];
+        for (int i = 0; i < n; i++) {
+            hashes[i] = hash(keys[2 * i], keys[2 * i + 1]);
+            touched[(int) (hashes[i] >>> segmentShift)] = true;
+        }
+        long[] results = new long[n];
+        long[] stamps = new long[segments.length];
+        int locked = 0;
+        try {
+            for (; locked < segments.length; locked++) {
+                if (touched[locked]) {
+                    stamps[locked] = segments[locked].writeLock();
+                    preserve(segments[locked]);
+                }
+            }
+            boolean[] known = new boolean[n];
+            for (int i = 0; i < n; i++) {
+                known[i] = locate(segmentFor(hashes[i]), hashes[i], keys[2 * i], keys[2 * i + 1], false) >= 0;
+            }
+            for (int i = 0; i < n; i++) {
+                long msb = keys[2 * i];
+                long lsb = keys[2 * i + 1];
+                Segment seg = segmentFor(hashes[i]);
+                // Inserting earlier keys may have grown the segment, so look the slot up again
+                int base = known[i] ? seg.indexOf(hashes[i], msb, lsb)
+                        : mode == ADD ? seg.slotFor(hashes[i], msb, lsb) : -1;
+                if (mode == DEDUCT) {
+                    amounts[i] = base < 0 ? 0L : Math.min(amounts[i], seg.slots[base + 2]);
+                    results[i] = base < 0 ? 0L : (seg.slots[base + 2] -= amounts[i]);
+                } else if (mode == SPEND) {
+                    if (base < 0 || seg.slots[base + 2] < amount) {
+                        results[i] = INSUFFICIENT;
+                    } else {
+                        results[i] = seg.slots[base + 2] -= amount;
+                    }
+                } else {
+                    long old = seg.slots[base + 2];
+                    long current = old == EMPTY ? 0L : old;
+                    long updated = current > Long.MAX_VALUE - amount ? Long.MAX_VALUE : current + amount;
+                    seg.store(base, msb, lsb, old, updated);
+                    results[i] = updated;
+                }
+            }
+            if (batchListener != null) {
+                batchListener.onBatch(keys, results, operation);
+            }
+            return results;
+        } finally {
+            for (int i = 0; i < locked; i++) {
+                if (touched[i]) {
+                    segments[i].unlockWrite(stamps[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves {@code amount} from one account to another if the sender can cover it and the receiver's
+     * balance would not overflow, and returns the sender's new balance or {@link #INSUFFICIENT}. Both segments are write-locked in index order
+     * (one lock if they share a segment), so transfers on disjoint accounts run in parallel and
+     * crossing transfers cannot deadlock. The change is reported to {@code batchListener} as a
+     * two-account batch, sender first, while both locks are held; the per-account
+     * {@link UpdateListener} is not called.
+     */
+    long transfer(long fromMsb, long fromLsb, long toMsb, long toLsb, long amount, long operation,
+                  BatchListener batchListener) {
+        long fromHash = hash(fromMsb, fromLsb);
+        long toHash = hash(toMsb, toLsb);
+        Segment from = segmentFor(fromHash);
+        Segment to = segmentFor(toHash);
+        Segment first = from.index <= to.index ? from : to;
+        Segment second = first == from ? to : from;
+        long firstStamp = first.writeLock();
+        long secondStamp = second != first ? second.writeLock() : 0L;
+        try {
+            preserve(first);
+            if (second != first) {
+                preserve(second);
+            }
+            int fromBase = locate(from, fromHash, fromMsb, fromLsb, false);
+            if (fromBase < 0 || from.slots[fromBase + 2] < amount) {
+                return INSUFFICIENT;
+            }
+            if (fromMsb == toMsb && fromLsb == toLsb) {
+                return from.slots[fromBase + 2];
+            }
+            int toBase = locate(to, toHash, toMsb, toLsb, true);
+            if (to == from) {
+                fromBase = from.indexOf(fromHash, fromMsb, fromLsb); // locating the receiver may have grown the segment
+            }
+            long old = to.slots[toBase + 2];
+            long current = old == EMPTY ? 0L : old;
+            if (current > Long.MAX_VALUE - amount) {
+                return INSUFFICIENT; // saturating the receiver would destroy tokens
+            }
+            long fromBalance = from.slots[fromBase + 2] - amount;
+            from.slots[fromBase + 2] = fromBalance;
+            long toBalance = current + amount;
+            to.store(toBase, toMsb, toLsb, old, toBalance);
+            if (batchListener != null) {
+                batchListener.onBatch(new long[] { fromMsb, fromLsb, toMsb, toLsb },
+                        new long[] { fromBalance, toBalance }, operation);
+            }
+            return fromBalance;
+        } finally {
+            if (second != first) {
+                second.unlockWrite(secondStamp);
+            }
+            first.unlockWrite(firstStamp);
+        }
+    }
+
+    /**
+     * Drops a resident account from memory unless {@code keep} says otherwise, asked under the
+     * segment's write lock so no mutation can slip in between. Not a balance change, so the
+     * listener is not called; with a {@link Loader} the account is simply fetched again on next use.
+     */
+    boolean evict(long msb, long lsb, KeyFilter keep) {
+        long h = hash(msb, lsb);
+        Segment seg = segmentFor(h);
+        long stamp = seg.writeLock();
+        try {
+            int base = seg.indexOf(h, msb, lsb);
+            if (base < 0 || keep.test(msb, lsb)) {
+                return false;
+            }
+            preserve(seg);
+            seg.delete(base);
+            return true;
+        } finally {
+            seg.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Slot base of the key, loading it through the {@link Loader} if it is not resident. Returns
+     * the empty slot it would go into if {@code create} is set and it is unknown everywhere, and -1
+     * otherwise. Caller holds the write lock and has called {@link #preserve}.
+     */
+    private int locate(Segment seg, long h, long msb, long lsb, boolean create) {
+        int base = seg.indexOf(h, msb, lsb);
+        if (base >= 0) {
+            return base;
+        }
+        Loader l = loader;
+        long stored = l == null ? EMPTY : l.load(msb, lsb);
+        if (stored < 0 && !create) {
+            return -1;
+        }
+        base = seg.slotFor(h, msb, lsb);
+        if (stored >= 0) {
+            seg.store(base, msb, lsb, EMPTY, stored); // a load, not a change: no listener call
+        }
+        return base;
+    }
+
+    /** Copies the segment for a running snapshot before its first write in the new epoch. Caller holds the write lock. */
+    private void preserve(Segment seg) {
+        int current = epoch;
+        if (seg.epoch != current) {
+            Snapshot snap = activeSnapshot;
+            if (snap != null && snap.epoch == current && snap.frozen[seg.index] == null) {
+                snap.frozen[seg.index] = seg.slots.clone();
+            }
+            seg.epoch = current;
+        }
+    }
+
+    // --------------- Snapshots ---------------
+
+    /**
+     * Starts a point-in-time snapshot. Only one may be open at a time; close it when done so the
+     * table stops copying segments for it.
+     */
+    synchronized Snapshot snapshot() {
+        if (activeSnapshot != null) {
+            throw new IllegalStateException("a snapshot is already open");
+        }
+        Snapshot snap = new Snapshot(epoch + 1);
+        activeSnapshot = snap; // publish before the bump so writers that see the new epoch find it
+        epoch = snap.epoch;
+        return snap;
+    }
+
+    final class Snapshot implements AutoCloseable {
+        private final int epoch;
+        private final long[][] frozen = new long[segments.length][];
+
+        private Snapshot(int epoch) {
+            this.epoch = epoch;
+        }
+
+        /** Visits every entry as of the moment the snapshot was taken. */
+        void forEach(BalanceVisitor visitor) {
+            for (Segment seg : segments) {
+                long[] slots;
+                long stamp = seg.writeLock();
+                try {
+                    if (frozen[seg.index] == null) {
+                        // Not written since the cut; its current contents are the snapshot
+                        frozen[seg.index] = seg.slots.clone();
+                        seg.epoch = epoch;
+                    }
+                    slots = frozen[seg.index];
+                    frozen[seg.index] = EMPTY_SEGMENT; // release the copy once visited
+                } finally {
+                    seg.unlockWrite(stamp);
+                }
+                for (int base = 0; base < slots.length; base += SLOT) {
+                    long v = slots[base + 2];
+                    if (v != EMPTY) {
+                        visitor.accept(slots[base], slots[base + 1], v);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (BalanceTable.this) {
+                if (activeSnapshot == this) {
+                    activeSnapshot = null;
+                }
+            }
+        }
+    }
+
+    private void notify(long msb, long lsb, long oldBalance, long newBalance, long operation) {
+        UpdateListener l = listener;
+        if (l != null) {
+            l.onUpdate(msb, lsb, oldBalance, newBalance, operation);
+        }
+    }
+
+    // --------------- Internals ---------------
+
+    private Segment segmentFor(long h) {
+        return segments[(int) (h >>> segmentShift)];
+    }
+
+    static long hash(long msb, long lsb) {
+        long h = msb * 0x9E3779B97F4A7C15L ^ lsb;
+        h ^= h >>> 32;
+        h *= 0xD6E8FEB86659FD93L;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    /**
+     * Probes for the key. Safe to call without a lock: a concurrent writer can make the answer
+     * wrong but never loop forever or index out of bounds, and the caller validates afterwards.
+     */
+    private static long find(long[] slots, long h, long msb, long lsb) {
+        int capacity = slots.length / SLOT;
+        int mask = capacity - 1;
+        int idx = (int) h & mask;
+        for (int probes = 0; probes < capacity; probes++) {
+            int base = idx * SLOT;
+            long v = slots[base + 2];
+            if (v == EMPTY) {
+                return EMPTY;
+            }
+            if (slots[base] == msb && slots[base + 1] == lsb) {
+                return v;
+            }
+            idx = (idx + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    @SuppressWarnings("serial") // StampedLock is Serializable; segments never are
+    private static final class Segment extends StampedLock {
+        final int index;
+        long[] slots;
+        int size;
+        int epoch; // last snapshot epoch this segment was preserved for; guarded by the write lock
+
+        Segment(int index, int capacity) {
+            this.index = index;
+            this.slots = newSlots(capacity);
+        }
+
+        private static long[] newSlots(int capacity) {
+            long[] s = new long[capacity * SLOT];
+            for (int base = 2; base < s.length; base += SLOT) {
+                s[base] = EMPTY;
+            }
+            return s;
+        }
+
+        /** Slot base of an existing key, or -1. Caller holds the lock. */
+        int indexOf(long h, long msb, long lsb) {
+            long[] s = slots;
+            int mask = s.length / SLOT - 1;
+            int idx = (int) h & mask;
+            while (true) {
+                int base = idx * SLOT;
+                if (s[base + 2] == EMPTY) {
+                    return -1;
+                }
+                if (s[base] == msb && s[base + 1] == lsb) {
+                    return base;
+                }
+                idx = (idx + 1) & mask;
+            }
+        }
+
+        /** Slot base of the key, or of the empty slot it would go into; grows first if needed. Caller holds the write lock. */
+        int slotFor(long h, long msb, long lsb) {
+            int base = indexOf(h, msb, lsb);
+            if (base >= 0) {
+                return base;
+            }
+            if (size + 1 > (int) (slots.length / SLOT * LOAD_FACTOR)) {
+                resize();
+            }
+            long[] s = slots;
+            int mask = s.length / SLOT - 1;
+            int idx = (int) h & mask;
+            while (s[idx * SLOT + 2] != EMPTY) {
+                idx = (idx + 1) & mask;
+            }
+            return idx * SLOT;
+        }
+
+        void store(int base, long msb, long lsb, long old, long balance) {
+            long[] s = slots;
+            if (old == EMPTY) {
+                s[base] = msb;
+                s[base + 1] = lsb;
+                size++;
+            }
+            s[base + 2] = balance;
+        }
+
+        /**
+         * Empties the slot and shifts later entries of the same probe run back into the hole, so
+         * lookups never need tombstones. Caller holds the write lock.
+         */
+        void delete(int base) {
+            long[] s = slots;
+            int mask = s.length / SLOT - 1;
+            int hole = base / SLOT;
+            int idx = hole;
+            while (true) {
+                idx = (idx + 1) & mask;
+                int b = idx * SLOT;
+                if (s[b + 2] == EMPTY) {
+                    break;
+                }
+                int home = (int) hash(s[b], s[b + 1]) & mask;
+                if (((idx - home) & mask) >= ((idx - hole) & mask)) { // the hole lies on its probe path
+                    System.arraycopy(s, b, s, hole * SLOT, SLOT);
+                    hole = idx;
+                }
+            }
+            s[hole * SLOT + 2] = EMPTY;
+            size--;
+        }
+
+        private void resize() {
+            long[] old = slots;
+            long[] grown = newSlots(old.length / SLOT * 2);
+            int mask = grown.length / SLOT - 1;
+            for (int base = 0; base < old.length; base += SLOT) {
+                long v = old[base + 2];
+                if (v == EMPTY) {
+                    continue;
+                }
+                int idx = (int) hash(old[base], old[base + 1]) & mask;
+                while (grown[idx * SLOT + 2] != EMPTY) {
+                    idx = (idx + 1) & mask;
+                }
+                int nb = idx * SLOT;
+                grown[nb] = old[base];
+                grown[nb + 1] = old[base + 1];
+                grown[nb + 2] = v;
+            }
+            slots = grown;
+        }
+    }
+}
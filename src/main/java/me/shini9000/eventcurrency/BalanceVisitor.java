@@ -0,0 +1,10 @@
+package me.shini9000.eventcurrency;
+
+/**
+ * Receives one account's balance, keyed by the two halves of its UUID so that bulk readers
+ * and writers never have to materialise {@link java.util.UUID} objects.
+ */
+@FunctionalInterface
+interface BalanceVisitor {
+    void accept(long msb, long lsb, long balance);
+}
@@ -0,0 +1,197 @@
+package me.shini9000.eventcurrency;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+
+/**
+ * Applies bridge operations on a small pool of worker threads instead of the Velocity event thread.
+ *
+ * Operations are routed to a lane by target UUID, and each lane is a bounded FIFO drained by one
+ * thread, so operations for the same player are applied in the order they arrived no matter which
+ * backend sent them. Two limits provide backpressure:
+ * <ul>
+ *   <li>each backend may have at most {@code maxPendingPerBackend} operations in flight; a frame
+ *       that would exceed it is rejected as a whole</li>
+ *   <li>when a lane is full the {@link OverflowPolicy} decides whether to drop the operation or
+ *       wait briefly for room</li>
+ * </ul>
+ */
+final class BridgeIngestPipeline {
+
+    enum OverflowPolicy { DROP, BLOCK }
+
+    interface Handler {
+        void handle(String backend, int opcode, long msb, long lsb, long amount, long operationId, String executor);
+    }
+
+    /** Live counters for one backend server. */
+    static final class BackendStats {
+        final String name;
+        final AtomicInteger pending = new AtomicInteger();
+        final LongAdder accepted = new LongAdder();
+        final LongAdder processed = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+        final LongAdder rejectedFrames = new LongAdder();
+
+        BackendStats(String name) {
+            this.name = name;
+        }
+    }
+
+    private record Task(BackendStats backend, int opcode, long msb, long lsb, long amount, long operationId,
+                        String executor, long receivedNanos) {
+    }
+
+    private final Logger logger;
+    private final Handler handler;
+    private final LatencyHistogram queueLatency;
+    private final int maxPendingPerBackend;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutMs;
+    private final ConcurrentHashMap<String, BackendStats> backends = new ConcurrentHashMap<>();
+    private final List<ArrayBlockingQueue<Task>> lanes = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean accepting = true;
+
+    BridgeIngestPipeline(Logger logger, Handler handler, LatencyHistogram queueLatency, int workers, int laneCapacity,
+                         int maxPendingPerBackend, OverflowPolicy policy, long blockTimeoutMs) {
+        this.logger = logger;
+        this.handler = handler;
+        this.queueLatency = queueLatency;
+        this.maxPendingPerBackend = maxPendingPerBackend;
+        this.policy = policy;
+        this.blockTimeoutMs = blockTimeoutMs;
+        for (int i = 0; i < Math.max(1, workers); i++) {
+            ArrayBlockingQueue<Task> lane = new ArrayBlockingQueue<>(Math.max(16, laneCapacity));
+            Thread t = new Thread(() -> drain(lane), "EventCurrency-Bridge-" + i);
+            t.setDaemon(true);
+            lanes.add(lane);
+            this.workers.add(t);
+        }
+        this.workers.forEach(Thread::start);
+    }
+
+    /**
+     * Queues every operation in the frame. Returns false if the frame was rejected outright
+     * because the backend already has too much in flight or the pipeline is shutting down.
+     */
+    boolean submit(String backendName, BridgeReader frame) {
+        BackendStats backend = backends.computeIfAbsent(backendName, BackendStats::new);
+        int count = frame.count();
+        if (!accepting || backend.pending.addAndGet(count) > maxPendingPerBackend) {
+            backend.pending.addAndGet(-count);
+            backend.rejectedFrames.increment();
+            warnDropped(backend, count);
+            return false;
+        }
+        long now = System.nanoTime();
+        while (frame.next()) {
+            Task task = new Task(backend, frame.opcode(), frame.msb(), frame.lsb(), frame.amount(), frame.operationId(),
+                    frame.executor(), now);
+            if (offer(laneFor(task.msb, task.lsb), task)) {
+                backend.accepted.increment();
+            } else {
+                backend.pending.decrementAndGet();
+                backend.dropped.increment();
+                warnDropped(backend, 1);
+            }
+        }
+        return true;
+    }
+
+    private boolean offer(ArrayBlockingQueue<Task> lane, Task task) {
+        if (lane.offer(task)) {
+            return true;
+        }
+        if (policy == OverflowPolicy.BLOCK && blockTimeoutMs > 0) {
+            try {
+                return lane.offer(task, blockTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return false;
+    }
+
+    private ArrayBlockingQueue<Task> laneFor(long msb, long lsb) {
+        long h = BalanceTable.hash(msb, lsb);
+        return lanes.get((int) ((h >>> 1) % lanes.size()));
+    }
+
+    private void drain(ArrayBlockingQueue<Task> lane) {
+        while (true) {
+            Task task;
+            try {
+                task = lane.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            try {
+                handler.handle(task.backend.name, task.opcode, task.msb, task.lsb, task.amount,
+                        task.operationId, task.executor);
+                queueLatency.recordSince(task.receivedNanos);
+            } catch (Exception ex) {
+                logger.error("Failed to apply bridge operation", ex);
+            } finally {
+                task.backend.pending.decrementAndGet();
+                task.backend.processed.increment();
+            }
+        }
+    }
+
+    private void warnDropped(BackendStats backend, int ops) {
+        long total = backend.dropped.sum() + backend.rejectedFrames.sum();
+        // First drop and then every 1000th, so a flood cannot flood the log as well
+        if (total == 1 || total % 1000 == 0) {
+            logger.warn("Bridge backlog from {} is full, dropped {} operation(s) ({} drops so far)",
+                    backend.name, ops, total);
+        }
+    }
+
+    // --------------- Observability ---------------
+
+    Collection<BackendStats> backends() {
+        return backends.values();
+    }
+
+    int queued() {
+        return lanes.stream().mapToInt(ArrayBlockingQueue::size).sum();
+    }
+
+    int[] laneDepths() {
+        int[] depths = new int[lanes.size()];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = lanes.get(i).size();
+        }
+        return depths;
+    }
+
+    // --------------- Shutdown ---------------
+
+    /** Stops accepting frames and gives queued operations up to {@code timeoutMs} to finish. */
+    void shutdown(long timeoutMs) {
+        accepting = false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (System.nanoTime() < deadline && lanes.stream().anyMatch(l -> !l.isEmpty())) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        int abandoned = queued();
+        if (abandoned > 0) {
+            logger.warn("Shutting down with {} bridge operation(s) still queued", abandoned);
+        }
+        workers.forEach(Thread::interrupt);
+    }
+}
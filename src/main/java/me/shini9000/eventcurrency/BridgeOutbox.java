@@ -0,0 +1,132 @@
+package me.shini9000.eventcurrency;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.ProxyServer;
+import com.velocitypowered.api.proxy.ServerConnection;
+import com.velocitypowered.api.proxy.server.RegisteredServer;
+import org.slf4j.Logger;
+
+/**
+ * Balances the proxy sends back to backends as {@link BridgeProtocol#OP_BALANCE} frames: answers to
+ * {@link BridgeProtocol#OP_QUERY} and pushes to the backend a player is on whenever their balance
+ * changes.
+ *
+ * Nothing is sent straight away. A query or change only marks the account as pending for a backend,
+ * and a flush {@code coalesceMs} later reads the current balance of every pending account and sends
+ * one frame per backend. Repeated queries for the same player within that window cost one lookup
+ * and one entry. Balances are read at send time, not when they changed, so a backend never gets an
+ * older balance after a newer one.
+ */
+final class BridgeOutbox {
+
+    private final ProxyServer server;
+    private final Ledger ledger;
+    private final Metrics metrics;
+    private final Logger logger;
+    private final long coalesceMs;
+    private final DirtyKeySet changed = new DirtyKeySet(8); // resolved to the player's backend at flush time
+    private final Map<String, DirtyKeySet> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+    private final ScheduledExecutorService sender = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "EventCurrency-Bridge-Out");
+        t.setDaemon(true);
+        return t;
+    });
+
+    BridgeOutbox(ProxyServer server, Ledger ledger, Metrics metrics, Logger logger, long coalesceMs) {
+        this.server = server;
+        this.ledger = ledger;
+        this.metrics = metrics;
+        this.logger = logger;
+        this.coalesceMs = Math.max(0L, coalesceMs);
+    }
+
+    /** A backend asked for the balance; it is answered with the next flush. */
+    void query(String backend, long msb, long lsb) {
+        metrics.balanceQueries.increment();
+        pendingFor(backend).add(msb, lsb);
+        scheduleFlush();
+    }
+
+    /**
+     * The balance changed or the player moved to another backend. Cheap enough to call with a
+     * table lock held.
+     */
+    void changed(long msb, long lsb) {
+        changed.add(msb, lsb);
+        scheduleFlush();
+    }
+
+    private DirtyKeySet pendingFor(String backend) {
+        return pending.computeIfAbsent(backend, b -> new DirtyKeySet(8));
+    }
+
+    private void scheduleFlush() {
+        if (!flushPending.compareAndSet(false, true)) { // one pending flush carries everything
+            return;
+        }
+        try {
+            sender.schedule(this::flush, coalesceMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            flushPending.set(false); // shutting down
+        }
+    }
+
+    // --------------- Sending ---------------
+
+    private void flush() {
+        flushPending.set(false); // anything marked from here on schedules the next flush
+        try {
+            long[] moved = changed.drain();
+            for (int i = 0; i < moved.length; i += 2) {
+                Optional<ServerConnection> conn = server.getPlayer(new UUID(moved[i], moved[i + 1]))
+                        .flatMap(Player::getCurrentServer);
+                if (conn.isPresent()) {
+                    pendingFor(conn.get().getServerInfo().getName()).add(moved[i], moved[i + 1]);
+                }
+            }
+            for (Map.Entry<String, DirtyKeySet> e : pending.entrySet()) {
+                if (!e.getValue().isEmpty()) {
+                    send(e.getKey(), e.getValue().drain());
+                }
+            }
+        } catch (Exception ex) {
+            logger.error("Failed to send balances to backends", ex);
+        }
+    }
+
+    private void send(String backend, long[] keys) {
+        Optional<RegisteredServer> target = server.getServer(backend);
+        int total = keys.length / 2;
+        for (int from = 0; from < total; from += BridgeProtocol.MAX_OPS) {
+            int to = Math.min(total, from + BridgeProtocol.MAX_OPS);
+            BridgeWriter frame = new BridgeWriter(null);
+            for (int i = from; i < to; i++) {
+                long msb = keys[2 * i];
+                long lsb = keys[2 * i + 1];
+                frame.add(BridgeProtocol.OP_BALANCE, msb, lsb, ledger.get(msb, lsb));
+            }
+            // Plugin messages travel over a player's connection; a backend with nobody on it cannot be reached
+            if (target.isPresent() && target.get().sendPluginMessage(VelocityBridgeListener.CHANNEL, frame.toByteArray())) {
+                metrics.balanceFramesSent.increment();
+                metrics.balancesSent.add(frame.count());
+            } else {
+                metrics.balancesUndelivered.add(frame.count());
+            }
+        }
+    }
+
+    void shutdown() {
+        sender.shutdownNow();
+    }
+}
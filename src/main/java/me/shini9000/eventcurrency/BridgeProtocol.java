@@ -0,0 +1,82 @@
+package me.shini9000.eventcurrency;
+
+/**
+ * Wire format of the {@code eventcurrency:cmd} plugin-message channel.
+ *
+ * <p>Version 1 (legacy, one operation per message) is four {@code DataOutput} fields:
+ * {@code writeUTF(action) writeUTF(uuid) writeLong(amount) writeUTF(executor)}.
+ *
+ * <p>Version 2 carries a batch in one frame:
+ * <pre>
+ * byte   0xEC                  (a v1 message starts with the high byte of a short string length, i.e. 0)
+ * byte   version = 2
+ * byte   flags                 bit 0: executor name present, bit 1: operation IDs present
+ * [varint length, UTF-8 bytes] executor name
+ * varint operation count
+ * count x { byte opcode, long uuid msb, long uuid lsb, varint amount, [long operation id] }
+ * </pre>
+ * Longs are big-endian, varints are unsigned LEB128.
+ *
+ * <p>An operation ID makes an operation idempotent: the proxy applies each ID at most once within
+ * its dedupe window (per backend), so a backend may safely resend a frame it got no answer for.
+ * IDs should be random or otherwise unique per backend; 0 means the operation has none.
+ *
+ * <p>{@link #OP_GIVE_ALL} and {@link #OP_TAKE_ALL} apply to every player connected to the backend
+ * that sent the frame, as one batch; their UUID should be zero and is ignored.
+ *
+ * <p>{@link #OP_QUERY} asks for a player's balance (amount 0). The proxy answers on the same channel
+ * with a frame of {@link #OP_BALANCE} operations, whose amount is the player's current balance.
+ * Answers are gathered for a few milliseconds and sent together, and the same frames also push a
+ * player's new balance to the backend they are on whenever it changes, so backends never need to poll.
+ */
+final class BridgeProtocol {
+
+    static final byte MAGIC = (byte) 0xEC;
+    static final int VERSION_LEGACY = 1;
+    static final int VERSION_BATCH = 2;
+
+    static final int FLAG_EXECUTOR = 1;
+    static final int FLAG_OPERATION_IDS = 2;
+
+    static final int OP_GIVE = 1;
+    static final int OP_TAKE = 2;
+    static final int OP_SET = 3;
+    static final int OP_GIVE_ALL = 4;
+    static final int OP_TAKE_ALL = 5;
+    static final int OP_QUERY = 6;
+    /** Proxy to backend only. */
+    static final int OP_BALANCE = 7;
+
+    /** Upper bound on operations in one frame; a lobby is far smaller than this. */
+    static final int MAX_OPS = 4096;
+    static final int MAX_NAME_BYTES = 64;
+
+    private BridgeProtocol() {
+    }
+
+    static String opcodeName(int opcode) {
+        return switch (opcode) {
+            case OP_GIVE -> "give";
+            case OP_TAKE -> "take";
+            case OP_SET -> "set";
+            case OP_GIVE_ALL -> "giveall";
+            case OP_TAKE_ALL -> "takeall";
+            case OP_QUERY -> "query";
+            case OP_BALANCE -> "balance";
+            default -> "op#" + opcode;
+        };
+    }
+
+    /** Maps a v1 action string to its opcode, or -1 if unknown. */
+    static int legacyOpcode(String action) {
+        return switch (action) {
+            case "give" -> OP_GIVE;
+            case "take", "remove" -> OP_TAKE;
+            case "set" -> OP_SET;
+            case "giveall" -> OP_GIVE_ALL;
+            case "takeall" -> OP_TAKE_ALL;
+            case "query" -> OP_QUERY;
+            default -> -1;
+        };
+    }
+}
@@ -0,0 +1,139 @@
+package me.shini9000.eventcurrency;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+/**
+ * Per-backend limits on the bridge, checked on the event thread before anything is queued: one
+ * {@link TokenBucket} for messages and one per action, so a backend flooding queries cannot use up
+ * its allowance for gives. Actions may burst to twice their per-second rate, and a message with
+ * more operations of one action than that is always refused. Warnings about a backend go through {@link #warn}, which lets a few
+ * through and then one every {@code LOG_INTERVAL_SECONDS}, so a misbehaving backend cannot fill the
+ * log either.
+ */
+final class BridgeRateLimiter {
+
+    private static final long LOG_INTERVAL_SECONDS = 10L;
+    private static final int LOG_BURST = 5;
+
+    /** Buckets and log sampling for one backend server. */
+    static final class Backend {
+        final String name;
+        private final TokenBucket messages;
+        private final TokenBucket[] actions = new TokenBucket[BridgeProtocol.OP_BALANCE + 1]; // by opcode
+        private final TokenBucket logs = TokenBucket.every(LOG_INTERVAL_SECONDS, TimeUnit.SECONDS, LOG_BURST);
+        private final AtomicLong suppressed = new AtomicLong();
+
+        private Backend(String name, EventCurrencyConfig config, boolean enabled) {
+            this.name = name;
+            this.messages = bucket(enabled, config.getLong("bridge.rate-limit.messages-per-second", 200L),
+                    config.getLong("bridge.rate-limit.messages-burst", 400L));
+            for (int op = BridgeProtocol.OP_GIVE; op <= BridgeProtocol.OP_QUERY; op++) {
+                long perSecond = config.getLong("bridge.rate-limit." + BridgeProtocol.opcodeName(op), defaultRate(op));
+                actions[op] = bucket(enabled, perSecond, 2 * perSecond);
+            }
+        }
+
+        private static TokenBucket bucket(boolean enabled, long perSecond, long burst) {
+            return TokenBucket.perSecond(enabled ? perSecond : 0L, burst);
+        }
+    }
+
+    private final EventCurrencyConfig config;
+    private final boolean enabled;
+    private final Logger logger;
+    private final Metrics metrics;
+    private final ConcurrentHashMap<String, Backend> backends = new ConcurrentHashMap<>();
+
+    BridgeRateLimiter(EventCurrencyConfig config, Logger logger, Metrics metrics) {
+        this.config = config;
+        this.enabled = config.getBoolean("bridge.rate-limit.enabled", true);
+        this.logger = logger;
+        this.metrics = metrics;
+    }
+
+    private static long defaultRate(int opcode) {
+        return switch (opcode) {
+            case BridgeProtocol.OP_GIVE, BridgeProtocol.OP_TAKE -> 1000L;
+            case BridgeProtocol.OP_SET -> 100L;
+            case BridgeProtocol.OP_GIVE_ALL, BridgeProtocol.OP_TAKE_ALL -> 5L;
+            case BridgeProtocol.OP_QUERY -> 2000L;
+            default -> 0L;
+        };
+    }
+
+    Backend backend(String name) {
+        Backend backend = backends.get(name); // no lambda allocated once the backend is known
+        return backend != null ? backend : backends.computeIfAbsent(name, n -> new Backend(n, config, enabled));
+    }
+
+    /** Takes one message from the backend's allowance; checked before the message is decoded. */
+    boolean admitMessage(Backend backend) {
+        if (backend.messages.tryAcquire(1)) {
+            return true;
+        }
+        metrics.bridgeRateLimitedMessages.increment();
+        warn(backend, "Backend {} is sending bridge messages faster than bridge.rate-limit allows; dropping them",
+                backend.name);
+        return false;
+    }
+
+    /**
+     * Takes every operation in the frame from its action's allowance, all or nothing, and leaves the
+     * frame rewound. Unknown opcodes cost nothing here; the handler refuses them.
+     */
+    boolean admitOperations(Backend backend, BridgeReader frame) {
+        TokenBucket[] actions = backend.actions;
+        int[] counts = new int[actions.length];
+        while (frame.next()) {
+            int op = frame.opcode();
+            if (op > 0 && op < counts.length && actions[op] != null) {
+                counts[op]++;
+            }
+        }
+        frame.reset();
+        long now = System.nanoTime();
+        for (int op = 1; op < counts.length; op++) {
+            if (counts[op] == 0 || actions[op].tryAcquire(counts[op], now)) {
+                continue;
+            }
+            for (int taken = 1; taken < op; taken++) {
+                if (counts[taken] > 0) {
+                    actions[taken].refund(counts[taken]);
+                }
+            }
+            metrics.bridgeRateLimitedOps.add(frame.count());
+            warn(backend, "Backend {} exceeded bridge.rate-limit.{}; dropping a message of {} operation(s)",
+                    backend.name, BridgeProtocol.opcodeName(op), frame.count());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Logs a warning about the backend unless it has had its share recently; the next one that gets
+     * through says how many were held back in between. A trailing Throwable is logged with its stack trace.
+     */
+    void warn(Backend backend, String message, Object... args) {
+        if (!backend.logs.tryAcquire(1)) {
+            backend.suppressed.incrementAndGet();
+            metrics.bridgeLogsSuppressed.increment();
+            return;
+        }
+        long held = backend.suppressed.getAndSet(0L);
+        if (held == 0L) {
+            logger.warn(message, args);
+        } else {
+            // The count goes before a trailing Throwable, which slf4j only treats as one in last place
+            int at = args.length > 0 && args[args.length - 1] instanceof Throwable ? args.length - 1 : args.length;
+            Object[] withHeld = new Object[args.length + 1];
+            System.arraycopy(args, 0, withHeld, 0, at);
+            withHeld[at] = held;
+            System.arraycopy(args, at, withHeld, at + 1, args.length - at);
+            logger.warn(message + " ({} similar warnings suppressed)", withHeld);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package me.shini9000.eventcurrency;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Cursor over one bridge message, reading fields straight out of the {@code byte[]} the event
+ * handed us. The whole frame is validated up front so a malformed message is rejected before
+ * any of its operations is applied.
+ *
+ * <pre>
+ * BridgeReader in = BridgeReader.read(data);
+ * while (in.next()) { apply(in.opcode(), in.msb(), in.lsb(), in.amount()); }
+ * </pre>
+ */
+final class BridgeReader {
+
+    private static final VarHandle LONG_BE =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final byte[] data;
+    private final int version;
+    private final String executor;
+    private final boolean operationIds;
+    private final int count;
+    private final int firstOp;
+
+    private int pos;
+    private int index;
+    private int opcode;
+    private long msb;
+    private long lsb;
+    private long amount;
+    private long operationId;
+
+    // v1 messages are decoded eagerly into the single op
+    private final int legacyOpcode;
+    private final UUID legacyTarget;
+    private final long legacyAmount;
+
+    private BridgeReader(byte[] data, int version, String executor, boolean operationIds, int count, int firstOp,
+                         int legacyOpcode, UUID legacyTarget, long legacyAmount) {
+        this.data = data;
+        this.version = version;
+        this.executor = executor;
+        this.operationIds = operationIds;
+        this.count = count;
+        this.firstOp = firstOp;
+        this.pos = firstOp;
+        this.legacyOpcode = legacyOpcode;
+        this.legacyTarget = legacyTarget;
+        this.legacyAmount = legacyAmount;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the message is truncated or otherwise malformed
+     */
+    static BridgeReader read(byte[] data) {
+        if (data.length > 0 && data[0] == BridgeProtocol.MAGIC) {
+            return readBatch(data);
+        }
+        return readLegacy(data);
+    }
+
+    private static BridgeReader readBatch(byte[] data) {
+        if (data.length < 3) {
+            throw new IllegalArgumentException("truncated header");
+        }
+        int version = data[1] & 0xFF;
+        if (version != BridgeProtocol.VERSION_BATCH) {
+            throw new IllegalArgumentException("unsupported protocol version " + version);
+        }
+        int flags = data[2] & 0xFF;
+        int p = 3;
+        String executor = "";
+        if ((flags & BridgeProtocol.FLAG_EXECUTOR) != 0) {
+            long len = varLong(data, p);
+            p = skipVarLong(data, p);
+            if (len < 0 || len > BridgeProtocol.MAX_NAME_BYTES || p + len > data.length) {
+                throw new IllegalArgumentException("bad executor name length " + len);
+            }
+            executor = new String(data, p, (int) len, StandardCharsets.UTF_8);
+            p += (int) len;
+        }
+        long count = varLong(data, p);
+        p = skipVarLong(data, p);
+        if (count < 0 || count > BridgeProtocol.MAX_OPS) {
+            throw new IllegalArgumentException("too many operations: " + count);
+        }
+        boolean operationIds = (flags & BridgeProtocol.FLAG_OPERATION_IDS) != 0;
+        int firstOp = p;
+        for (int i = 0; i < count; i++) {
+            if (p + 17 > data.length) {
+                throw new IllegalArgumentException("truncated operation " + i);
+            }
+            checkAmount(data[p] & 0xFF, varLong(data, p + 17), i);
+            p = skipVarLong(data, p + 17);
+            if (operationIds) {
+                if (p + 8 > data.length) {
+                    throw new IllegalArgumentException("truncated operation " + i);
+                }
+                p += 8;
+            }
+        }
+        if (p != data.length) {
+            throw new IllegalArgumentException((data.length - p) + " trailing bytes");
+        }
+        return new BridgeReader(data, version, executor, operationIds, (int) count, firstOp, 0, null, 0L);
+    }
+
+    private static BridgeReader readLegacy(byte[] data) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            String action = in.readUTF();
+            UUID target = UUID.fromString(in.readUTF());
+            long amount = in.readLong();
+            String executor = in.readUTF();
+            int opcode = BridgeProtocol.legacyOpcode(action);
+            checkAmount(opcode, amount, 0);
+            return new BridgeReader(data, BridgeProtocol.VERSION_LEGACY, executor, false, 1, 0,
+                    opcode, target, amount);
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("truncated legacy message", ex);
+        }
+    }
+
+    /** Gives and takes must move something; a set may be 0 but never negative. */
+    private static void checkAmount(int opcode, long amount, int index) {
+        boolean valid = switch (opcode) {
+            case BridgeProtocol.OP_GIVE, BridgeProtocol.OP_TAKE,
+                 BridgeProtocol.OP_GIVE_ALL, BridgeProtocol.OP_TAKE_ALL -> amount > 0;
+            default -> amount >= 0;
+        };
+        if (!valid) {
+            throw new IllegalArgumentException("bad amount " + amount + " in " + BridgeProtocol.opcodeName(opcode)
+                    + " operation " + index);
+        }
+    }
+
+    // --------------- Cursor ---------------
+
+    /** Advances to the next operation; false once all have been read. */
+    boolean next() {
+        if (index >= count) {
+            return false;
+        }
+        index++;
+        if (version == BridgeProtocol.VERSION_LEGACY) {
+            opcode = legacyOpcode;
+            msb = legacyTarget.getMostSignificantBits();
+            lsb = legacyTarget.getLeastSignificantBits();
+            amount = legacyAmount;
+            return true;
+        }
+        opcode = data[pos] & 0xFF;
+        msb = (long) LONG_BE.get(data, pos + 1);
+        lsb = (long) LONG_BE.get(data, pos + 9);
+        amount = varLong(data, pos + 17);
+        pos = skipVarLong(data, pos + 17);
+        if (operationIds) {
+            operationId = (long) LONG_BE.get(data, pos);
+            pos += 8;
+        }
+        return true;
+    }
+
+    /** Rewinds to before the first operation. */
+    void reset() {
+        index = 0;
+        pos = firstOp;
+    }
+
+    int version() {
+        return version;
+    }
+
+    String executor() {
+        return executor;
+    }
+
+    int count() {
+        return count;
+    }
+
+    /** Opcode of the current operation; -1 for an unrecognised v1 action. */
+    int opcode() {
+        return opcode;
+    }
+
+    long msb() {
+        return msb;
+    }
+
+    long lsb() {
+        return lsb;
+    }
+
+    long amount() {
+        return amount;
+    }
+
+    /** ID of the current operation, or 0 if it has none (always 0 for v1 messages). */
+    long operationId() {
+        return operationId;
+    }
+
+    // --------------- Varints ---------------
+
+    /** Decodes the varint starting at {@code p}. */
+    static long varLong(byte[] data, int p) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (p >= data.length) {
+                throw new IllegalArgumentException("truncated varint");
+            }
+            byte b = data[p++];
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    /** Index just past the varint starting at {@code p}. */
+    static int skipVarLong(byte[] data, int p) {
+        int end = Math.min(data.length, p + 10);
+        while (p < end) {
+            if (data[p++] >= 0) {
+                return p;
+            }
+        }
+        throw new IllegalArgumentException("truncated varint");
+    }
+}
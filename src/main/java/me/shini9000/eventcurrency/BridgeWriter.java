@@ -0,0 +1,121 @@
+package me.shini9000.eventcurrency;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Builds a version 2 bridge frame. Backends can copy this class verbatim; the proxy uses it for
+ * anything it sends back over the channel.
+ *
+ * <pre>
+ * byte[] frame = new BridgeWriter("Steve")
+ *         .add(BridgeProtocol.OP_GIVE, uuid, 10)
+ *         .add(BridgeProtocol.OP_GIVE, other, 10)
+ *         .toByteArray();
+ * </pre>
+ *
+ * With operation IDs enabled every operation carries one, and a resent frame is applied only once:
+ * <pre>
+ * byte[] frame = new BridgeWriter("Steve", true)
+ *         .add(BridgeProtocol.OP_GIVE, uuid, 10, random.nextLong())
+ *         .toByteArray();
+ * </pre>
+ */
+final class BridgeWriter {
+
+    private final byte[] executor;
+    private final boolean operationIds;
+    private byte[] ops = new byte[64];
+    private int size;
+    private int count;
+
+    BridgeWriter(String executor) {
+        this(executor, false);
+    }
+
+    BridgeWriter(String executor, boolean operationIds) {
+        this.operationIds = operationIds;
+        this.executor = executor == null ? new byte[0] : executor.getBytes(StandardCharsets.UTF_8);
+        if (this.executor.length > BridgeProtocol.MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("executor name too long");
+        }
+    }
+
+    BridgeWriter add(int opcode, UUID target, long amount) {
+        return add(opcode, target.getMostSignificantBits(), target.getLeastSignificantBits(), amount);
+    }
+
+    BridgeWriter add(int opcode, UUID target, long amount, long operationId) {
+        return add(opcode, target.getMostSignificantBits(), target.getLeastSignificantBits(), amount, operationId);
+    }
+
+    BridgeWriter add(int opcode, long msb, long lsb, long amount) {
+        return add(opcode, msb, lsb, amount, 0L);
+    }
+
+    BridgeWriter add(int opcode, long msb, long lsb, long amount, long operationId) {
+        if (operationId != 0L && !operationIds) {
+            throw new IllegalStateException("operation IDs are not enabled for this frame");
+        }
+        if (amount < 0) {
+            throw new IllegalArgumentException("amount must not be negative");
+        }
+        if (count == BridgeProtocol.MAX_OPS) {
+            throw new IllegalStateException("frame is full");
+        }
+        ensure(27 + 8);
+        ops[size++] = (byte) opcode;
+        size = putLong(ops, size, msb);
+        size = putLong(ops, size, lsb);
+        size = putVarLong(ops, size, amount);
+        if (operationIds) {
+            size = putLong(ops, size, operationId);
+        }
+        count++;
+        return this;
+    }
+
+    int count() {
+        return count;
+    }
+
+    byte[] toByteArray() {
+        byte[] out = new byte[3 + 10 + executor.length + 10 + size];
+        int p = 0;
+        out[p++] = BridgeProtocol.MAGIC;
+        out[p++] = BridgeProtocol.VERSION_BATCH;
+        out[p++] = (byte) ((executor.length > 0 ? BridgeProtocol.FLAG_EXECUTOR : 0)
+                | (operationIds ? BridgeProtocol.FLAG_OPERATION_IDS : 0));
+        if (executor.length > 0) {
+            p = putVarLong(out, p, executor.length);
+            System.arraycopy(executor, 0, out, p, executor.length);
+            p += executor.length;
+        }
+        p = putVarLong(out, p, count);
+        System.arraycopy(ops, 0, out, p, size);
+        return Arrays.copyOf(out, p + size);
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > ops.length) {
+            ops = Arrays.copyOf(ops, Math.max(ops.length * 2, size + extra));
+        }
+    }
+
+    private static int putLong(byte[] buf, int p, long v) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buf[p++] = (byte) (v >>> shift);
+        }
+        return p;
+    }
+
+    static int putVarLong(byte[] buf, int p, long v) {
+        while ((v & ~0x7FL) != 0) {
+            buf[p++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[p++] = (byte) v;
+        return p;
+    }
+}
@@ -0,0 +1,92 @@
+package me.shini9000.eventcurrency;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+
+/**
+ * Incremental checkpoints: each delta segment is a {@link LedgerSnapshot}-format file holding only
+ * the accounts that changed since the previous checkpoint, named after the journal generation it
+ * covers up to. Loading applies the base snapshot, then every newer delta in order.
+ */
+final class DeltaSegments {
+
+    private static final Pattern FILE_NAME = Pattern.compile("delta-(\\d+)\\.dat");
+
+    private final File directory;
+    private final Logger logger;
+
+    DeltaSegments(File directory, Logger logger) {
+        this.directory = directory;
+        this.logger = logger;
+    }
+
+    void write(long generation, Consumer<BalanceVisitor> source) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create delta folder: " + directory.getAbsolutePath());
+        }
+        LedgerSnapshot.write(fileFor(generation), generation, source);
+    }
+
+    /**
+     * Applies every delta newer than {@code baseGeneration}, oldest first.
+     *
+     * @return the generation covered by the newest delta applied, or {@code baseGeneration}
+     */
+    long readAfter(long baseGeneration, BalanceVisitor visitor) throws IOException {
+        long covered = baseGeneration;
+        for (long gen : generations()) {
+            if (gen > baseGeneration) {
+                covered = LedgerSnapshot.read(fileFor(gen), visitor);
+            }
+        }
+        return covered;
+    }
+
+    /** Deletes deltas folded into a base snapshot of the given generation. */
+    void deleteUpTo(long generation) {
+        for (long gen : generations()) {
+            if (gen <= generation && !fileFor(gen).delete()) {
+                logger.warn("Could not delete merged delta segment {}", gen);
+            }
+        }
+    }
+
+    int count() {
+        return generations().size();
+    }
+
+    long totalBytes() {
+        long total = 0;
+        for (long gen : generations()) {
+            total += fileFor(gen).length();
+        }
+        return total;
+    }
+
+    private List<Long> generations() {
+        List<Long> out = new ArrayList<>();
+        String[] names = directory.list();
+        if (names == null) {
+            return out;
+        }
+        for (String name : names) {
+            Matcher m = FILE_NAME.matcher(name);
+            if (m.matches()) {
+                out.add(Long.parseLong(m.group(1)));
+            }
+        }
+        out.sort(null);
+        return out;
+    }
+
+    private File fileFor(long generation) {
+        return new File(directory, "delta-" + generation + ".dat");
+    }
+}
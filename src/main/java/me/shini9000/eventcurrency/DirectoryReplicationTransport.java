@@ -0,0 +1,260 @@
+package me.shini9000.eventcurrency;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+
+/**
+ * Replication through a directory every proxy can reach (a shared volume, or just a local folder
+ * when the proxies run on one machine). Each proxy appends its frames to {@code <node>.<generation>.log}
+ * there as {@code int length, bytes, int crc32} records and polls the other proxies' newest logs
+ * from where it last stopped reading.
+ *
+ * <p>Every generation starts with a {@link ReplicationTransport.Receiver#snapshot} of all accounts,
+ * so a reader that finds a newer generation reads it from the start and skips whatever was left of
+ * the older one. A proxy starts a generation whenever it starts, and again once the changes after
+ * the snapshot outgrow {@code max-log-bytes}; then it deletes its older ones. Its own logs are never
+ * read back: the {@link Replicator} keeps its state itself.
+ */
+final class DirectoryReplicationTransport implements ReplicationTransport {
+
+    private static final String SUFFIX = ".log";
+
+    private final File directory;
+    private final String node;
+    private final long pollMillis;
+    private final long maxLogBytes;
+    private final Logger logger;
+    private final Metrics metrics;
+    private final Map<String, long[]> positions = new HashMap<>(); // node -> generation, offset; poll thread only
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "EventCurrency-Replication-Poll");
+        t.setDaemon(true);
+        return t;
+    });
+    private Receiver receiver;
+    // Written at start and then only on the replication thread
+    private FileChannel out;
+    private long generation;
+    private long snapshotBytes;
+
+    DirectoryReplicationTransport(File directory, String node, long pollMillis, long maxLogBytes, Logger logger,
+                                  Metrics metrics) {
+        this.directory = directory;
+        this.node = node;
+        this.pollMillis = Math.max(10L, pollMillis);
+        this.maxLogBytes = Math.max(1L << 20, maxLogBytes);
+        this.logger = logger;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public String name() {
+        return "directory";
+    }
+
+    @Override
+    public void start(Receiver receiver) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory.getAbsolutePath());
+        }
+        this.receiver = receiver;
+        File[] own = directory.listFiles((dir, fileName) -> node.equals(nodeOf(fileName)));
+        for (File log : own == null ? new File[0] : own) {
+            generation = Math.max(generation, generationOf(log.getName()));
+        }
+        rotate();
+        poll();
+        poller.scheduleWithFixedDelay(() -> {
+            try {
+                poll();
+            } catch (Exception ex) {
+                logger.warn("Failed to read replication logs in {}: {}", directory.getName(), ex.getMessage());
+            }
+        }, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+        logger.info("Replicating through {}", directory.getAbsolutePath());
+    }
+
+    // One write per record, so a reader never sees one record's bytes interleaved with another's
+    @Override
+    public void publish(byte[] frame) {
+        try {
+            write(out, frame);
+            if (out.size() > snapshotBytes + maxLogBytes) {
+                rotate();
+            }
+        } catch (IOException | RuntimeException ex) {
+            metrics.replicationFramesDropped.increment();
+            logger.warn("Failed to append to the replication log: {}", ex.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        poller.shutdownNow();
+        try {
+            poller.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (out != null) {
+            try {
+                out.force(false);
+                out.close();
+            } catch (IOException ex) {
+                logger.warn("Failed to close the replication log: {}", ex.getMessage());
+            }
+        }
+    }
+
+    // --------------- Writing ---------------
+
+    // The new generation is complete on disk before the older ones go, so readers always find a full one
+    private void rotate() throws IOException {
+        long next = generation + 1;
+        File file = new File(directory, node + "." + next + SUFFIX);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            for (Iterator<byte[]> frames = receiver.snapshot(); frames.hasNext(); ) {
+                write(channel, frames.next());
+            }
+            channel.force(false);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            if (!file.delete()) {
+                logger.warn("Failed to delete the incomplete replication log {}", file.getName());
+            }
+            throw ex;
+        }
+        FileChannel previous = out;
+        out = channel;
+        generation = next;
+        snapshotBytes = channel.size();
+        if (previous != null) {
+            previous.close();
+        }
+        File[] old = directory.listFiles((dir, fileName) -> node.equals(nodeOf(fileName))
+                && generationOf(fileName) < next);
+        for (File log : old == null ? new File[0] : old) {
+            if (!log.delete()) {
+                logger.warn("Failed to delete the old replication log {}", log.getName());
+            }
+        }
+    }
+
+    private static void write(FileChannel channel, byte[] frame) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(frame);
+        ByteBuffer record = ByteBuffer.allocate(frame.length + 8);
+        record.putInt(frame.length).put(frame).putInt((int) crc.getValue()).flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+    }
+
+    // --------------- Reading ---------------
+
+    private void poll() throws IOException {
+        File[] logs = directory.listFiles((dir, fileName) -> nodeOf(fileName) != null);
+        if (logs == null) {
+            return;
+        }
+        Map<String, File> newest = new HashMap<>();
+        for (File log : logs) {
+            String other = nodeOf(log.getName());
+            File current = newest.get(other);
+            if (!other.equals(node) && (current == null || generationOf(log.getName()) > generationOf(current.getName()))) {
+                newest.put(other, log);
+            }
+        }
+        for (Map.Entry<String, File> e : newest.entrySet()) {
+            File log = e.getValue();
+            long gen = generationOf(log.getName());
+            long[] position = positions.computeIfAbsent(e.getKey(), k -> new long[] { gen, 0L });
+            if (gen != position[0]) {
+                position[0] = gen; // a fresh snapshot; the rest of the older generation is covered by it
+                position[1] = 0L;
+            }
+            if (log.length() <= position[1]) {
+                continue;
+            }
+            try (FileChannel in = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+                position[1] = read(in, position[1], log.getName());
+            } catch (NoSuchFileException ignored) {
+                // rotated away since the listing; the next poll picks up its successor
+            }
+        }
+    }
+
+    /** Delivers every whole record from {@code offset} on and returns where the first incomplete one starts. */
+    private long read(FileChannel in, long offset, String name) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        long size = in.size();
+        while (offset + 8 <= size) {
+            header.clear();
+            readFully(in, header, offset);
+            int length = header.getInt(0);
+            if (length <= 0 || length > Replicator.MAX_FRAME_BYTES) {
+                logger.warn("Stopped reading {} at byte {}: bad record length {}", name, offset, length);
+                return offset;
+            }
+            if (offset + 8 + length > size) {
+                break; // still being written
+            }
+            ByteBuffer body = ByteBuffer.allocate(length + 4);
+            readFully(in, body, offset + 4);
+            byte[] frame = new byte[length];
+            body.get(0, frame);
+            CRC32 crc = new CRC32();
+            crc.update(frame);
+            offset += 8 + length;
+            if ((int) crc.getValue() != body.getInt(length)) {
+                metrics.replicationFramesDropped.increment();
+                logger.warn("Skipping a corrupt record in {} before byte {}", name, offset);
+                continue;
+            }
+            receiver.receive(frame);
+        }
+        return offset;
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+    }
+
+    /** The node a {@code <node>.<generation>.log} file belongs to, or null for any other file. */
+    private static String nodeOf(String fileName) {
+        if (!fileName.endsWith(SUFFIX)) {
+            return null;
+        }
+        String stem = fileName.substring(0, fileName.length() - SUFFIX.length());
+        int dot = stem.lastIndexOf('.');
+        return dot > 0 && generationOf(fileName) >= 0 ? stem.substring(0, dot) : null;
+    }
+
+    private static long generationOf(String fileName) {
+        String stem = fileName.substring(0, fileName.length() - SUFFIX.length());
+        try {
+            return Long.parseLong(stem.substring(stem.lastIndexOf('.') + 1));
+        } catch (NumberFormatException ex) {
+            return -1L;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package me.shini9000.eventcurrency;
+
+import java.util.Arrays;
+
+/**
+ * Concurrent set of accounts changed since the last checkpoint.
+ *
+ * Split into independently locked stripes of open-addressing (msb, lsb) pairs. {@link #drain}
+ * swaps each stripe for an empty one under that stripe's lock and copies the old contents out
+ * afterwards, so marking keys never waits on a checkpoint that is writing them out.
+ */
+final class DirtyKeySet {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Stripe[] stripes;
+    private final int stripeShift;
+
+    DirtyKeySet() {
+        this(32);
+    }
+
+    DirtyKeySet(int stripeCount) {
+        int count = Integer.highestOneBit(Math.max(1, stripeCount - 1) << 1);
+        this.stripes = new Stripe[count];
+        this.stripeShift = 64 - Integer.numberOfTrailingZeros(count);
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    void add(long msb, long lsb) {
+        long h = BalanceTable.hash(msb, lsb);
+        Stripe stripe = stripes[(int) (h >>> stripeShift)];
+        synchronized (stripe) {
+            stripe.add(h, msb, lsb);
+        }
+    }
+
+    boolean contains(long msb, long lsb) {
+        long h = BalanceTable.hash(msb, lsb);
+        Stripe stripe = stripes[(int) (h >>> stripeShift)];
+        synchronized (stripe) {
+            return stripe.contains(h, msb, lsb);
+        }
+    }
+
+    int size() {
+        int total = 0;
+        for (Stripe stripe : stripes) {
+            total += stripe.size;
+        }
+        return total;
+    }
+
+    boolean isEmpty() {
+        for (Stripe stripe : stripes) {
+            if (stripe.size > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes every key and returns them as interleaved (msb, lsb) pairs.
+     * Keys added while this runs either make it into the result or stay for the next drain.
+     */
+    long[] drain() {
+        long[] out = new long[Math.max(2, size() * 2)];
+        int n = 0;
+        for (Stripe stripe : stripes) {
+            long[] keys;
+            boolean[] used;
+            synchronized (stripe) {
+                if (stripe.size == 0) {
+                    continue;
+                }
+                keys = stripe.keys;
+                used = stripe.used;
+                stripe.reset();
+            }
+            for (int i = 0; i < used.length; i++) {
+                if (used[i]) {
+                    if (n + 2 > out.length) {
+                        out = Arrays.copyOf(out, out.length * 2);
+                    }
+                    out[n++] = keys[i * 2];
+                    out[n++] = keys[i * 2 + 1];
+                }
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /** Puts back keys from a failed checkpoint. */
+    void addAll(long[] pairs) {
+        for (int i = 0; i + 1 < pairs.length; i += 2) {
+            add(pairs[i], pairs[i + 1]);
+        }
+    }
+
+    private static final class Stripe {
+        long[] keys;
+        boolean[] used;
+        int size;
+
+        Stripe() {
+            reset();
+        }
+
+        void reset() {
+            keys = new long[INITIAL_CAPACITY * 2];
+            used = new boolean[INITIAL_CAPACITY];
+            size = 0;
+        }
+
+        void add(long h, long msb, long lsb) {
+            if (size + 1 > used.length * 3 / 4) {
+                grow();
+            }
+            int mask = used.length - 1;
+            int idx = (int) h & mask;
+            while (used[idx]) {
+                if (keys[idx * 2] == msb && keys[idx * 2 + 1] == lsb) {
+                    return;
+                }
+                idx = (idx + 1) & mask;
+            }
+            used[idx] = true;
+            keys[idx * 2] = msb;
+            keys[idx * 2 + 1] = lsb;
+            size++;
+        }
+
+        boolean contains(long h, long msb, long lsb) {
+            int mask = used.length - 1;
+            int idx = (int) h & mask;
+            while (used[idx]) {
+                if (keys[idx * 2] == msb && keys[idx * 2 + 1] == lsb) {
+                    return true;
+                }
+                idx = (idx + 1) & mask;
+            }
+            return false;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            boolean[] oldUsed = used;
+            keys = new long[oldKeys.length * 2];
+            used = new boolean[oldUsed.length * 2];
+            size = 0;
+            for (int i = 0; i < oldUsed.length; i++) {
+                if (oldUsed[i]) {
+                    long msb = oldKeys[i * 2];
+                    long lsb = oldKeys[i * 2 + 1];
+                    add(BalanceTable.hash(msb, lsb), msb, lsb);
+                }
+            }
+        }
+    }
+}
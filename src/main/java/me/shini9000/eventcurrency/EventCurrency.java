@@ -1,26 +1,34 @@
 package me.shini9000.eventcurrency;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.net.URISyntaxException;
 import java.nio.file.Path;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 
 import com.google.inject.Inject;
 import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.PostLoginEvent;
 import com.velocitypowered.api.event.proxy.ProxyInitializeEvent;
 import com.velocitypowered.api.event.proxy.ProxyShutdownEvent;
 import com.velocitypowered.api.plugin.Plugin;
 import com.velocitypowered.api.plugin.annotation.DataDirectory;
+import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.api.proxy.ProxyServer;
+import com.velocitypowered.api.scheduler.ScheduledTask;
+import net.kyori.adventure.text.Component;
 import org.slf4j.Logger;
-import org.yaml.snakeyaml.DumperOptions;
-import org.yaml.snakeyaml.Yaml;
 
 @Plugin(id = "eventcurrency",
         name = "EventCurrency",
@@ -28,6 +36,8 @@ import org.yaml.snakeyaml.Yaml;
         authors = { "Shini9000" })
 public final class EventCurrency {
 
+    private static final Pattern CURRENCY_NAME = Pattern.compile("[a-z0-9_-]{1,32}");
+
     private static EventCurrency instance;
 
     private final ProxyServer server;
@@ -36,11 +46,16 @@ public final class EventCurrency {
     private final File file;
     private final String name;
 
-    // YAML-backed storage
-    private final Map<UUID, Long> balances = new ConcurrentHashMap<>();
-    private File balancesFile;
-    private volatile boolean dirty = false;
-    private volatile com.velocitypowered.api.scheduler.ScheduledTask pendingSave;
+    // Balances, journal and storage backend, one ledger per currency; the first is the default
+    private EventCurrencyConfig config;
+    private final Map<String, Ledger> ledgers = new LinkedHashMap<>();
+    private Ledger ledger;
+    private PlayerNameIndex names;
+    private final Metrics metrics = new Metrics();
+    private MetricsExporter metricsExporter;
+    private VelocityBridgeListener bridgeListener;
+    private Replicator replicator;
+    private final List<ScheduledTask> expiryTasks = new ArrayList<>();
 
     @Inject
     public EventCurrency(ProxyServer server, Logger logger, @DataDirectory Path dataFolder) {
@@ -81,8 +96,11 @@ public final class EventCurrency {
         if (!dataFolder.exists() && !dataFolder.mkdirs()) {
             logger.warn("Failed to create data folder: {}", dataFolder.getAbsolutePath());
         }
-        this.balancesFile = new File(dataFolder, "balances.yml");
-        loadBalances();
+        this.config = EventCurrencyConfig.load(dataFolder, logger);
+        openLedgers();
+        this.names = new PlayerNameIndex(dataFolder, ledger.io(), logger);
+        names.load();
+        server.getAllPlayers().forEach(p -> names.record(p.getUniqueId(), p.getUsername()));
 
         // Register command
         var commandManager = server.getCommandManager();
@@ -93,150 +111,321 @@ public final class EventCurrency {
 
         // Register plugin messaging channel and listener (for Spigot → Velocity bridge)
         server.getChannelRegistrar().register(VelocityBridgeListener.CHANNEL);
-        server.getEventManager().register(this, new VelocityBridgeListener(this));
-
-        // Periodic autosave (every 60s)
-        server.getScheduler()
-                .buildTask(this, this::autosaveIfDirty)
-                .repeat(60L, TimeUnit.SECONDS)
-                .schedule();
+        this.bridgeListener = new VelocityBridgeListener(this);
+        server.getEventManager().register(this, bridgeListener);
+
+        startMetricsExport();
+        startReplication();
+
+        // Grant expiry and decay run off the proxy's scheduler; the work itself happens on each ledger's I/O thread
+        for (Ledger l : ledgers.values()) {
+            TokenExpiry expiry = l.expiry();
+            expiryTasks.add(server.getScheduler().buildTask(this, expiry::tick)
+                    .repeat(expiry.tickMillis(), TimeUnit.MILLISECONDS)
+                    .schedule());
+        }
 
         System.out.println(this.name + " enabled");
     }
 
     public void onDisable() {
-        saveBalances(false);
+        expiryTasks.forEach(ScheduledTask::cancel);
+        if (metricsExporter != null) {
+            metricsExporter.stop();
+        }
+        if (bridgeListener != null) {
+            bridgeListener.shutdown(config.getLong("bridge.shutdown-timeout-ms", 2000L));
+        }
+        if (replicator != null) {
+            replicator.close();
+        }
+        // Every ledger saves at once and all of them share one deadline
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(config.getLong("shutdown.save-timeout-ms", 10000L));
+        ledgers.values().forEach(Ledger::beginFinalSave);
+        ledgers.values().forEach(l -> l.close(deadline));
+        if (names != null) {
+            names.close();
+        }
         System.out.println(this.name + " disabled");
     }
 
+    // The default currency keeps its data in the data folder itself, every other one under currencies/<name>/
+    private void openLedgers() {
+        for (String raw : config.getStringList("currencies.names", List.of("tokens"))) {
+            String currency = raw.toLowerCase(Locale.ROOT);
+            if (!CURRENCY_NAME.matcher(currency).matches() || ledgers.containsKey(currency)) {
+                logger.warn("Skipping currency '{}': names must be unique and 1-32 characters of a-z, 0-9, _ and -.", raw);
+                continue;
+            }
+            boolean first = ledgers.isEmpty();
+            File folder = first ? dataFolder : new File(new File(dataFolder, "currencies"), currency);
+            if (!folder.exists() && !folder.mkdirs()) {
+                logger.warn("Failed to create data folder: {}", folder.getAbsolutePath());
+            }
+            ledgers.put(currency, openLedger(first ? null : currency, folder,
+                    config.overlay("currencies.overrides." + currency)));
+        }
+        if (ledgers.isEmpty()) {
+            ledgers.put("tokens", openLedger(null, dataFolder, config));
+        }
+        this.ledger = ledgers.values().iterator().next();
+    }
+
+    // Picks the backend from storage.type; the file store is also the import source for a fresh database
+    private Ledger openLedger(String currency, File folder, EventCurrencyConfig config) {
+        String type = config.getString("storage.type", "file").toLowerCase(Locale.ROOT);
+        int mergeAfterDeltas = config.getInt("storage.merge-after-deltas", 16);
+        LedgerStorage storage;
+        LedgerStorage importFrom = null;
+        switch (type) {
+            case "yaml" -> storage = new YamlLedgerStorage(folder, logger);
+            case "h2", "sql" -> {
+                try {
+                    storage = new SqlLedgerStorage(folder,
+                            config.getInt("storage.h2.pool-size", 4),
+                            config.getInt("storage.h2.batch-size", 1000),
+                            config.getBoolean("storage.h2.lazy-load", true), logger);
+                    importFrom = new FileLedgerStorage(folder, mergeAfterDeltas, logger);
+                } catch (Exception ex) {
+                    logger.error("Failed to open the H2 database, using file storage instead", ex);
+                    storage = new FileLedgerStorage(folder, mergeAfterDeltas, logger);
+                }
+            }
+            default -> {
+                if (!type.equals("file")) {
+                    logger.warn("Unknown storage.type '{}', using file storage.", type);
+                }
+                storage = new FileLedgerStorage(folder, mergeAfterDeltas, logger);
+            }
+        }
+        Ledger opened = new Ledger(currency, folder, config, logger, storage, metrics);
+        opened.open(importFrom);
+        opened.setPinned((msb, lsb) -> server.getPlayer(new UUID(msb, lsb)).isPresent());
+        return opened;
+    }
+
+    private void startMetricsExport() {
+        boolean toFile = config.getBoolean("metrics.file-export", false);
+        int port = config.getInt("metrics.http-port", 0);
+        if (!toFile && port <= 0) {
+            return;
+        }
+        this.metricsExporter = new MetricsExporter(metrics, logger);
+        if (toFile) {
+            metricsExporter.startFile(new File(dataFolder, "metrics.prom"),
+                    config.getLong("metrics.file-interval-seconds", 15L), ledger.io());
+        }
+        if (port > 0) {
+            metricsExporter.startHttp(port);
+        }
+    }
+
+    // Off unless replication.enabled; every proxy lists the same replication.nodes in the same order
+    private void startReplication() {
+        if (!config.getBoolean("replication.enabled", false)) {
+            return;
+        }
+        String node = config.getString("replication.node-id", "");
+        List<String> nodes = config.getStringList("replication.nodes", List.of());
+        String type = config.getString("replication.transport", "tcp").toLowerCase(Locale.ROOT);
+        ReplicationTransport transport;
+        if (type.equals("directory")) {
+            transport = new DirectoryReplicationTransport(
+                    new File(config.getString("replication.directory.path", "replication")), node,
+                    config.getLong("replication.directory.poll-ms", 100L),
+                    config.getLong("replication.directory.max-log-bytes", 64L * 1024 * 1024), logger, metrics);
+        } else {
+            if (!type.equals("tcp")) {
+                logger.warn("Unknown replication.transport '{}', using tcp.", type);
+            }
+            transport = new TcpReplicationTransport(
+                    config.getString("replication.tcp.bind", "127.0.0.1"),
+                    config.getInt("replication.tcp.port", 25590),
+                    config.getString("replication.tcp.secret", ""),
+                    config.getStringList("replication.tcp.peers", List.of()),
+                    config.getInt("replication.tcp.queue-capacity", 1024), logger, metrics);
+        }
+        Replicator started;
+        try {
+            started = new Replicator(node, nodes, ledgers, new File(dataFolder, "replication"), transport,
+                    config.getLong("replication.flush-ms", 50L), logger, metrics);
+        } catch (IllegalArgumentException ex) {
+            logger.error("Replication is misconfigured, this proxy's balances stay local: {}", ex.getMessage());
+            transport.close();
+            return;
+        }
+        try {
+            started.start();
+            this.replicator = started;
+            if (!node.equals(nodes.get(0))) {
+                ledgers.values().forEach(l -> l.expiry().setDecayHere(false)); // or idle balances would decay once per proxy
+            }
+        } catch (IOException ex) {
+            logger.error("Failed to start replication; this proxy's balances stay local", ex);
+            started.close();
+        }
+    }
+
+    // Remember the player's name for offline lookups and, with lazy storage, fetch their balance before they can spend it
+    @Subscribe
+    public void onPostLogin(PostLoginEvent event) {
+        UUID id = event.getPlayer().getUniqueId();
+        if (names != null) {
+            names.record(id, event.getPlayer().getUsername());
+        }
+        for (Ledger l : ledgers.values()) {
+            l.preload(id.getMostSignificantBits(), id.getLeastSignificantBits());
+        }
+    }
+
     // --------------- Currency API (proxy-side) ---------------
+    // Methods without a currency act on the default one, the first in currencies.names.
+
+    /** The configured currencies, the default first. */
+    public List<String> getCurrencies() {
+        return List.copyOf(ledgers.keySet());
+    }
 
     public long getBalance(UUID playerId) {
-        return balances.getOrDefault(playerId, 0L);
+        return getBalance(ledger, playerId);
+    }
+
+    public long getBalance(String currency, UUID playerId) {
+        return getBalance(require(currency), playerId);
     }
 
-    // Add this helper method inside the class
-    private void requestSaveDebounced(long delayMs) {
-        if (pendingSave != null) return; // one pending save is enough
-        pendingSave = server.getScheduler()
-                .buildTask(this, () -> {
-                    try {
-                        saveBalances(false);
-                    } finally {
-                        pendingSave = null; // allow future schedules
-                    }
-                })
-                .delay(delayMs, java.util.concurrent.TimeUnit.MILLISECONDS)
-                .schedule();
+    long getBalance(Ledger ledger, UUID playerId) {
+        return ledger.get(playerId.getMostSignificantBits(), playerId.getLeastSignificantBits());
     }
 
-    // Update these methods to trigger a debounced save after changes
     public void setBalance(java.util.UUID playerId, long amount) {
-        if (amount < 0) amount = 0;
-        balances.put(playerId, amount);
-        dirty = true;
-        requestSaveDebounced(500);
+        ledger.set(playerId.getMostSignificantBits(), playerId.getLeastSignificantBits(), amount);
+    }
+
+    public void setBalance(String currency, UUID playerId, long amount) {
+        require(currency).set(playerId.getMostSignificantBits(), playerId.getLeastSignificantBits(), amount);
     }
 
     public long add(java.util.UUID playerId, long amount) {
-        if (amount <= 0) return getBalance(playerId);
-        long newVal = balances.merge(playerId, amount, Long::sum);
-        dirty = true;
-        requestSaveDebounced(500);
-        return newVal;
+        return add(ledger, playerId, amount, AuditLog.Cause.API);
+    }
+
+    public long add(String currency, UUID playerId, long amount) {
+        return add(require(currency), playerId, amount, AuditLog.Cause.API);
+    }
+
+    // Commands name who made the change, for the audit log; the public API is logged as "plugin"
+    long add(Ledger ledger, UUID playerId, long amount, AuditLog.Cause cause) {
+        return ledger.add(playerId.getMostSignificantBits(), playerId.getLeastSignificantBits(), amount, 0L, cause);
+    }
+
+    /**
+     * Gives tokens that are taken back at {@code expiresAt}, as far as the player still has them.
+     * Returns the new balance.
+     */
+    public long addExpiring(UUID playerId, long amount, Instant expiresAt) {
+        return addExpiring(ledger, playerId, amount, expiresAt, AuditLog.Cause.API);
+    }
+
+    public long addExpiring(String currency, UUID playerId, long amount, Instant expiresAt) {
+        return addExpiring(require(currency), playerId, amount, expiresAt, AuditLog.Cause.API);
+    }
+
+    long addExpiring(Ledger ledger, UUID playerId, long amount, Instant expiresAt, AuditLog.Cause cause) {
+        return ledger.expiry().grant(playerId.getMostSignificantBits(), playerId.getLeastSignificantBits(),
+                amount, expiresAt.toEpochMilli(), cause);
     }
 
     public boolean spend(java.util.UUID playerId, long amount) {
-        if (amount <= 0) return true;
-        final boolean[] changed = {false};
-        boolean ok = balances.compute(playerId, (id, oldVal) -> {
-            long current = (oldVal == null ? 0L : oldVal);
-            if (current < amount) return oldVal;
-            long updated = current - amount;
-            dirty = true;
-            changed[0] = true;
-            return updated;
-        }) != null && balances.get(playerId) >= 0;
-        if (ok && changed[0]) {
-            requestSaveDebounced(500);
-        }
-        return ok;
+        return spend(ledger, playerId, amount, AuditLog.Cause.API);
     }
 
-    // --------------- YAML persistence ---------------
+    public boolean spend(String currency, UUID playerId, long amount) {
+        return spend(require(currency), playerId, amount, AuditLog.Cause.API);
+    }
 
-    @SuppressWarnings("unchecked")
-    private void loadBalances() {
-        if (!balancesFile.exists()) {
-            return;
-        }
-        try (FileInputStream fis = new FileInputStream(balancesFile)) {
-            Yaml yaml = new Yaml();
-            Object root = yaml.load(fis);
-            if (!(root instanceof Map<?, ?> map)) {
-                logger.warn("balances.yml is empty or malformed, starting fresh.");
-                return;
-            }
-            Object balancesNode = map.get("balances");
-            if (balancesNode instanceof Map<?, ?> bmap) {
-                bmap.forEach((k, v) -> {
-                    try {
-                        UUID id = UUID.fromString(String.valueOf(k));
-                        long val = Long.parseLong(String.valueOf(v));
-                        balances.put(id, Math.max(0L, val));
-                    } catch (Exception ex) {
-                        logger.warn("Skipping malformed balance entry: {} -> {}", k, v);
-                    }
-                });
-            }
-            logger.info("Loaded {} balances from YAML.", balances.size());
-        } catch (Exception ex) {
-            logger.error("Failed to load balances.yml", ex);
+    boolean spend(Ledger ledger, UUID playerId, long amount, AuditLog.Cause cause) {
+        return ledger.spend(playerId.getMostSignificantBits(), playerId.getLeastSignificantBits(), amount, 0L, cause);
+    }
+
+    /**
+     * Moves tokens from one player to another in one atomic step; false (and nothing changes) if
+     * the sender cannot cover the amount or the receiver's balance would overflow.
+     */
+    public boolean transfer(UUID from, UUID to, long amount) {
+        return transfer(ledger, from, to, amount, AuditLog.Cause.API);
+    }
+
+    public boolean transfer(String currency, UUID from, UUID to, long amount) {
+        return transfer(require(currency), from, to, amount, AuditLog.Cause.API);
+    }
+
+    boolean transfer(Ledger ledger, UUID from, UUID to, long amount, AuditLog.Cause cause) {
+        return ledger.transfer(from.getMostSignificantBits(), from.getLeastSignificantBits(),
+                to.getMostSignificantBits(), to.getLeastSignificantBits(), amount, 0L, cause);
+    }
+
+    /**
+     * Gives every player the same amount as one batched mutation and returns their new balances,
+     * in the order given.
+     */
+    public long[] addAll(List<UUID> playerIds, long amount) {
+        return addAll(ledger, playerIds, amount, 0L, AuditLog.Cause.API);
+    }
+
+    // Tagged with a bridge operation ID (0 for none), see Ledger#claimOperation
+    long[] addAll(Ledger ledger, List<UUID> playerIds, long amount, long operation, AuditLog.Cause cause) {
+        return ledger.addAll(toKeys(playerIds), amount, operation, cause);
+    }
+
+    /** Batched {@link #spend}: returns the new balances, or -1 for players who could not cover the amount. */
+    public long[] spendAll(List<UUID> playerIds, long amount) {
+        return spendAll(ledger, playerIds, amount, 0L, AuditLog.Cause.API);
+    }
+
+    long[] spendAll(Ledger ledger, List<UUID> playerIds, long amount, long operation, AuditLog.Cause cause) {
+        return ledger.spendAll(toKeys(playerIds), amount, operation, cause);
+    }
+
+    private Ledger require(String currency) {
+        Ledger l = getLedger(currency);
+        if (l == null) {
+            throw new IllegalArgumentException("Unknown currency: " + currency);
         }
+        return l;
     }
 
-    private void autosaveIfDirty() {
-        if (dirty) {
-            saveBalances(false);
+    private static long[] toKeys(List<UUID> playerIds) {
+        long[] keys = new long[playerIds.size() * 2];
+        for (int i = 0; i < playerIds.size(); i++) {
+            keys[2 * i] = playerIds.get(i).getMostSignificantBits();
+            keys[2 * i + 1] = playerIds.get(i).getLeastSignificantBits();
         }
+        return keys;
     }
 
-    private void saveBalances(boolean forceBackup) {
-        try {
-            if (forceBackup && balancesFile.exists()) {
-                File backup = new File(balancesFile.getParentFile(),
-                        "balances-" + Instant.now().toEpochMilli() + ".bak.yml");
-                balancesFile.renameTo(backup);
+    /**
+     * Sends each player its own message without holding up the caller; large batches are spread
+     * over the common fork-join pool.
+     */
+    void messageEach(List<Player> players, IntFunction<Component> message) {
+        CompletableFuture.runAsync(() -> IntStream.range(0, players.size()).parallel().forEach(i -> {
+            Component text = message.apply(i);
+            if (text != null) {
+                players.get(i).sendMessage(text);
             }
+        })).exceptionally(ex -> {
+            logger.warn("Failed to message players", ex);
+            return null;
+        });
+    }
 
-            // Prepare YAML structure
-            Map<String, Object> root = new java.util.LinkedHashMap<>();
-            Map<String, Object> bmap = new java.util.LinkedHashMap<>();
-            balances.forEach((uuid, val) -> bmap.put(uuid.toString(), val));
-            root.put("balances", bmap);
-
-            // Pretty output
-            DumperOptions opts = new DumperOptions();
-            opts.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
-            opts.setPrettyFlow(true);
-            Yaml yaml = new Yaml(opts);
-
-            // Write to a temp file then move (best-effort atomicity on same filesystem)
-            File tmp = new File(balancesFile.getParentFile(), "balances.tmp.yml");
-            try (FileOutputStream fos = new FileOutputStream(tmp)) {
-                yaml.dump(root, new java.io.OutputStreamWriter(fos));
-            }
-            if (balancesFile.exists() && !balancesFile.delete()) {
-                logger.warn("Could not delete old balances.yml");
-            }
-            if (!tmp.renameTo(balancesFile)) {
-                logger.warn("Could not rename temp balances to balances.yml");
-            } else {
-                dirty = false;
-            }
-        } catch (Exception ex) {
-            logger.error("Failed to save balances.yml", ex);
-        }
+    /**
+     * Writes a human-readable copy of the ledger to exports/balances-&lt;timestamp&gt;.yml on the I/O thread.
+     */
+    public CompletableFuture<File> exportBalancesYaml() {
+        return ledger.exportYaml();
     }
 
     // --------------- Getters ---------------
@@ -249,6 +438,35 @@ public final class EventCurrency {
         return logger;
     }
 
+    EventCurrencyConfig getConfig() {
+        return config;
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    Ledger getLedger() {
+        return ledger;
+    }
+
+    /** The ledger of the named currency, or null if there is none. */
+    Ledger getLedger(String currency) {
+        return ledgers.get(currency.toLowerCase(Locale.ROOT));
+    }
+
+    Map<String, Ledger> getLedgers() {
+        return ledgers;
+    }
+
+    PlayerNameIndex getNames() {
+        return names;
+    }
+
+    VelocityBridgeListener getBridgeListener() {
+        return bridgeListener;
+    }
+
     public File getDataFolder() {
         return dataFolder;
     }
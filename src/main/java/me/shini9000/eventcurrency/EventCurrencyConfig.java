@@ -0,0 +1,127 @@
+package me.shini9000.eventcurrency;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Read-only view over config.yml. Keys are addressed with dotted paths ("journal.fsync");
+ * anything missing or of the wrong type falls back to the supplied default. {@link #overlay} gives a
+ * view in which one section overrides the rest, as used for per-currency settings.
+ */
+final class EventCurrencyConfig {
+
+    private final Map<?, ?> root;
+    private final EventCurrencyConfig fallback; // consulted for keys root does not have, or null
+
+    private EventCurrencyConfig(Map<?, ?> root) {
+        this(root, null);
+    }
+
+    private EventCurrencyConfig(Map<?, ?> root, EventCurrencyConfig fallback) {
+        this.root = root;
+        this.fallback = fallback;
+    }
+
+    /** Looks keys up under {@code path} first and in this config otherwise. */
+    EventCurrencyConfig overlay(String path) {
+        return get(path) instanceof Map<?, ?> section ? new EventCurrencyConfig(section, this) : this;
+    }
+
+    static EventCurrencyConfig load(File dataFolder, Logger logger) {
+        File file = new File(dataFolder, "config.yml");
+        if (!file.exists()) {
+            try (InputStream in = EventCurrencyConfig.class.getResourceAsStream("/config.yml")) {
+                if (in != null) {
+                    Files.copy(in, file.toPath());
+                }
+            } catch (Exception ex) {
+                logger.warn("Could not write default config.yml: {}", ex.toString());
+            }
+        }
+        if (!file.exists()) {
+            return new EventCurrencyConfig(Map.of());
+        }
+        try (FileInputStream fis = new FileInputStream(file)) {
+            Object root = new Yaml().load(fis);
+            if (root instanceof Map<?, ?> map) {
+                return new EventCurrencyConfig(map);
+            }
+            logger.warn("config.yml is empty or malformed, using defaults.");
+        } catch (Exception ex) {
+            logger.error("Failed to load config.yml, using defaults", ex);
+        }
+        return new EventCurrencyConfig(Map.of());
+    }
+
+    Object get(String path) {
+        Object node = root;
+        for (String part : path.split("\\.")) {
+            if (!(node instanceof Map<?, ?> map)) {
+                node = null;
+                break;
+            }
+            node = map.get(part);
+        }
+        return node == null && fallback != null ? fallback.get(path) : node;
+    }
+
+    String getString(String path, String def) {
+        Object v = get(path);
+        return v == null ? def : String.valueOf(v);
+    }
+
+    /** A list of strings, or a single value as a list of one. */
+    List<String> getStringList(String path, List<String> def) {
+        Object v = get(path);
+        if (v instanceof List<?> list) {
+            return list.stream().map(String::valueOf).toList();
+        }
+        return v == null ? def : List.of(String.valueOf(v));
+    }
+
+    long getLong(String path, long def) {
+        Object v = get(path);
+        if (v instanceof Number n) {
+            return n.longValue();
+        }
+        if (v != null) {
+            try {
+                return Long.parseLong(String.valueOf(v).trim());
+            } catch (NumberFormatException ignored) {
+                // fall through to the default
+            }
+        }
+        return def;
+    }
+
+    int getInt(String path, int def) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, getLong(path, def)));
+    }
+
+    boolean getBoolean(String path, boolean def) {
+        Object v = get(path);
+        if (v instanceof Boolean b) {
+            return b;
+        }
+        return v == null ? def : Boolean.parseBoolean(String.valueOf(v).trim());
+    }
+
+    <E extends Enum<E>> E getEnum(String path, Class<E> type, E def) {
+        Object v = get(path);
+        if (v == null) {
+            return def;
+        }
+        try {
+            return Enum.valueOf(type, String.valueOf(v).trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException ex) {
+            return def;
+        }
+    }
+}
@@ -5,25 +5,76 @@ import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.api.proxy.ProxyServer;
 import net.kyori.adventure.text.Component;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public final class EventTokensCommand implements SimpleCommand {
+    private static final List<String> SUBCOMMANDS = List.of("give", "add", "take", "remove", "pay", "giveall",
+            "takeall", "get", "top", "rank", "history", "export", "queue", "stats");
+    private static final int TOP_PAGE_SIZE = 10;
+    private static final int HISTORY_PAGE_SIZE = 10;
+    private static final DateTimeFormatter HISTORY_TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final Pattern EXPIRY_DURATION = Pattern.compile("(\\d{1,6})([mhdw])");
+
     private final EventCurrency plugin;
     private final ProxyServer server;
+    private final Metrics metrics;
+    private final Leaderboard leaderboard;
+    private final PlayerNameIndex names;
+
+    // First page of /eventtokens top, rebuilt only when the top of the leaderboard changes
+    private volatile List<Component> topPage = List.of();
+    private volatile long topPageVersion = -1L;
 
     public EventTokensCommand(EventCurrency plugin) {
         this.plugin = plugin;
         this.server = plugin.getServer();
+        this.metrics = plugin.getMetrics();
+        this.leaderboard = plugin.getLedger().leaderboard();
+        this.names = plugin.getNames();
+    }
+
+    /** The currency a command works on, with the words its messages use for it. */
+    private record Currency(Ledger ledger, String name, String tokens, String eventTokens) {
+
+        String holders() {
+            return name == null ? "event token holders" : name + " holders";
+        }
     }
 
     @Override
     public void execute(Invocation invocation) {
-        var source = invocation.source();
         var args = invocation.arguments();
+        metrics.commands.increment();
 
+        // "/eventtokens <currency> <subcommand> ..." works on a currency other than the default one
+        Currency currency = new Currency(plugin.getLedger(), null, "tokens", "event tokens");
+        if (args.length > 1 && !SUBCOMMANDS.contains(args[0].toLowerCase(Locale.ROOT))) {
+            Ledger other = plugin.getLedger(args[0]);
+            if (other != null) {
+                String name = args[0].toLowerCase(Locale.ROOT);
+                currency = new Currency(other, name, name, name);
+                args = Arrays.copyOfRange(args, 1, args.length);
+            }
+        }
+        execute(invocation, args, currency);
+    }
+
+    private void execute(Invocation invocation, String[] args, Currency currency) {
+        var source = invocation.source();
         if (args.length == 0) {
             sendUsage(source);
             return;
@@ -33,11 +84,11 @@ public final class EventTokensCommand implements SimpleCommand {
         switch (sub) {
             case "give", "add" -> {
                 if (!hasPermission(invocation, "eventcurrency.command.give")) {
-                    source.sendMessage(Component.text("You don't have permission to use this command."));
+                    refuse(source, "You don't have permission to use this command.");
                     return;
                 }
                 if (args.length < 3) {
-                    source.sendMessage(Component.text("Usage: /eventtokens give <player> <amount>"));
+                    refuse(source, "Usage: /eventtokens give <player> <amount> [expires]");
                     return;
                 }
                 String playerName = args[1];
@@ -45,33 +96,47 @@ public final class EventTokensCommand implements SimpleCommand {
                 try {
                     amount = Long.parseLong(args[2]);
                 } catch (NumberFormatException ex) {
-                    source.sendMessage(Component.text("Amount must be a whole number."));
+                    refuse(source, "Amount must be a whole number.");
                     return;
                 }
                 if (amount <= 0) {
-                    source.sendMessage(Component.text("Amount must be greater than 0."));
+                    refuse(source, "Amount must be greater than 0.");
                     return;
                 }
+                Instant expiresAt = null;
+                if (args.length >= 4) {
+                    expiresAt = parseExpiry(args[3]);
+                    if (expiresAt == null || !expiresAt.isAfter(Instant.now())) {
+                        refuse(source, "Expiry must be a duration like 7d, 12h or 30m, or a future date (yyyy-MM-dd).");
+                        return;
+                    }
+                }
 
-                Optional<Player> targetOpt = server.getPlayer(playerName);
+                Optional<Target> targetOpt = resolve(playerName);
                 if (targetOpt.isEmpty()) {
-                    source.sendMessage(Component.text("Player not found or not online: " + playerName));
+                    refuse(source, "Unknown player: " + playerName);
                     return;
                 }
-                Player target = targetOpt.get();
+                Target target = targetOpt.get();
 
-                long newBalance = plugin.add(target.getUniqueId(), amount);
-                source.sendMessage(Component.text("Gave " + amount + " tokens to " + target.getUsername()
+                long newBalance = expiresAt == null
+                        ? plugin.add(currency.ledger(), target.id(), amount, causeOf(source))
+                        : plugin.addExpiring(currency.ledger(), target.id(), amount, expiresAt, causeOf(source));
+                String expiring = expiresAt == null ? "" : " (expiring " + HISTORY_TIME.format(expiresAt) + ")";
+                source.sendMessage(Component.text("Gave " + amount + " " + currency.tokens() + " to " + target.name() + expiring
                         + ". New balance: " + newBalance));
-                target.sendMessage(Component.text("You received " + amount + " event tokens. New balance: " + newBalance));
+                if (target.online() != null) {
+                    target.online().sendMessage(Component.text("You received " + amount + " " + currency.eventTokens() + expiring
+                            + ". New balance: " + newBalance));
+                }
             }
             case "take", "remove" -> {
                 if (!hasPermission(invocation, "eventcurrency.command.take")) {
-                    source.sendMessage(Component.text("You don't have permission to use this command."));
+                    refuse(source, "You don't have permission to use this command.");
                     return;
                 }
                 if (args.length < 3) {
-                    source.sendMessage(Component.text("Usage: /eventtokens take <player> <amount>"));
+                    refuse(source, "Usage: /eventtokens take <player> <amount>");
                     return;
                 }
                 String playerName = args[1];
@@ -79,56 +144,421 @@ public final class EventTokensCommand implements SimpleCommand {
                 try {
                     amount = Long.parseLong(args[2]);
                 } catch (NumberFormatException ex) {
-                    source.sendMessage(Component.text("Amount must be a whole number."));
+                    refuse(source, "Amount must be a whole number.");
                     return;
                 }
                 if (amount <= 0) {
-                    source.sendMessage(Component.text("Amount must be greater than 0."));
+                    refuse(source, "Amount must be greater than 0.");
                     return;
                 }
 
-                var targetOpt = server.getPlayer(playerName);
+                var targetOpt = resolve(playerName);
                 if (targetOpt.isEmpty()) {
-                    source.sendMessage(Component.text("Player not found or not online: " + playerName));
+                    refuse(source, "Unknown player: " + playerName);
                     return;
                 }
                 var target = targetOpt.get();
 
-                boolean ok = plugin.spend(target.getUniqueId(), amount);
+                boolean ok = plugin.spend(currency.ledger(), target.id(), amount, causeOf(source));
                 if (!ok) {
-                    source.sendMessage(Component.text(target.getUsername() + " does not have enough tokens."));
+                    refuse(source, target.name() + " does not have enough " + currency.tokens() + ".");
                     return;
                 }
-                long newBalance = plugin.getBalance(target.getUniqueId());
-                source.sendMessage(Component.text("Removed " + amount + " tokens from " + target.getUsername()
+                long newBalance = plugin.getBalance(currency.ledger(), target.id());
+                source.sendMessage(Component.text("Removed " + amount + " " + currency.tokens() + " from " + target.name()
                         + ". New balance: " + newBalance));
-                target.sendMessage(Component.text(amount + " event tokens were removed. New balance: " + newBalance));
+                if (target.online() != null) {
+                    target.online().sendMessage(Component.text(amount + " " + currency.eventTokens() + " were removed. New balance: " + newBalance));
+                }
+            }
+            case "pay" -> {
+                if (!(source instanceof Player sender)) {
+                    refuse(source, "Only players can pay other players.");
+                    return;
+                }
+                if (!hasPermission(invocation, "eventcurrency.command.pay")) {
+                    refuse(source, "You don't have permission to use this command.");
+                    return;
+                }
+                if (args.length < 3) {
+                    refuse(source, "Usage: /eventtokens pay <player> <amount>");
+                    return;
+                }
+                String playerName = args[1];
+                long amount;
+                try {
+                    amount = Long.parseLong(args[2]);
+                } catch (NumberFormatException ex) {
+                    refuse(source, "Amount must be a whole number.");
+                    return;
+                }
+                if (amount <= 0) {
+                    refuse(source, "Amount must be greater than 0.");
+                    return;
+                }
+
+                var targetOpt = resolve(playerName);
+                if (targetOpt.isEmpty()) {
+                    refuse(source, "Unknown player: " + playerName);
+                    return;
+                }
+                var target = targetOpt.get();
+                if (target.id().equals(sender.getUniqueId())) {
+                    refuse(source, "You cannot pay yourself.");
+                    return;
+                }
+
+                if (!plugin.transfer(currency.ledger(), sender.getUniqueId(), target.id(), amount, causeOf(source))) {
+                    refuse(source, "You do not have enough " + currency.tokens() + ".");
+                    return;
+                }
+                source.sendMessage(Component.text("Paid " + amount + " " + currency.tokens() + " to " + target.name()
+                        + ". New balance: " + plugin.getBalance(currency.ledger(), sender.getUniqueId())));
+                if (target.online() != null) {
+                    target.online().sendMessage(Component.text(sender.getUsername() + " paid you " + amount
+                            + " " + currency.eventTokens() + ". New balance: " + plugin.getBalance(currency.ledger(), target.id())));
+                }
+            }
+            case "giveall", "takeall" -> {
+                boolean give = sub.equals("giveall");
+                if (!hasPermission(invocation, "eventcurrency.command." + sub)) {
+                    refuse(source, "You don't have permission to use this command.");
+                    return;
+                }
+                if (args.length < 2) {
+                    refuse(source, "Usage: /eventtokens " + sub + " <amount> [server]");
+                    return;
+                }
+                long amount;
+                try {
+                    amount = Long.parseLong(args[1]);
+                } catch (NumberFormatException ex) {
+                    refuse(source, "Amount must be a whole number.");
+                    return;
+                }
+                if (amount <= 0) {
+                    refuse(source, "Amount must be greater than 0.");
+                    return;
+                }
+
+                List<Player> players;
+                String where = "";
+                if (args.length > 2) {
+                    var backend = server.getServer(args[2]);
+                    if (backend.isEmpty()) {
+                        refuse(source, "Unknown server: " + args[2]);
+                        return;
+                    }
+                    players = List.copyOf(backend.get().getPlayersConnected());
+                    where = " on " + backend.get().getServerInfo().getName();
+                } else {
+                    players = List.copyOf(server.getAllPlayers());
+                }
+                if (players.isEmpty()) {
+                    refuse(source, "No players online" + where + ".");
+                    return;
+                }
+
+                List<UUID> ids = players.stream().map(Player::getUniqueId).toList();
+                if (give) {
+                    long[] balances = plugin.addAll(currency.ledger(), ids, amount, 0L, causeOf(source));
+                    source.sendMessage(Component.text("Gave " + amount + " " + currency.tokens() + " to " + players.size()
+                            + " players" + where + "."));
+                    plugin.messageEach(players, i -> Component.text("You received " + amount
+                            + " " + currency.eventTokens() + ". New balance: " + balances[i]));
+                } else {
+                    long[] balances = plugin.spendAll(currency.ledger(), ids, amount, 0L, causeOf(source));
+                    int skipped = 0;
+                    for (long balance : balances) {
+                        if (balance < 0) {
+                            skipped++;
+                        }
+                    }
+                    source.sendMessage(Component.text("Removed " + amount + " " + currency.tokens() + " from "
+                            + (players.size() - skipped) + " players" + where + "."
+                            + (skipped > 0 ? " " + skipped + " did not have enough." : "")));
+                    plugin.messageEach(players, i -> balances[i] < 0 ? null : Component.text(amount
+                            + " " + currency.eventTokens() + " were removed. New balance: " + balances[i]));
+                }
             }
             case "get" -> {
                 if (args.length == 1) {
                     if (source instanceof Player player) {
-                        long balance = plugin.getBalance(player.getUniqueId());
-                        source.sendMessage(Component.text("You have " + balance + " event tokens."));
+                        long balance = plugin.getBalance(currency.ledger(), player.getUniqueId());
+                        source.sendMessage(Component.text("You have " + balance + " " + currency.eventTokens() + "."));
                     } else {
-                        source.sendMessage(Component.text("Usage: /eventtokens get <player>"));
+                        refuse(source, "Usage: /eventtokens get <player>");
                     }
                     return;
                 }
 
                 String playerName = args[1];
-                var targetOpt = server.getPlayer(playerName);
+                var targetOpt = resolve(playerName);
                 if (targetOpt.isEmpty()) {
-                    source.sendMessage(Component.text("Player not found or not online: " + playerName));
+                    refuse(source, "Unknown player: " + playerName);
                     return;
                 }
                 var target = targetOpt.get();
-                long balance = plugin.getBalance(target.getUniqueId());
-                source.sendMessage(Component.text(target.getUsername() + " has " + balance + " event tokens."));
+                long balance = plugin.getBalance(currency.ledger(), target.id());
+                source.sendMessage(Component.text(target.name() + " has " + balance + " " + currency.eventTokens() + "."));
+            }
+            case "top" -> {
+                int page = 1;
+                if (args.length > 1) {
+                    try {
+                        page = Integer.parseInt(args[1]);
+                    } catch (NumberFormatException ex) {
+                        refuse(source, "Page must be a whole number.");
+                        return;
+                    }
+                    if (page < 1) {
+                        refuse(source, "Page must be at least 1.");
+                        return;
+                    }
+                }
+                Leaderboard leaderboard = currency.ledger().leaderboard();
+                List<Component> lines = page == 1 && leaderboard == this.leaderboard ? firstTopPage() : renderTop(leaderboard, page);
+                if (lines.isEmpty()) {
+                    refuse(source, page == 1 ? "Nobody has any " + currency.eventTokens() + " yet." : "There is no page " + page + ".");
+                    return;
+                }
+                int pages = Math.max(1, (leaderboard.size() + TOP_PAGE_SIZE - 1) / TOP_PAGE_SIZE);
+                source.sendMessage(Component.text("Top " + currency.holders() + " (page " + page + "/" + pages + "):"));
+                lines.forEach(source::sendMessage);
+            }
+            case "rank" -> {
+                UUID target;
+                String name;
+                if (args.length == 1) {
+                    if (!(source instanceof Player player)) {
+                        refuse(source, "Usage: /eventtokens rank <player>");
+                        return;
+                    }
+                    target = player.getUniqueId();
+                    name = null;
+                } else {
+                    var targetOpt = resolve(args[1]);
+                    if (targetOpt.isEmpty()) {
+                        refuse(source, "Unknown player: " + args[1]);
+                        return;
+                    }
+                    target = targetOpt.get().id();
+                    name = targetOpt.get().name();
+                }
+                Leaderboard leaderboard = currency.ledger().leaderboard();
+                int rank = leaderboard.rank(target.getMostSignificantBits(), target.getLeastSignificantBits());
+                String who = name == null ? "You are" : name + " is";
+                if (rank == 0) {
+                    source.sendMessage(Component.text(who + " not ranked yet (no " + currency.eventTokens() + ")."));
+                } else {
+                    source.sendMessage(Component.text(who + " ranked #" + rank + " of " + leaderboard.size()
+                            + " with " + plugin.getBalance(currency.ledger(), target) + " " + currency.eventTokens() + "."));
+                }
+            }
+            case "history" -> {
+                UUID target;
+                String name;
+                if (args.length == 1) {
+                    if (!(source instanceof Player player)) {
+                        refuse(source, "Usage: /eventtokens history <player> [page]");
+                        return;
+                    }
+                    target = player.getUniqueId();
+                    name = player.getUsername();
+                } else {
+                    var targetOpt = resolve(args[1]);
+                    if (targetOpt.isEmpty()) {
+                        refuse(source, "Unknown player: " + args[1]);
+                        return;
+                    }
+                    target = targetOpt.get().id();
+                    name = targetOpt.get().name();
+                }
+                boolean own = source instanceof Player player && player.getUniqueId().equals(target);
+                if (!own && !hasPermission(invocation, "eventcurrency.command.history")) {
+                    refuse(source, "You don't have permission to use this command.");
+                    return;
+                }
+                int page = 1;
+                if (args.length > 2) {
+                    try {
+                        page = Integer.parseInt(args[2]);
+                    } catch (NumberFormatException ex) {
+                        refuse(source, "Page must be a whole number.");
+                        return;
+                    }
+                    if (page < 1) {
+                        refuse(source, "Page must be at least 1.");
+                        return;
+                    }
+                }
+                AuditLog audit = currency.ledger().audit();
+                if (audit == null) {
+                    refuse(source, "The audit log is turned off.");
+                    return;
+                }
+                int shownPage = page;
+                audit.history(target.getMostSignificantBits(), target.getLeastSignificantBits(), page * HISTORY_PAGE_SIZE)
+                        .whenComplete((entries, ex) -> {
+                            if (ex != null) {
+                                plugin.getLogger().error("Failed to read the audit log", ex);
+                                source.sendMessage(Component.text("Could not read the history, see console for details."));
+                                return;
+                            }
+                            int from = (shownPage - 1) * HISTORY_PAGE_SIZE;
+                            if (entries.size() <= from) {
+                                source.sendMessage(Component.text(shownPage == 1
+                                        ? "No balance changes recorded for " + name + "."
+                                        : "There is no page " + shownPage + "."));
+                                return;
+                            }
+                            source.sendMessage(Component.text("Balance history of " + name + " (page " + shownPage + "):"));
+                            for (AuditLog.Entry e : entries.subList(from, entries.size())) {
+                                source.sendMessage(Component.text(HISTORY_TIME.format(Instant.ofEpochMilli(e.millis()))
+                                        + "  " + (e.delta() >= 0 ? "+" : "") + e.delta() + " -> " + e.balance()
+                                        + "  by " + e.actor() + " (" + e.source() + ")"));
+                            }
+                        });
+            }
+            case "export" -> {
+                if (!hasPermission(invocation, "eventcurrency.command.export")) {
+                    refuse(source, "You don't have permission to use this command.");
+                    return;
+                }
+                source.sendMessage(Component.text("Exporting balances to YAML..."));
+                currency.ledger().exportYaml().whenComplete((out, ex) -> {
+                    if (ex != null) {
+                        plugin.getLogger().error("Failed to export balances", ex);
+                        source.sendMessage(Component.text("Export failed, see console for details."));
+                    } else {
+                        source.sendMessage(Component.text("Exported balances to " + out.getName()));
+                    }
+                });
+            }
+            case "queue" -> {
+                if (!hasPermission(invocation, "eventcurrency.command.queue")) {
+                    refuse(source, "You don't have permission to use this command.");
+                    return;
+                }
+                var pipeline = plugin.getBridgeListener().getPipeline();
+                source.sendMessage(Component.text("Bridge lane depths: " + java.util.Arrays.toString(pipeline.laneDepths())));
+                var backends = pipeline.backends();
+                if (backends.isEmpty()) {
+                    source.sendMessage(Component.text("No bridge messages received yet."));
+                }
+                for (var backend : backends) {
+                    source.sendMessage(Component.text(backend.name + ": pending " + backend.pending.get()
+                            + ", processed " + backend.processed.sum()
+                            + ", dropped " + backend.dropped.sum()
+                            + ", rejected frames " + backend.rejectedFrames.sum()));
+                }
+            }
+            case "stats" -> {
+                if (!hasPermission(invocation, "eventcurrency.command.stats")) {
+                    refuse(source, "You don't have permission to use this command.");
+                    return;
+                }
+                // Metrics are proxy-wide: these counts add up every currency, not just the one asked through
+                source.sendMessage(Component.text("Gives (all currencies): " + metrics.gives.sum()
+                        + ", takes: " + metrics.takes.sum() + " (" + metrics.takesRejected.sum() + " refused)"
+                        + ", sets: " + metrics.sets.sum()
+                        + ", transfers: " + metrics.transfers.sum() + " (" + metrics.transfersRejected.sum() + " refused)"));
+                source.sendMessage(Component.text("Save requests: " + metrics.saveRequests.sum()
+                        + " scheduled, " + metrics.saveRequestsCoalesced.sum() + " coalesced, "
+                        + metrics.saveFailures.sum() + " failed"));
+                source.sendMessage(Component.text("Checkpoints: " + Metrics.summary(metrics.checkpointLatency)));
+                source.sendMessage(Component.text("Full saves: " + Metrics.summary(metrics.fullSaveLatency)));
+                source.sendMessage(Component.text("Bridge: " + metrics.bridgeFrames.sum() + " messages, "
+                        + metrics.bridgeOps.sum() + " operations applied, "
+                        + metrics.bridgeParseFailures.sum() + " unparseable, "
+                        + metrics.duplicateOperations.sum() + " duplicates dropped, "
+                        + metrics.bridgeOfflineTargets.sum() + " for offline players"));
+                source.sendMessage(Component.text("Bridge limits: " + metrics.bridgeRateLimitedMessages.sum()
+                        + " messages and " + metrics.bridgeRateLimitedOps.sum() + " operations dropped, "
+                        + metrics.bridgeForeignMessages.sum() + " messages not from a backend, "
+                        + metrics.bridgeLogsSuppressed.sum() + " warnings suppressed"));
+                source.sendMessage(Component.text("Balance sync: " + metrics.balanceQueries.sum() + " queries, "
+                        + metrics.balancesSent.sum() + " balances sent in " + metrics.balanceFramesSent.sum()
+                        + " messages, " + metrics.balancesUndelivered.sum() + " undeliverable"));
+                source.sendMessage(Component.text("Bridge queue wait: " + Metrics.summary(metrics.bridgeQueueLatency)));
+                source.sendMessage(Component.text("Expiry (all currencies): " + metrics.expiredGrants.sum() + " of "
+                        + metrics.expiringGrants.sum() + " expiring grants due, " + metrics.expiredTokens.sum()
+                        + " taken back; decay: " + metrics.decayedAccounts.sum() + " balances, "
+                        + metrics.decayedTokens.sum() + " taken"));
+                source.sendMessage(Component.text("Audit log: " + metrics.auditEntries.sum() + " entries written, "
+                        + metrics.auditDropped.sum() + " dropped"));
+                source.sendMessage(Component.text("Commands: " + metrics.commands.sum()
+                        + " (" + metrics.commandErrors.sum() + " refused)"));
             }
             default -> sendUsage(source);
         }
     }
 
+    private List<Component> firstTopPage() {
+        long version = leaderboard.topVersion();
+        if (version != topPageVersion) {
+            topPage = renderTop(leaderboard, 1);
+            topPageVersion = version;
+        }
+        return topPage;
+    }
+
+    private List<Component> renderTop(Leaderboard leaderboard, int page) {
+        List<Component> lines = new ArrayList<>();
+        for (Leaderboard.Entry entry : leaderboard.page(page, TOP_PAGE_SIZE)) {
+            lines.add(Component.text("#" + entry.rank() + " " + displayName(new UUID(entry.msb(), entry.lsb()))
+                    + ": " + entry.balance()));
+        }
+        return lines;
+    }
+
+    private String displayName(UUID uuid) {
+        String name = names.nameOf(uuid);
+        return name != null ? name : uuid.toString();
+    }
+
+    /** An online player, or one known from an earlier login. {@code online} is null when they are offline. */
+    private record Target(UUID id, String name, Player online) {
+    }
+
+    private Optional<Target> resolve(String playerName) {
+        Optional<Player> online = server.getPlayer(playerName);
+        if (online.isPresent()) {
+            Player player = online.get();
+            return Optional.of(new Target(player.getUniqueId(), player.getUsername(), player));
+        }
+        return names.find(playerName).map(known -> new Target(known.id(), known.name(), null));
+    }
+
+    // A duration from now (30m, 12h, 7d, 2w) or a date, expiring as that day starts; null if neither
+    private static Instant parseExpiry(String text) {
+        Matcher m = EXPIRY_DURATION.matcher(text.toLowerCase(Locale.ROOT));
+        if (m.matches()) {
+            long n = Long.parseLong(m.group(1));
+            Duration d = switch (m.group(2)) {
+                case "m" -> Duration.ofMinutes(n);
+                case "h" -> Duration.ofHours(n);
+                case "d" -> Duration.ofDays(n);
+                default -> Duration.ofDays(7 * n);
+            };
+            return Instant.now().plus(d);
+        }
+        try {
+            return LocalDate.parse(text).atStartOfDay(ZoneId.systemDefault()).toInstant();
+        } catch (DateTimeParseException ex) {
+            return null;
+        }
+    }
+
+    private static AuditLog.Cause causeOf(com.velocitypowered.api.command.CommandSource source) {
+        return AuditLog.Cause.command(source instanceof Player player ? player.getUsername() : "console");
+    }
+
+    private void refuse(com.velocitypowered.api.command.CommandSource source, String message) {
+        metrics.commandErrors.increment();
+        source.sendMessage(Component.text(message));
+    }
+
     @Override
     public boolean hasPermission(Invocation invocation) {
         return invocation.source().hasPermission("eventcurrency.command");
@@ -142,25 +572,47 @@ public final class EventTokensCommand implements SimpleCommand {
     public List<String> suggest(Invocation invocation) {
         String[] args = invocation.arguments();
         if (args.length == 0) {
-            return List.of("give", "add", "take", "remove", "get");
+            return firstWords();
         }
         if (args.length == 1) {
-            return filterStartingWith(List.of("give", "add", "take", "remove", "get"), args[0]);
+            return filterStartingWith(firstWords(), args[0]);
+        }
+        if (!SUBCOMMANDS.contains(args[0].toLowerCase(Locale.ROOT)) && plugin.getLedger(args[0]) != null) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+            if (args.length == 1) {
+                return filterStartingWith(SUBCOMMANDS, args[0]);
+            }
         }
         String sub = args[0].toLowerCase();
-        if ("give".equals(sub) || "add".equals(sub) || "take".equals(sub) || "remove".equals(sub) || "get".equals(sub)) {
+        if ("give".equals(sub) || "add".equals(sub) || "take".equals(sub) || "remove".equals(sub) || "pay".equals(sub)
+                || "get".equals(sub) || "rank".equals(sub) || "history".equals(sub)) {
             if (args.length == 2) {
-                return filterStartingWith(
-                        server.getAllPlayers().stream().map(Player::getUsername).collect(Collectors.toList()),
-                        args[1]
-                );
-            } else if (args.length == 3 && ("give".equals(sub) || "add".equals(sub) || "take".equals(sub) || "remove".equals(sub))) {
+                return names.complete(args[1]);
+            } else if (args.length == 3 && !"get".equals(sub) && !"rank".equals(sub) && !"history".equals(sub)) {
                 return filterStartingWith(List.of("1", "10", "100", "1000"), args[2]);
+            } else if (args.length == 4 && ("give".equals(sub) || "add".equals(sub))) {
+                return filterStartingWith(List.of("1h", "1d", "7d", "30d"), args[3]);
+            }
+        }
+        if ("giveall".equals(sub) || "takeall".equals(sub)) {
+            if (args.length == 2) {
+                return filterStartingWith(List.of("1", "10", "100", "1000"), args[1]);
+            } else if (args.length == 3) {
+                return filterStartingWith(
+                        server.getAllServers().stream().map(s -> s.getServerInfo().getName()).toList(), args[2]);
             }
         }
         return List.of();
     }
 
+    /** Subcommands, then the currencies other than the default one. */
+    private List<String> firstWords() {
+        List<String> out = new ArrayList<>(SUBCOMMANDS);
+        List<String> currencies = plugin.getCurrencies();
+        out.addAll(currencies.subList(Math.min(1, currencies.size()), currencies.size()));
+        return out;
+    }
+
     private static List<String> filterStartingWith(List<String> options, String prefix) {
         String p = prefix.toLowerCase();
         List<String> out = new ArrayList<>();
@@ -174,8 +626,20 @@ public final class EventTokensCommand implements SimpleCommand {
 
     private void sendUsage(com.velocitypowered.api.command.CommandSource source) {
         source.sendMessage(Component.text("Usage:"));
-        source.sendMessage(Component.text("/eventtokens give|add <player> <amount>"));
+        source.sendMessage(Component.text("/eventtokens give|add <player> <amount> [expires]"));
         source.sendMessage(Component.text("/eventtokens take|remove <player> <amount>"));
+        source.sendMessage(Component.text("/eventtokens pay <player> <amount>"));
+        source.sendMessage(Component.text("/eventtokens giveall|takeall <amount> [server]"));
         source.sendMessage(Component.text("/eventtokens get [player]"));
+        source.sendMessage(Component.text("/eventtokens top [page]"));
+        source.sendMessage(Component.text("/eventtokens rank [player]"));
+        source.sendMessage(Component.text("/eventtokens history [player] [page]"));
+        source.sendMessage(Component.text("/eventtokens export"));
+        source.sendMessage(Component.text("/eventtokens queue"));
+        source.sendMessage(Component.text("/eventtokens stats"));
+        if (plugin.getCurrencies().size() > 1) {
+            source.sendMessage(Component.text("Prefix any of these with a currency (" + String.join(", ", plugin.getCurrencies())
+                    + ") to use it instead of " + plugin.getCurrencies().get(0) + "."));
+        }
     }
 }
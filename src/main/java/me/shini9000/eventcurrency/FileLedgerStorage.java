@@ -0,0 +1,117 @@
+package me.shini9000.eventcurrency;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+
+/**
+ * The default backend: a binary balances.dat base snapshot plus {@link DeltaSegments} holding only
+ * the accounts changed since. Deltas are folded into a new base once they pile up.
+ */
+final class FileLedgerStorage implements LedgerStorage {
+
+    private final File dataFolder;
+    private final File balancesFile;
+    private final DeltaSegments deltas;
+    private final int mergeAfterDeltas;
+    private final Logger logger;
+
+    FileLedgerStorage(File dataFolder, int mergeAfterDeltas, Logger logger) {
+        this.dataFolder = dataFolder;
+        this.balancesFile = new File(dataFolder, "balances.dat");
+        this.deltas = new DeltaSegments(new File(dataFolder, "deltas"), logger);
+        this.mergeAfterDeltas = mergeAfterDeltas;
+        this.logger = logger;
+    }
+
+    @Override
+    public String name() {
+        return "file";
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !balancesFile.exists() && !legacyFile().exists() && deltas.count() == 0;
+    }
+
+    /** Loads balances.dat (migrating a legacy balances.yml on first run) plus any newer deltas. */
+    @Override
+    public long load(BalanceVisitor visitor) throws IOException {
+        long generation = 0L;
+        if (!balancesFile.exists() && legacyFile().exists()) {
+            generation = migrateYaml(legacyFile(), visitor);
+        } else if (balancesFile.exists()) {
+            long start = System.nanoTime();
+            long[] count = {0L};
+            generation = LedgerSnapshot.read(balancesFile, (msb, lsb, balance) -> {
+                visitor.accept(msb, lsb, balance);
+                count[0]++;
+            });
+            logger.info("Loaded {} balances from {} in {} ms.", count[0], balancesFile.getName(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        return deltas.readAfter(generation, visitor);
+    }
+
+    // One-time conversion; the YAML file is kept as balances.yml.migrated
+    private long migrateYaml(File legacy, BalanceVisitor visitor) throws IOException {
+        BalanceTable loaded = new BalanceTable();
+        long generation = YamlLedgerFormat.read(legacy, loaded::set, logger);
+        LedgerSnapshot.write(balancesFile, generation, loaded::forEach);
+        loaded.forEach(visitor);
+        File migrated = new File(dataFolder, "balances.yml.migrated");
+        if (!legacy.renameTo(migrated)) {
+            logger.warn("Could not rename balances.yml after migration");
+        }
+        logger.info("Migrated {} balances from balances.yml to balances.dat.", loaded.size());
+        return generation;
+    }
+
+    private File legacyFile() {
+        return new File(dataFolder, "balances.yml");
+    }
+
+    @Override
+    public void scan(BalanceVisitor visitor) throws IOException {
+        load(visitor);
+    }
+
+    @Override
+    public boolean isLazy() {
+        return false;
+    }
+
+    @Override
+    public long loadOne(long msb, long lsb) {
+        return -1L; // everything is resident
+    }
+
+    @Override
+    public boolean wantsFullWrite() {
+        int count = deltas.count();
+        return count >= mergeAfterDeltas
+                || (count > 0 && deltas.totalBytes() > Math.max(balancesFile.length() / 2, 1024L * 1024));
+    }
+
+    @Override
+    public void writeChanges(long generation, long[] keys, long[] balances) throws IOException {
+        deltas.write(generation, out -> {
+            for (int i = 0; i < balances.length; i++) {
+                out.accept(keys[2 * i], keys[2 * i + 1], balances[i]);
+            }
+        });
+    }
+
+    @Override
+    public void writeAll(long generation, Consumer<BalanceVisitor> source) throws IOException {
+        LedgerSnapshot.write(balancesFile, generation, source);
+        deltas.deleteUpTo(generation);
+    }
+
+    @Override
+    public void close() {
+    }
+}
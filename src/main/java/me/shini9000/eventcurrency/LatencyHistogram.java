@@ -0,0 +1,93 @@
+package me.shini9000.eventcurrency;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with HDR-style log-linear buckets: values below 32 ns get a bucket
+ * each, and every power of two above that is split into 16 equal buckets, so any recorded value is
+ * reported within about 3% of its true value. The whole long range fits in under a thousand
+ * counters; recording is one array increment plus two adders.
+ */
+final class LatencyHistogram {
+
+    private static final int LINEAR = 32;          // values below this are exact
+    private static final int SUB_BUCKETS = 16;     // buckets per power of two above that
+    private static final int BUCKETS = LINEAR + (63 - 4) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        long v = Math.max(0L, nanos);
+        counts.incrementAndGet(bucket(v));
+        count.increment();
+        total.add(v);
+        if (v > max.get()) {
+            max.accumulateAndGet(v, Math::max);
+        }
+    }
+
+    /** Records the time elapsed since {@code startNanos}, a {@link System#nanoTime()} reading. */
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    long totalNanos() {
+        return total.sum();
+    }
+
+    long maxNanos() {
+        return max.get();
+    }
+
+    /** The value at quantile {@code q} (0..1), or 0 if nothing was recorded. */
+    long quantile(double q) {
+        long[] snapshot = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(midpoint(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // --------------- Buckets ---------------
+
+    static int bucket(long v) {
+        if (v < LINEAR) {
+            return (int) v;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(v) - 4; // >= 1; leaves 5 significant bits
+        int top = (int) (v >>> shift);                      // 16..31
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+    }
+
+    static long midpoint(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int i = bucket - LINEAR;
+        int shift = i / SUB_BUCKETS + 1;
+        long lower = (long) (i % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lower + ((1L << shift) >>> 1);
+    }
+}
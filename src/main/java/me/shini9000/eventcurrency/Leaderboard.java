@@ -0,0 +1,516 @@
+package me.shini9000.eventcurrency;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Accounts ordered by balance (highest first, ties broken by UUID) in an order-statistic treap, so
+ * rank lookups, inserts and removals are all O(log n) and a page of the top list costs O(log n + k).
+ *
+ * The treap lives in flat primitive arrays (node 0 is the empty tree) and accounts with a zero
+ * balance are left out. Mutations do not touch it directly: they only mark the account in a
+ * {@link DirtyKeySet}, and {@link #refresh} folds those into the treap with the account's current
+ * balance before each query and periodically in the background. The hot path therefore pays a
+ * set insert, never a rebalance.
+ *
+ * <p>Over a lazy backend the leaderboard is bounded: it keeps only the best {@code capacity}
+ * accounts and asks a {@link Ranking} about the rest, so memory does not grow with the store.
+ * Ranks below the kept top come from the backend as of its last checkpoint. When a kept account
+ * falls, one that is not kept may now belong in its place; {@link #refill} rebuilds the top then.
+ */
+final class Leaderboard {
+
+    record Entry(int rank, long msb, long lsb, long balance) {
+    }
+
+    /** What a bounded leaderboard asks the backend about the accounts it does not keep. */
+    interface Ranking {
+        /** Accounts with a positive balance. */
+        long count() throws IOException;
+
+        /** Accounts with a positive balance ranked before the given one. */
+        long countBefore(long balance, long msb, long lsb) throws IOException;
+
+        /** Feeds ranked accounts best first, skipping the first {@code offset} and stopping after {@code limit}. */
+        void page(long offset, int limit, BalanceVisitor visitor) throws IOException;
+    }
+
+    private static final int NIL = 0;
+    private static final int ABSENT = -1;
+    private static final int NODE = 4;
+    private static final int META = 2;
+
+    private final BalanceTable table;
+    private final int topSize;
+    private final int capacity; // most accounts kept; 0 keeps every ranked account
+    private final Ranking ranking; // null unless bounded
+    private final DirtyKeySet pending = new DirtyKeySet();
+    private boolean truncated; // some ranked accounts are not kept; guarded by this
+    private boolean stale; // a kept account fell while truncated; guarded by this
+
+    // Treap nodes; guarded by this. Each node's key and child links share a cache line in nodes
+    // (balance, msb, lsb, left << 32 | right) and its size and priority sit together in meta, so a
+    // step down the tree costs two cache misses rather than one per field.
+    private long[] nodes = new long[NODE * 1024];
+    private int[] meta = new int[META * 1024];
+    private int root = NIL;
+    private int nextNode = 1;
+    private int freeList = NIL; // chained through the left link
+    private int splitLeft;
+    private int splitRight;
+    private int seed = 0x2545F491;
+
+    // Kept account -> node; open addressing with backward-shift deletion
+    private long[] indexKeys = new long[2 * 1024];
+    private int[] indexNodes = newIndexNodes(1024);
+    private int indexSize;
+
+    private long topVersion;
+
+    Leaderboard(BalanceTable table, int topSize) {
+        this(table, topSize, 0, null);
+    }
+
+    /** A leaderboard that keeps at most {@code capacity} accounts and asks {@code ranking} about the rest. */
+    Leaderboard(BalanceTable table, int topSize, int capacity, Ranking ranking) {
+        this.table = table;
+        this.topSize = topSize;
+        this.capacity = ranking == null ? 0 : Math.max(topSize, capacity);
+        this.ranking = ranking;
+    }
+
+    /** Hot path: remembers that the account changed. */
+    void markChanged(long msb, long lsb) {
+        pending.add(msb, lsb);
+    }
+
+    /** Applies every pending change using the account's current balance. */
+    synchronized void refresh() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        long[] keys = pending.drain();
+        for (int i = 0; i < keys.length; i += 2) {
+            update(keys[i], keys[i + 1], table.get(keys[i], keys[i + 1]));
+        }
+    }
+
+    /**
+     * Adds an account with its current balance, used when building an unbounded leaderboard at
+     * startup. Reading the balance here rather than taking one from the caller means a seed can
+     * never overwrite a newer change.
+     */
+    synchronized void seed(long accountMsb, long accountLsb) {
+        if (indexGet(accountMsb, accountLsb) == ABSENT) {
+            update(accountMsb, accountLsb, table.get(accountMsb, accountLsb));
+        }
+    }
+
+    /** True once a bounded leaderboard may be missing an account from its kept top. */
+    synchronized boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * Rebuilds a bounded leaderboard's kept top from every account in memory, with its current
+     * balance, and the backend's best {@code capacity} accounts. Accounts in memory include every
+     * one changed since the last checkpoint, so the result is exact. The backend is queried before
+     * the lock is taken; runs on the ledger's I/O thread.
+     */
+    void refill() throws IOException {
+        long[] rows = new long[3 * capacity];
+        int[] n = { 0 };
+        ranking.page(0L, capacity, (m, l, b) -> {
+            rows[3 * n[0]] = m;
+            rows[3 * n[0] + 1] = l;
+            rows[3 * n[0]++ + 2] = b;
+        });
+        synchronized (this) {
+            root = NIL;
+            nextNode = 1;
+            freeList = NIL;
+            indexKeys = new long[2 * 1024];
+            indexNodes = newIndexNodes(1024);
+            indexSize = 0;
+            truncated = n[0] == capacity;
+            stale = false;
+            topVersion++;
+            table.forEach(this::update);
+            for (int i = 0; i < n[0]; i++) {
+                long m = rows[3 * i];
+                long l = rows[3 * i + 1];
+                if (!table.contains(m, l)) {
+                    update(m, l, rows[3 * i + 2]);
+                }
+            }
+        }
+    }
+
+    // --------------- Queries ---------------
+
+    /** One page of the ranking, 1-based; empty past the end. */
+    synchronized List<Entry> page(int page, int pageSize) {
+        refresh();
+        List<Entry> out = new ArrayList<>(pageSize);
+        long from = (long) (page - 1) * pageSize;
+        int kept = size(root);
+        for (long i = from; i < Math.min(from + pageSize, kept); i++) {
+            int node = select((int) i);
+            out.add(new Entry((int) i + 1, nodes[NODE * node + 1], nodes[NODE * node + 2], balance(node)));
+        }
+        if (truncated && out.size() < pageSize) {
+            // Past the kept top: straight from the backend, with the live balance of accounts in memory
+            long offset = Math.max(from, kept);
+            ask(() -> {
+                ranking.page(offset, pageSize - out.size(), (m, l, b) -> {
+                    if (indexGet(m, l) == ABSENT) {
+                        out.add(new Entry((int) Math.min(Integer.MAX_VALUE, from + out.size() + 1), m, l,
+                                table.contains(m, l) ? table.get(m, l) : b));
+                    }
+                });
+                return 0L;
+            });
+        }
+        return out;
+    }
+
+    /** 1-based rank of the account, or 0 if it has no tokens. */
+    synchronized int rank(long accountMsb, long accountLsb) {
+        refresh();
+        int node = indexGet(accountMsb, accountLsb);
+        if (node != ABSENT) {
+            return countBefore(balance(node), accountMsb, accountLsb) + 1;
+        }
+        long b = truncated ? table.get(accountMsb, accountLsb) : 0L;
+        if (b <= 0) {
+            return 0;
+        }
+        long before = ask(() -> ranking.countBefore(b, accountMsb, accountLsb));
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(size(root), before) + 1);
+    }
+
+    /** Number of ranked accounts. */
+    synchronized int size() {
+        refresh();
+        if (!truncated) {
+            return size(root);
+        }
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(size(root), ask(ranking::count)));
+    }
+
+    /** Changes whenever an account enters, leaves or moves within the top {@code topSize}. */
+    synchronized long topVersion() {
+        refresh();
+        return topVersion;
+    }
+
+    // --------------- Updates ---------------
+
+    private void update(long m, long l, long b) {
+        int node = indexGet(m, l);
+        if (node != ABSENT) {
+            long old = balance(node);
+            if (old == b) {
+                return;
+            }
+            remove(node, m, l);
+            if (truncated && b < old) {
+                stale = true; // an account that is not kept may now be ahead of it
+            }
+        } else if (capacity > 0 && size(root) >= capacity && compare(select(capacity - 1), b, m, l) <= 0) {
+            return; // below the kept top
+        }
+        if (b <= 0) {
+            return;
+        }
+        if (countBefore(b, m, l) < topSize) {
+            topVersion++;
+        }
+        int inserted = alloc(m, l, b);
+        root = insert(root, inserted, b, m, l);
+        indexPut(m, l, inserted);
+        if (capacity > 0 && size(root) > capacity) {
+            int last = select(capacity);
+            remove(last, nodes[NODE * last + 1], nodes[NODE * last + 2]);
+            truncated = true;
+        }
+    }
+
+    private void remove(int node, long m, long l) {
+        long b = balance(node);
+        if (countBefore(b, m, l) < topSize) {
+            topVersion++;
+        }
+        root = erase(root, b, m, l);
+        free(node);
+        indexRemove(m, l);
+    }
+
+    private static long ask(Query query) {
+        try {
+            return query.run();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private interface Query {
+        long run() throws IOException;
+    }
+
+    // Negative if the node comes first: higher balance first, then by UUID
+    private int compare(int node, long b, long m, long l) {
+        int base = NODE * node;
+        int c = Long.compare(b, nodes[base]);
+        if (c != 0) {
+            return c;
+        }
+        c = Long.compare(nodes[base + 1], m);
+        return c != 0 ? c : Long.compare(nodes[base + 2], l);
+    }
+
+    /** Nodes strictly before the key. */
+    private int countBefore(long b, long m, long l) {
+        int count = 0;
+        int t = root;
+        while (t != NIL) {
+            if (compare(t, b, m, l) < 0) {
+                count += size(left(t)) + 1;
+                t = right(t);
+            } else {
+                t = left(t);
+            }
+        }
+        return count;
+    }
+
+    /** The node at 0-based position {@code k}. */
+    private int select(int k) {
+        int t = root;
+        while (true) {
+            int ls = size(left(t));
+            if (k < ls) {
+                t = left(t);
+            } else if (k == ls) {
+                return t;
+            } else {
+                k -= ls + 1;
+                t = right(t);
+            }
+        }
+    }
+
+    /** Walks down by key until the new node's priority wins, then splits that subtree under it. */
+    private int insert(int t, int node, long b, long m, long l) {
+        if (t == NIL) {
+            return node;
+        }
+        if (priority(node) > priority(t)) {
+            split(t, b, m, l);
+            setLinks(node, splitLeft, splitRight);
+            pull(node);
+            return node;
+        }
+        if (compare(t, b, m, l) < 0) {
+            setRight(t, insert(right(t), node, b, m, l));
+        } else {
+            setLeft(t, insert(left(t), node, b, m, l));
+        }
+        meta[META * t]++;
+        return t;
+    }
+
+    /** Splits into nodes before the key ({@link #splitLeft}) and nodes at or after it ({@link #splitRight}). */
+    private void split(int t, long b, long m, long l) {
+        if (t == NIL) {
+            splitLeft = NIL;
+            splitRight = NIL;
+        } else if (compare(t, b, m, l) < 0) {
+            split(right(t), b, m, l);
+            setRight(t, splitLeft);
+            pull(t);
+            splitLeft = t;
+        } else {
+            split(left(t), b, m, l);
+            setLeft(t, splitRight);
+            pull(t);
+            splitRight = t;
+        }
+    }
+
+    private int merge(int a, int b) {
+        if (a == NIL) return b;
+        if (b == NIL) return a;
+        if (priority(a) > priority(b)) {
+            setRight(a, merge(right(a), b));
+            pull(a);
+            return a;
+        }
+        setLeft(b, merge(a, left(b)));
+        pull(b);
+        return b;
+    }
+
+    private int erase(int t, long b, long m, long l) {
+        if (t == NIL) {
+            return NIL;
+        }
+        int c = compare(t, b, m, l);
+        if (c == 0) {
+            return merge(left(t), right(t));
+        }
+        if (c < 0) {
+            setRight(t, erase(right(t), b, m, l));
+        } else {
+            setLeft(t, erase(left(t), b, m, l));
+        }
+        meta[META * t]--;
+        return t;
+    }
+
+    // --------------- Node storage ---------------
+
+    private long balance(int t) {
+        return nodes[NODE * t];
+    }
+
+    private int left(int t) {
+        return (int) (nodes[NODE * t + 3] >>> 32);
+    }
+
+    private int right(int t) {
+        return (int) nodes[NODE * t + 3];
+    }
+
+    private void setLinks(int t, int leftChild, int rightChild) {
+        nodes[NODE * t + 3] = ((long) leftChild << 32) | (rightChild & 0xFFFFFFFFL);
+    }
+
+    private void setLeft(int t, int child) {
+        setLinks(t, child, right(t));
+    }
+
+    private void setRight(int t, int child) {
+        setLinks(t, left(t), child);
+    }
+
+    private int size(int t) {
+        return meta[META * t];
+    }
+
+    private int priority(int t) {
+        return meta[META * t + 1];
+    }
+
+    private void pull(int t) {
+        meta[META * t] = size(left(t)) + size(right(t)) + 1;
+    }
+
+    private int alloc(long m, long l, long b) {
+        int node;
+        if (freeList != NIL) {
+            node = freeList;
+            freeList = left(node);
+        } else {
+            if (NODE * nextNode == nodes.length) {
+                nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                meta = Arrays.copyOf(meta, meta.length * 2);
+            }
+            node = nextNode++;
+        }
+        int base = NODE * node;
+        nodes[base] = b;
+        nodes[base + 1] = m;
+        nodes[base + 2] = l;
+        nodes[base + 3] = 0L; // both links NIL
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        meta[META * node] = 1;
+        meta[META * node + 1] = seed;
+        return node;
+    }
+
+    private void free(int node) {
+        setLinks(node, freeList, NIL);
+        freeList = node;
+    }
+
+    // --------------- Account index ---------------
+
+    private static int[] newIndexNodes(int capacity) {
+        int[] nodes = new int[capacity];
+        Arrays.fill(nodes, ABSENT);
+        return nodes;
+    }
+
+    private int indexSlot(long m, long l) {
+        int mask = indexNodes.length - 1;
+        int idx = (int) BalanceTable.hash(m, l) & mask;
+        while (indexNodes[idx] != ABSENT && (indexKeys[2 * idx] != m || indexKeys[2 * idx + 1] != l)) {
+            idx = (idx + 1) & mask;
+        }
+        return idx;
+    }
+
+    private int indexGet(long m, long l) {
+        return indexNodes[indexSlot(m, l)];
+    }
+
+    private void indexPut(long m, long l, int node) {
+        int idx = indexSlot(m, l);
+        if (indexNodes[idx] == ABSENT) {
+            if (indexSize + 1 > indexNodes.length * 3 / 4) {
+                growIndex();
+                idx = indexSlot(m, l);
+            }
+            indexKeys[2 * idx] = m;
+            indexKeys[2 * idx + 1] = l;
+            indexSize++;
+        }
+        indexNodes[idx] = node;
+    }
+
+    // Shifts later entries of the probe run back into the hole, as BalanceTable.Segment#delete does
+    private void indexRemove(long m, long l) {
+        int mask = indexNodes.length - 1;
+        int hole = indexSlot(m, l);
+        if (indexNodes[hole] == ABSENT) {
+            return;
+        }
+        int idx = hole;
+        while (true) {
+            idx = (idx + 1) & mask;
+            if (indexNodes[idx] == ABSENT) {
+                break;
+            }
+            int home = (int) BalanceTable.hash(indexKeys[2 * idx], indexKeys[2 * idx + 1]) & mask;
+            if (((idx - home) & mask) >= ((idx - hole) & mask)) {
+                indexKeys[2 * hole] = indexKeys[2 * idx];
+                indexKeys[2 * hole + 1] = indexKeys[2 * idx + 1];
+                indexNodes[hole] = indexNodes[idx];
+                hole = idx;
+            }
+        }
+        indexNodes[hole] = ABSENT;
+        indexSize--;
+    }
+
+    private void growIndex() {
+        long[] oldKeys = indexKeys;
+        int[] oldNodes = indexNodes;
+        indexKeys = new long[oldKeys.length * 2];
+        indexNodes = newIndexNodes(oldNodes.length * 2);
+        for (int i = 0; i < oldNodes.length; i++) {
+            if (oldNodes[i] != ABSENT) {
+                int idx = indexSlot(oldKeys[2 * i], oldKeys[2 * i + 1]);
+                indexKeys[2 * idx] = oldKeys[2 * i];
+                indexKeys[2 * idx + 1] = oldKeys[2 * i + 1];
+                indexNodes[idx] = oldNodes[i];
+            }
+        }
+    }
+}
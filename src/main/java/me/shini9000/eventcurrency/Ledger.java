@@ -0,0 +1,830 @@
+package me.shini9000.eventcurrency;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+
+/**
+ * The balances and everything that keeps them durable: the in-memory {@link BalanceTable}, the
+ * append-only {@link BalanceJournal} in front of it and a {@link LedgerStorage} backend behind it.
+ *
+ * Every mutation is journaled as it happens and marks its account dirty; checkpoints on the I/O
+ * thread hand the dirty accounts (or, when the backend asks for it, a full snapshot) to the
+ * backend and then drop the journal generations it now covers. Mutations also go to the
+ * {@link AuditLog} along with the {@link AuditLog.Cause} the caller gives.
+ *
+ * <p>With a lazy backend the table is only a cache: accounts are fetched on first use and, past
+ * {@code storage.h2.max-cached-accounts}, clean accounts of offline players are dropped again.
+ */
+final class Ledger {
+
+    /** Told about every account that changes, with its segment lock held, so it must be cheap. */
+    interface ChangeListener {
+        void changed(long msb, long lsb);
+    }
+
+    // How long shutdown waits for an interrupted I/O task before closing files under it
+    private static final long IO_STOP_GRACE_MS = 2000L;
+
+    private final File dataFolder;
+    private final EventCurrencyConfig config;
+    private final Logger logger;
+    private final LedgerStorage storage;
+    private final Metrics metrics;
+    private final BalanceTable balances = new BalanceTable();
+    private final DirtyKeySet dirtyKeys = new DirtyKeySet();
+    private final Leaderboard leaderboard;
+    private final OperationDedupe dedupe;
+    private final File dedupeFile;
+    private final AuditLog audit; // null if audit.enabled is off
+    private final TokenExpiry expiry;
+    private BalanceJournal journal;
+    private long compactThresholdBytes;
+    private long fallbackGeneration; // used for checkpoints when the journal could not be opened
+    private final AtomicBoolean savePending = new AtomicBoolean();
+    private volatile ChangeListener[] changeListeners = new ChangeListener[0];
+    private final Object listenerLock = new Object();
+    private volatile BalanceTable.KeyFilter pinned; // accounts never evicted, i.e. online players
+    private final int maxCached; // 0 = unbounded; only honoured with a lazy backend
+    private boolean overCacheLimit; // warned once until eviction catches up again
+    // Checkpoints, snapshots and exports all run here, never on a proxy or scheduler thread
+    private final ScheduledExecutorService io = newIoExecutor();
+    private Future<?> finalSave; // shutdown only
+    private long finalSaveStart;
+
+    Ledger(File dataFolder, EventCurrencyConfig config, Logger logger, LedgerStorage storage, Metrics metrics) {
+        this(null, dataFolder, config, logger, storage, metrics);
+    }
+
+    /** {@code currency} labels this ledger's gauges; null for the default currency, whose gauges have no label. */
+    Ledger(String currency, File dataFolder, EventCurrencyConfig config, Logger logger, LedgerStorage storage,
+           Metrics metrics) {
+        this.dataFolder = dataFolder;
+        this.config = config;
+        this.logger = logger;
+        this.storage = storage;
+        this.metrics = metrics;
+        this.dedupe = new OperationDedupe(
+                TimeUnit.SECONDS.toMillis(config.getLong("bridge.dedupe-window-seconds", 600L)),
+                config.getInt("bridge.dedupe-max-ids", 100000));
+        this.dedupeFile = new File(dataFolder, "dedupe.dat");
+        this.audit = !config.getBoolean("audit.enabled", true) ? null : new AuditLog(new File(dataFolder, "audit"),
+                logger, metrics, currency,
+                config.getLong("audit.segment-bytes", 8L * 1024 * 1024),
+                TimeUnit.DAYS.toMillis(config.getLong("audit.retention-days", 30L)),
+                config.getLong("audit.flush-interval-ms", 1000L),
+                config.getInt("audit.queue-capacity", 65536));
+        this.expiry = new TokenExpiry(new File(dataFolder, "expiry.dat"), this, io, logger, metrics, currency,
+                config.getLong("expiry.tick-ms", 1000L),
+                TimeUnit.DAYS.toMillis(config.getLong("decay.idle-days", 30L)),
+                config.getBoolean("decay.enabled", false) ? config.getInt("decay.percent", 10) : 0);
+        this.maxCached = Math.max(0, config.getInt("storage.h2.max-cached-accounts", 100000));
+        this.leaderboard = !storage.isLazy() ? new Leaderboard(balances, 10) : new Leaderboard(balances, 10,
+                config.getInt("storage.h2.leaderboard-kept", 1000), new StoredRanking());
+        metrics.gauge("accounts", "Accounts held in memory", currency, balances::size);
+        metrics.gauge("dirty_accounts", "Accounts changed since the last checkpoint", currency, dirtyKeys::size);
+        metrics.gauge("journal_bytes", "Size of the current journal generation", currency, () -> {
+            BalanceJournal j = journal;
+            return j == null ? 0L : j.size();
+        });
+    }
+
+    /**
+     * Loads the backend (or imports {@code importFrom} into it if it has never been written),
+     * replays the journal on top and starts periodic autosaves.
+     */
+    void open(LedgerStorage importFrom) {
+        long coveredGeneration = loadBalances(importFrom);
+        loadDedupe();
+        openJournal(coveredGeneration);
+        balances.setListener(this::onTableUpdate);
+        if (storage.isLazy()) {
+            balances.setLoader((msb, lsb) -> {
+                metrics.accountLoads.increment();
+                try {
+                    return storage.loadOne(msb, lsb);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex); // fail the operation rather than treat the account as empty
+                }
+            });
+        }
+        if (audit != null) {
+            audit.open();
+        }
+        expiry.open();
+        io.execute(this::buildLeaderboard);
+        io.scheduleWithFixedDelay(this::autosaveIfDirty, 60L, 60L, TimeUnit.SECONDS);
+        io.scheduleWithFixedDelay(this::refreshLeaderboard, 5L, 5L, TimeUnit.SECONDS);
+        if (storage.isLazy() && maxCached > 0) {
+            io.scheduleWithFixedDelay(this::evictIfOverCapacity, 10L, 10L, TimeUnit.SECONDS);
+        }
+    }
+
+    // Off the startup path; changes made meanwhile are already queued in the leaderboard and win over the seed
+    private void buildLeaderboard() {
+        try {
+            long start = System.nanoTime();
+            if (storage.isLazy()) {
+                leaderboard.refill();
+            } else {
+                balances.forEach((msb, lsb, balance) -> leaderboard.seed(msb, lsb));
+            }
+            logger.info("Built the leaderboard over {} accounts in {} ms.", leaderboard.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (Exception ex) {
+            logger.error("Failed to build the leaderboard", ex);
+        }
+    }
+
+    // A bounded leaderboard is rebuilt here once a kept account has fallen below one it does not keep
+    private void refreshLeaderboard() {
+        try {
+            leaderboard.refresh();
+            if (leaderboard.isStale()) {
+                leaderboard.refill();
+            }
+        } catch (Exception ex) {
+            logger.warn("Failed to refresh the leaderboard: {}", ex.getMessage());
+        }
+    }
+
+    // Delayed saves are dropped at shutdown: the final checkpoint covers them
+    private static ScheduledExecutorService newIoExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "EventCurrency-IO");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return executor;
+    }
+
+    /** Queues the last checkpoint on the I/O thread without waiting for it; {@link #close(long)} waits. */
+    void beginFinalSave() {
+        if (finalSave != null) {
+            return;
+        }
+        finalSaveStart = System.nanoTime();
+        try {
+            finalSave = io.submit(this::checkpoint);
+        } catch (RejectedExecutionException ex) {
+            finalSave = CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /** {@link #close(long)} with this ledger's own shutdown.save-timeout-ms. */
+    void close() {
+        close(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getLong("shutdown.save-timeout-ms", 10000L)));
+    }
+
+    /**
+     * Waits until {@code deadline} (a {@link System#nanoTime} value) for the final save and for the
+     * I/O thread to stop, then closes token expiry, the journal, the audit log and the backend.
+     * Ledgers that start their final saves first and then close against one deadline shut down in
+     * one save timeout rather than one each.
+     */
+    void close(long deadline) {
+        beginFinalSave();
+        awaitFinalSave(deadline);
+        stopIo(deadline);
+        expiry.close();
+        if (audit != null) {
+            audit.close();
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (Exception ex) {
+                logger.error("Failed to close balance journal", ex);
+            }
+        }
+        try {
+            storage.close();
+        } catch (Exception ex) {
+            logger.error("Failed to close {} storage", storage.name(), ex);
+        }
+    }
+
+    // Giving up is safe: every change is already in the journal and is replayed on the next start
+    private void awaitFinalSave(long deadline) {
+        try {
+            finalSave.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            logger.info("Final save finished in {} ms.", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - finalSaveStart));
+        } catch (TimeoutException ex) {
+            logger.warn("Final save did not finish within {} ms; the journal will be replayed on next start.",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - finalSaveStart));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted waiting for the final save; the journal will be replayed on next start.");
+        } catch (Exception ex) {
+            logger.error("Final save failed; the journal will be replayed on next start", ex);
+        }
+    }
+
+    // Nothing closed after this may still be in use by a task on the I/O thread
+    private void stopIo(long deadline) {
+        io.shutdown();
+        try {
+            if (!io.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                io.shutdownNow();
+                if (!io.awaitTermination(IO_STOP_GRACE_MS, TimeUnit.MILLISECONDS)) {
+                    logger.warn("The I/O thread did not stop within {} ms of being interrupted; closing anyway.",
+                            IO_STOP_GRACE_MS);
+                }
+            }
+        } catch (InterruptedException ex) {
+            io.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // --------------- Balances ---------------
+
+    long get(long msb, long lsb) {
+        return balances.get(msb, lsb);
+    }
+
+    // The table reports each resulting balance under its segment lock (see onTableUpdate)
+    void set(long msb, long lsb, long amount) {
+        set(msb, lsb, amount, 0L, AuditLog.Cause.API);
+    }
+
+    /**
+     * Mutations tagged with an operation ID (0 for none) are journaled together with it; see
+     * {@link #claimOperation}. The cause is what the audit log records.
+     */
+    void set(long msb, long lsb, long amount, long operation, AuditLog.Cause cause) {
+        long balance = Math.max(0L, amount);
+        long previous = balances.set(msb, lsb, balance, operation);
+        metrics.sets.increment();
+        audit(msb, lsb, balance - previous, balance, cause);
+        onBalanceChanged();
+    }
+
+    long add(long msb, long lsb, long amount) {
+        return add(msb, lsb, amount, 0L, AuditLog.Cause.API);
+    }
+
+    long add(long msb, long lsb, long amount, long operation, AuditLog.Cause cause) {
+        if (amount <= 0) return get(msb, lsb);
+        long newVal = balances.add(msb, lsb, amount, operation);
+        metrics.gives.increment();
+        audit(msb, lsb, amount, newVal, cause);
+        onBalanceChanged();
+        return newVal;
+    }
+
+    boolean spend(long msb, long lsb, long amount) {
+        return spend(msb, lsb, amount, 0L, AuditLog.Cause.API);
+    }
+
+    boolean spend(long msb, long lsb, long amount, long operation, AuditLog.Cause cause) {
+        if (amount <= 0) return true;
+        long newVal = balances.trySpend(msb, lsb, amount, operation);
+        if (newVal == BalanceTable.INSUFFICIENT) {
+            metrics.takesRejected.increment();
+            return false;
+        }
+        metrics.takes.increment();
+        audit(msb, lsb, -amount, newVal, cause);
+        onBalanceChanged();
+        return true;
+    }
+
+    /**
+     * Adds the amount to every account in {@code keys} (msb/lsb pairs) as one batch: one journal
+     * record and at most one save request, however many accounts. Returns the new balances.
+     */
+    long[] addAll(long[] keys, long amount, long operation, AuditLog.Cause cause) {
+        long[] updated = balances.addAll(keys, Math.max(0L, amount), operation, this::onTableBatch);
+        metrics.batches.increment();
+        metrics.gives.add(updated.length);
+        auditAll(keys, updated, Math.max(0L, amount), cause);
+        onBalanceChanged();
+        return updated;
+    }
+
+    /** Batched {@link #spend}; accounts that cannot cover the amount get {@link BalanceTable#INSUFFICIENT}. */
+    long[] spendAll(long[] keys, long amount, long operation, AuditLog.Cause cause) {
+        long[] updated = balances.spendAll(keys, Math.max(0L, amount), operation, this::onTableBatch);
+        int rejected = 0;
+        for (long v : updated) {
+            if (v == BalanceTable.INSUFFICIENT) {
+                rejected++;
+            }
+        }
+        metrics.batches.increment();
+        metrics.takes.add(updated.length - rejected);
+        metrics.takesRejected.add(rejected);
+        auditAll(keys, updated, -Math.max(0L, amount), cause);
+        onBalanceChanged();
+        return updated;
+    }
+
+    /**
+     * Deducts a separate amount from each account, capped at what it holds, as one batch like
+     * {@link #addAll}. Returns the new balances; {@code amounts} ends up holding what was taken.
+     */
+    long[] deductAll(long[] keys, long[] amounts, AuditLog.Cause cause) {
+        return deductAll(keys, amounts, 0L, cause);
+    }
+
+    long[] deductAll(long[] keys, long[] amounts, long operation, AuditLog.Cause cause) {
+        long[] updated = balances.deductAll(keys, amounts, operation, this::onTableBatch);
+        metrics.batches.increment();
+        if (audit != null) {
+            for (int i = 0; i < updated.length; i++) {
+                if (amounts[i] > 0) {
+                    audit.log(keys[2 * i], keys[2 * i + 1], -amounts[i], updated[i], cause);
+                }
+            }
+        }
+        onBalanceChanged();
+        return updated;
+    }
+
+    /**
+     * Moves the amount between two accounts atomically if the sender can cover it and the receiver
+     * can hold it without overflowing; refusals count as rejected transfers. Both balances
+     * go into one journal record, so a crash never leaves one side applied without the other.
+     */
+    boolean transfer(long fromMsb, long fromLsb, long toMsb, long toLsb, long amount, long operation,
+                     AuditLog.Cause cause) {
+        if (amount <= 0) return true;
+        long[] after = new long[2];
+        long newVal = balances.transfer(fromMsb, fromLsb, toMsb, toLsb, amount, operation, (keys, results, op) -> {
+            onTableBatch(keys, results, op);
+            System.arraycopy(results, 0, after, 0, 2);
+        });
+        if (newVal == BalanceTable.INSUFFICIENT) {
+            metrics.transfersRejected.increment();
+            return false;
+        }
+        metrics.transfers.increment();
+        if (fromMsb != toMsb || fromLsb != toLsb) {
+            audit(fromMsb, fromLsb, -amount, after[0], cause);
+            audit(toMsb, toLsb, amount, after[1], cause);
+        }
+        onBalanceChanged();
+        return true;
+    }
+
+    private void audit(long msb, long lsb, long delta, long balance, AuditLog.Cause cause) {
+        if (audit != null) {
+            audit.log(msb, lsb, delta, balance, cause);
+        }
+    }
+
+    private void auditAll(long[] keys, long[] balances, long delta, AuditLog.Cause cause) {
+        if (audit == null) {
+            return;
+        }
+        for (int i = 0; i < balances.length; i++) {
+            if (balances[i] != BalanceTable.INSUFFICIENT) {
+                audit.log(keys[2 * i], keys[2 * i + 1], delta, balances[i], cause);
+            }
+        }
+    }
+
+    /**
+     * Records an operation ID before it is applied; false if it was already applied within the
+     * dedupe window, in which case the caller must drop it. The ID is persisted by tagging the
+     * mutation with it.
+     */
+    boolean claimOperation(long operation) {
+        if (dedupe.add(operation)) {
+            return true;
+        }
+        metrics.duplicateOperations.increment();
+        return false;
+    }
+
+    /**
+     * Visits every account, resident or only in a lazy backend. Resident accounts go first and may
+     * be visited again with an older stored balance, so callers that need the current one ask {@link #get}.
+     */
+    void forEachAccount(BalanceVisitor visitor) throws IOException {
+        balances.forEach(visitor);
+        if (storage.isLazy()) {
+            storage.scan(visitor);
+        }
+    }
+
+    // Copy-on-write, so mutations iterate a plain array; the lock only orders concurrent registrations
+    void addChangeListener(ChangeListener listener) {
+        synchronized (listenerLock) {
+            ChangeListener[] next = Arrays.copyOf(changeListeners, changeListeners.length + 1);
+            next[next.length - 1] = listener;
+            changeListeners = next;
+        }
+    }
+
+    void removeChangeListener(ChangeListener listener) {
+        synchronized (listenerLock) {
+            changeListeners = Arrays.stream(changeListeners).filter(l -> l != listener).toArray(ChangeListener[]::new);
+        }
+    }
+
+    /** Accounts the filter accepts stay in memory whatever the cache limit. */
+    void setPinned(BalanceTable.KeyFilter pinned) {
+        this.pinned = pinned;
+    }
+
+    /** With a lazy backend, fetches the account on the I/O thread so the first real access does not wait for it. */
+    void preload(long msb, long lsb) {
+        if (!storage.isLazy()) {
+            return;
+        }
+        try {
+            io.execute(() -> {
+                try {
+                    balances.get(msb, lsb);
+                } catch (Exception ex) {
+                    logger.warn("Failed to preload balance: {}", ex.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+            // shutting down
+        }
+    }
+
+    // Called by the table with the account's segment lock held
+    private void onTableUpdate(long msb, long lsb, long oldBalance, long newBalance, long operation) {
+        dirtyKeys.add(msb, lsb);
+        leaderboard.markChanged(msb, lsb);
+        for (ChangeListener l : changeListeners) {
+            l.changed(msb, lsb);
+        }
+        BalanceJournal j = journal;
+        if (j != null) {
+            j.appendSet(msb, lsb, newBalance, operation);
+        }
+    }
+
+    // Called by the table with every segment of the batch (or transfer) locked; skipped accounts are left out of the record
+    private void onTableBatch(long[] keys, long[] results, long operation) {
+        long[] changedKeys = new long[keys.length];
+        long[] changed = new long[results.length];
+        int n = 0;
+        ChangeListener[] listeners = changeListeners;
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == BalanceTable.INSUFFICIENT) {
+                continue;
+            }
+            long msb = keys[2 * i];
+            long lsb = keys[2 * i + 1];
+            dirtyKeys.add(msb, lsb);
+            leaderboard.markChanged(msb, lsb);
+            for (ChangeListener l : listeners) {
+                l.changed(msb, lsb);
+            }
+            changedKeys[2 * n] = msb;
+            changedKeys[2 * n + 1] = lsb;
+            changed[n++] = results[i];
+        }
+        BalanceJournal j = journal;
+        if (j != null && n > 0) {
+            j.appendBatch(changedKeys, changed, n, operation);
+        }
+    }
+
+    private void onBalanceChanged() {
+        if (journal == null) {
+            requestSaveDebounced(500);
+        } else if (journal.size() >= compactThresholdBytes) {
+            requestSaveDebounced(0);
+        }
+    }
+
+    // Schedules a checkpoint; with the journal enabled this only happens once the journal is large
+    private void requestSaveDebounced(long delayMs) {
+        if (!savePending.compareAndSet(false, true)) { // one pending save is enough
+            metrics.saveRequestsCoalesced.increment();
+            return;
+        }
+        metrics.saveRequests.increment();
+        try {
+            io.schedule(() -> {
+                try {
+                    checkpoint();
+                } finally {
+                    savePending.set(false); // allow future schedules
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            savePending.set(false); // shutting down; the journal has the change
+        }
+    }
+
+    // --------------- Loading ---------------
+
+    /** Loads the backend and returns the first journal generation it does not cover. */
+    private long loadBalances(LedgerStorage importFrom) {
+        try {
+            if (importFrom != null && storage.isEmpty() && !importFrom.isEmpty()) {
+                return importBalances(importFrom);
+            }
+            return storage.load(balances::set);
+        } catch (Exception ex) {
+            logger.error("Failed to load balances from {} storage", storage.name(), ex);
+            return 0L;
+        }
+    }
+
+    // First start on a new backend: copy the old store over so switching storage.type keeps balances
+    private long importBalances(LedgerStorage importFrom) throws IOException {
+        try (importFrom) {
+            long generation = importFrom.load(balances::set);
+            storage.writeAll(generation, balances::forEach);
+            logger.info("Imported {} balances from {} storage into {} storage.",
+                    balances.size(), importFrom.name(), storage.name());
+            return generation;
+        }
+    }
+
+    private void loadDedupe() {
+        if (!dedupeFile.exists()) {
+            return;
+        }
+        try {
+            dedupe.load(dedupeFile);
+        } catch (IOException ex) {
+            logger.error("Failed to load {}, recently applied bridge operations may be accepted again",
+                    dedupeFile.getName(), ex);
+        }
+    }
+
+    /**
+     * Replays whatever the backend does not cover and starts a new journal generation.
+     * If the journal cannot be opened we fall back to debounced full saves.
+     */
+    private void openJournal(long coveredGeneration) {
+        File journalDir = new File(dataFolder, "journal");
+        this.compactThresholdBytes = config.getLong("journal.compact-threshold-bytes", 16L * 1024 * 1024);
+        this.fallbackGeneration = coveredGeneration;
+        try {
+            long[] replayed = {0L};
+            long highest = BalanceJournal.replay(journalDir, coveredGeneration, (msb, lsb, balance) -> {
+                balances.set(msb, lsb, balance);
+                dirtyKeys.add(msb, lsb); // not in any checkpoint yet
+                replayed[0]++;
+            }, dedupe::add, logger);
+            if (replayed[0] > 0) {
+                logger.info("Replayed {} journal records on top of the {} storage.", replayed[0], storage.name());
+            }
+            this.fallbackGeneration = Math.max(highest + 1, coveredGeneration);
+            BalanceJournal opened = new BalanceJournal(journalDir, logger,
+                    config.getEnum("journal.fsync", BalanceJournal.FsyncMode.class, BalanceJournal.FsyncMode.INTERVAL),
+                    config.getLong("journal.fsync-interval-ms", 1000L),
+                    config.getLong("journal.group-commit-ms", 5L));
+            opened.open(Math.max(highest + 1, coveredGeneration));
+            this.journal = opened;
+        } catch (Exception ex) {
+            logger.error("Failed to open balance journal, falling back to full saves", ex);
+            this.journal = null;
+        }
+    }
+
+    // --------------- Checkpoints ---------------
+
+    private void autosaveIfDirty() {
+        try {
+            if (!dirtyKeys.isEmpty()) {
+                checkpoint();
+            }
+        } catch (Exception ex) {
+            logger.error("Autosave failed", ex); // keep the periodic task alive
+        }
+    }
+
+    /**
+     * Hands only the accounts changed since the last checkpoint to the backend, then drops the
+     * journal generations it covers. Falls back to a full write when the backend asks for one.
+     */
+    synchronized void checkpoint() {
+        if (journal == null || storage.wantsFullWrite()) {
+            saveBalances();
+            return;
+        }
+        if (dirtyKeys.isEmpty()) {
+            return;
+        }
+        long[] keys = null;
+        long start = System.nanoTime();
+        try {
+            long generation = journal.rotate();
+            // Every key journaled before the rotation is in the set by now
+            keys = dirtyKeys.drain();
+            long[] values = new long[keys.length / 2];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = balances.get(keys[2 * i], keys[2 * i + 1]);
+            }
+            storage.writeChanges(generation, keys, values);
+            if (saveDedupe()) {
+                journal.deleteBefore(generation);
+            }
+            metrics.checkpointLatency.recordSince(start);
+        } catch (Exception ex) {
+            if (keys != null) {
+                dirtyKeys.addAll(keys);
+            }
+            metrics.saveFailures.increment();
+            logger.error("Failed to write {} checkpoint", storage.name(), ex);
+        }
+    }
+
+    /**
+     * Writes the whole ledger to the backend. The journal is rotated first, so the snapshot covers
+     * every sealed generation even while mutations keep arriving.
+     */
+    synchronized void saveBalances() {
+        long[] keys = null;
+        try {
+            long generation = journal != null ? journal.rotate() : fallbackGeneration;
+            // The full snapshot below covers these; anything changed from here on is marked again
+            keys = dirtyKeys.drain();
+
+            // Point-in-time view; writers keep going and only copy the segments they touch
+            long start = System.nanoTime();
+            try (BalanceTable.Snapshot snapshot = balances.snapshot()) {
+                storage.writeAll(generation, snapshot::forEach);
+            }
+            metrics.fullSaveLatency.recordSince(start);
+            logger.info("Wrote {} balances to {} storage in {} ms.", balances.size(), storage.name(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            if (journal != null && saveDedupe()) {
+                journal.deleteBefore(generation);
+            }
+        } catch (Exception ex) {
+            if (keys != null) {
+                dirtyKeys.addAll(keys);
+            }
+            metrics.saveFailures.increment();
+            logger.error("Failed to save balances to {} storage", storage.name(), ex);
+        }
+    }
+
+    // --------------- Cache eviction ---------------
+
+    /**
+     * Shrinks the table to 90% of the limit by dropping clean accounts of offline players. Dirty
+     * accounts are written back first; running on the I/O thread, like every checkpoint, means
+     * nothing dropped here can still be on its way to the backend.
+     */
+    synchronized void evictIfOverCapacity() {
+        try {
+            if (balances.size() <= maxCached) {
+                overCacheLimit = false;
+                return;
+            }
+            if (!dirtyKeys.isEmpty()) {
+                checkpoint();
+            }
+            int excess = balances.size() - (maxCached - maxCached / 10);
+            BalanceTable.KeyFilter pin = pinned;
+            long[] victims = new long[Math.max(0, excess) * 2];
+            int[] count = { 0 };
+            balances.forEach((msb, lsb, balance) -> {
+                if (count[0] < victims.length && !dirtyKeys.contains(msb, lsb)
+                        && (pin == null || !pin.test(msb, lsb))) {
+                    victims[count[0]++] = msb;
+                    victims[count[0]++] = lsb;
+                }
+            });
+            int evicted = 0;
+            for (int i = 0; i < count[0]; i += 2) {
+                // Re-checked under the segment lock: a change since the scan keeps the account
+                if (balances.evict(victims[i], victims[i + 1], dirtyKeys::contains)) {
+                    evicted++;
+                }
+            }
+            metrics.accountEvictions.add(evicted);
+            boolean over = balances.size() > maxCached;
+            if (over && !overCacheLimit) {
+                logger.warn("{} accounts in memory after eviction, over the limit of {}; most belong to online players "
+                        + "or are waiting to be saved.", balances.size(), maxCached);
+            }
+            overCacheLimit = over;
+        } catch (Exception ex) {
+            logger.error("Cache eviction failed", ex); // keep the periodic task alive
+        }
+    }
+
+    // The journal generations about to be deleted hold operation IDs too; keep them unless they are safe in dedupe.dat
+    private boolean saveDedupe() {
+        if (dedupe.size() == 0 && !dedupeFile.exists()) {
+            return true;
+        }
+        try {
+            dedupe.save(dedupeFile);
+            return true;
+        } catch (IOException ex) {
+            logger.error("Failed to save {}, keeping the journal until it can be written", dedupeFile.getName(), ex);
+            return false;
+        }
+    }
+
+    /**
+     * Writes a human-readable copy of every balance to exports/balances-&lt;timestamp&gt;.yml on the
+     * I/O thread. Over a lazy backend that includes the accounts only in the store.
+     */
+    CompletableFuture<File> exportYaml() {
+        return CompletableFuture.supplyAsync(() -> {
+            File exportDir = new File(dataFolder, "exports");
+            File out = new File(exportDir, "balances-" + Instant.now().toEpochMilli() + ".yml");
+            try (BalanceTable.Snapshot snapshot = balances.snapshot()) {
+                if (!exportDir.exists() && !exportDir.mkdirs()) {
+                    throw new IOException("Failed to create export folder: " + exportDir.getAbsolutePath());
+                }
+                if (!storage.isLazy()) {
+                    YamlLedgerFormat.write(out, snapshot::forEach);
+                } else {
+                    YamlLedgerFormat.write(out, visitor -> exportLazy(snapshot, visitor));
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return out;
+        }, io);
+    }
+
+    // Accounts in memory with their snapshot balance, then the stored ones the snapshot did not have
+    private void exportLazy(BalanceTable.Snapshot snapshot, BalanceVisitor visitor) {
+        DirtyKeySet resident = new DirtyKeySet();
+        snapshot.forEach((msb, lsb, balance) -> {
+            resident.add(msb, lsb);
+            visitor.accept(msb, lsb, balance);
+        });
+        try {
+            storage.scan((msb, lsb, balance) -> {
+                if (!resident.contains(msb, lsb)) {
+                    visitor.accept(msb, lsb, balance);
+                }
+            });
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /** Ranks below a lazy ledger's kept leaderboard top, answered by the backend's index. */
+    private final class StoredRanking implements Leaderboard.Ranking {
+
+        @Override
+        public long count() throws IOException {
+            return storage.countRanked();
+        }
+
+        @Override
+        public long countBefore(long balance, long msb, long lsb) throws IOException {
+            return storage.countRankedBefore(balance, msb, lsb);
+        }
+
+        @Override
+        public void page(long offset, int limit, BalanceVisitor visitor) throws IOException {
+            storage.ranked(offset, limit, visitor);
+        }
+    }
+
+    // --------------- Getters ---------------
+
+    BalanceTable table() {
+        return balances;
+    }
+
+    Leaderboard leaderboard() {
+        return leaderboard;
+    }
+
+    Metrics metrics() {
+        return metrics;
+    }
+
+    /** Null when audit.enabled is off. */
+    AuditLog audit() {
+        return audit;
+    }
+
+    TokenExpiry expiry() {
+        return expiry;
+    }
+
+    LedgerStorage storage() {
+        return storage;
+    }
+
+    ScheduledExecutorService io() {
+        return io;
+    }
+}
@@ -0,0 +1,164 @@
+package me.shini9000.eventcurrency;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Binary balance snapshot: a fixed header followed by 24-byte records (UUID msb, UUID lsb, balance)
+ * and a CRC32 trailer over the records.
+ *
+ * <pre>
+ * int  magic "ECSN"   int  version   int flags   int reserved
+ * long journal generation            long record count
+ * count x { long msb, long lsb, long balance }
+ * int  crc32(records)
+ * </pre>
+ *
+ * Snapshots are read through a memory-mapped channel and written with NIO to a temp file that
+ * is synced and atomically moved into place.
+ */
+final class LedgerSnapshot {
+
+    private static final int MAGIC = 0x4543534E; // "ECSN"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int RECORD_BYTES = 24;
+    private static final int TRAILER_BYTES = 4;
+    // Largest mapping we create at once; a whole number of records and well under 2 GiB.
+    private static final long MAX_WINDOW_BYTES = RECORD_BYTES * (1L << 24);
+
+    private LedgerSnapshot() {
+    }
+
+    /**
+     * Verifies the snapshot and feeds every record to the visitor.
+     *
+     * @return the first journal generation this snapshot does not cover
+     * @throws IOException if the file is truncated, of another format or fails its checksum
+     */
+    static long read(File file, BalanceVisitor visitor) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < HEADER_BYTES + TRAILER_BYTES) {
+                throw new IOException(file.getName() + " is truncated");
+            }
+            ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(file.getName() + " is not a balance snapshot");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(file.getName() + " has unsupported version " + version);
+            }
+            header.getInt(); // flags
+            header.getInt(); // reserved
+            long generation = header.getLong();
+            long count = header.getLong();
+            long recordBytes = count * RECORD_BYTES;
+            if (count < 0 || HEADER_BYTES + recordBytes + TRAILER_BYTES != size) {
+                throw new IOException(file.getName() + " record count does not match its size");
+            }
+
+            // Checksum first so a damaged file never half-populates the ledger
+            CRC32 crc = new CRC32();
+            for (long off = 0; off < recordBytes; off += MAX_WINDOW_BYTES) {
+                long len = Math.min(MAX_WINDOW_BYTES, recordBytes - off);
+                crc.update(ch.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + off, len));
+            }
+            int expected = ch.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + recordBytes, TRAILER_BYTES).getInt();
+            if ((int) crc.getValue() != expected) {
+                throw new IOException(file.getName() + " failed its checksum");
+            }
+
+            for (long off = 0; off < recordBytes; off += MAX_WINDOW_BYTES) {
+                int len = (int) Math.min(MAX_WINDOW_BYTES, recordBytes - off);
+                MappedByteBuffer window = ch.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + off, len);
+                for (int pos = 0; pos < len; pos += RECORD_BYTES) {
+                    visitor.accept(window.getLong(pos), window.getLong(pos + 8), window.getLong(pos + 16));
+                }
+            }
+            return generation;
+        }
+    }
+
+    /**
+     * Writes a snapshot of whatever {@code source} feeds into the visitor it is handed.
+     * The previous snapshot stays in place until the new one is complete and synced.
+     */
+    static void write(File file, long generation, Consumer<BalanceVisitor> source) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            RecordWriter out = new RecordWriter(ch);
+            source.accept(out);
+            out.finish();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(0).putInt(0)
+                    .putLong(generation).putLong(out.count).flip();
+            long pos = 0;
+            while (header.hasRemaining()) {
+                pos += ch.write(header, pos);
+            }
+            ch.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static final class RecordWriter implements BalanceVisitor {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_BYTES * 8192);
+        private final CRC32 crc = new CRC32();
+        private long count;
+        private IOException failure;
+
+        RecordWriter(FileChannel channel) throws IOException {
+            this.channel = channel;
+            channel.position(HEADER_BYTES);
+        }
+
+        @Override
+        public void accept(long msb, long lsb, long balance) {
+            if (failure != null) {
+                return;
+            }
+            if (buffer.remaining() < RECORD_BYTES) {
+                flushBuffer();
+            }
+            buffer.putLong(msb).putLong(lsb).putLong(balance);
+            count++;
+        }
+
+        private void flushBuffer() {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException ex) {
+                failure = ex;
+            }
+            buffer.clear();
+        }
+
+        void finish() throws IOException {
+            flushBuffer();
+            if (failure != null) {
+                throw failure;
+            }
+            buffer.putInt((int) crc.getValue()).flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
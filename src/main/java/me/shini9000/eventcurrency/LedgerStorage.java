@@ -0,0 +1,100 @@
+package me.shini9000.eventcurrency;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Where balances live between restarts. Every change is already durable in the journal the moment
+ * it happens, so a backend only has to absorb checkpoints: either the accounts that changed since
+ * the last one, or the whole ledger. Each write records the journal generation it covers up to,
+ * and {@link #load} hands that generation back so the journal can be replayed from there.
+ *
+ * Backends are only called from the ledger's I/O thread, except {@link #loadOne}, which lazy
+ * backends serve from whichever thread first touches an account, and the ranking queries, which a
+ * lazy ledger's leaderboard asks from the thread running the command.
+ */
+interface LedgerStorage extends AutoCloseable {
+
+    /** Short name for logs and the storage.type setting. */
+    String name();
+
+    /** True if nothing has ever been written to this store. */
+    boolean isEmpty() throws IOException;
+
+    /**
+     * Feeds the persisted balances into the visitor; lazy backends feed nothing and serve accounts
+     * through {@link #loadOne} instead.
+     *
+     * @return the first journal generation the store does not cover
+     */
+    long load(BalanceVisitor visitor) throws IOException;
+
+    /** Streams every stored balance to the visitor, also for lazy backends; used to walk accounts that are not in memory. */
+    void scan(BalanceVisitor visitor) throws IOException;
+
+    /** Whether accounts are fetched one at a time on first use rather than all at startup. */
+    boolean isLazy();
+
+    /** Reads a single account, or returns -1 if the store has no balance for it. */
+    long loadOne(long msb, long lsb) throws IOException;
+
+    // --------------- Ranking ---------------
+    // Only a lazy ledger asks these, for accounts below the leaderboard top it keeps in memory. The
+    // defaults scan the whole store; a lazy backend answers from an index instead. Ranked accounts
+    // have a positive balance and go highest first, ties broken by msb, then lsb.
+
+    /** Accounts with a positive balance. */
+    default long countRanked() throws IOException {
+        long[] count = { 0L };
+        scan((msb, lsb, balance) -> {
+            if (balance > 0) {
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    /** Ranked accounts that come before the given one. */
+    default long countRankedBefore(long balance, long msb, long lsb) throws IOException {
+        long[] count = { 0L };
+        scan((m, l, b) -> {
+            if (b > 0 && (b > balance || b == balance && (m < msb || m == msb && l < lsb))) {
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    /** Feeds ranked accounts best first, skipping the first {@code offset} and stopping after {@code limit}. */
+    default void ranked(long offset, int limit, BalanceVisitor visitor) throws IOException {
+        List<long[]> all = new ArrayList<>();
+        scan((msb, lsb, balance) -> {
+            if (balance > 0) {
+                all.add(new long[] { msb, lsb, balance });
+            }
+        });
+        all.sort(Comparator.<long[]>comparingLong(e -> -e[2]).thenComparingLong(e -> e[0]).thenComparingLong(e -> e[1]));
+        for (long i = offset; i < Math.min(all.size(), offset + limit); i++) {
+            long[] e = all.get((int) i);
+            visitor.accept(e[0], e[1], e[2]);
+        }
+    }
+
+    /** Whether the next checkpoint should rewrite everything instead of calling {@link #writeChanges}. */
+    boolean wantsFullWrite();
+
+    /**
+     * Persists the accounts that changed. {@code keys} holds msb/lsb pairs and {@code balances}
+     * the matching balance for each pair.
+     */
+    void writeChanges(long generation, long[] keys, long[] balances) throws IOException;
+
+    /** Persists every balance {@code source} feeds into its visitor. */
+    void writeAll(long generation, Consumer<BalanceVisitor> source) throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,188 @@
+package me.shini9000.eventcurrency;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and latency histograms for the hot paths. Counters are {@link LongAdder}s, so
+ * incrementing from many threads does not contend; everything is read only when someone asks
+ * (the stats command or an exporter).
+ */
+final class Metrics {
+
+    private record Counter(String name, String help, LongAdder adder) {
+    }
+
+    private record Histogram(String name, String help, LatencyHistogram histogram) {
+    }
+
+    private record Gauge(String name, String help, String currency, LongSupplier value) {
+    }
+
+    private final List<Counter> counters = new ArrayList<>();
+    private final List<Histogram> histograms = new ArrayList<>();
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    // --------------- Ledger ---------------
+
+    final LongAdder gives = counter("gives_total", "Successful add operations");
+    final LongAdder takes = counter("takes_total", "Successful spend operations");
+    final LongAdder takesRejected = counter("takes_rejected_total", "Spends refused for insufficient balance");
+    final LongAdder sets = counter("sets_total", "Balance overwrites");
+    final LongAdder transfers = counter("transfers_total", "Player-to-player transfers applied");
+    final LongAdder transfersRejected = counter("transfers_rejected_total",
+            "Transfers refused because the sender could not cover them");
+    final LongAdder batches = counter("batches_total", "Give-all and take-all batches applied");
+    final LongAdder expiringGrants = counter("expiring_grants_total", "Grants made with an expiry");
+    final LongAdder expiredGrants = counter("expired_grants_total", "Expiring grants that came due");
+    final LongAdder expiredTokens = counter("expired_tokens_total", "Tokens taken back by expired grants");
+    final LongAdder decayedAccounts = counter("decayed_accounts_total", "Idle balances that decayed");
+    final LongAdder decayedTokens = counter("decayed_tokens_total", "Tokens taken by decay");
+    final LongAdder saveRequests = counter("save_requests_total", "Debounced save requests that scheduled a checkpoint");
+    final LongAdder saveRequestsCoalesced = counter("save_requests_coalesced_total",
+            "Debounced save requests folded into one already pending");
+    final LongAdder saveFailures = counter("save_failures_total", "Checkpoints or full saves that failed");
+    final LatencyHistogram checkpointLatency = histogram("checkpoint_seconds", "Incremental checkpoint duration");
+    final LatencyHistogram fullSaveLatency = histogram("full_save_seconds", "Full snapshot save duration");
+    final LongAdder accountLoads = counter("account_loads_total", "Accounts fetched from lazy storage on first use");
+    final LongAdder accountEvictions = counter("account_evictions_total",
+            "Accounts dropped from memory by the cache limit");
+
+    // --------------- Bridge ---------------
+
+    final LongAdder bridgeFrames = counter("bridge_frames_total", "Bridge messages received");
+    final LongAdder bridgeOps = counter("bridge_operations_total", "Bridge operations applied");
+    final LongAdder bridgeParseFailures = counter("bridge_parse_failures_total", "Bridge messages that failed to decode");
+    final LongAdder duplicateOperations = counter("bridge_duplicate_operations_total",
+            "Bridge operations dropped because their ID was already applied");
+    final LongAdder bridgeOfflineTargets = counter("bridge_offline_targets_total",
+            "Bridge operations skipped because the target was offline");
+    final LongAdder balanceQueries = counter("bridge_balance_queries_total", "Balance queries received from backends");
+    final LongAdder balancesSent = counter("bridge_balances_sent_total",
+            "Balances sent to backends, as query answers or change pushes");
+    final LongAdder balanceFramesSent = counter("bridge_balance_frames_total", "Messages carrying balances sent to backends");
+    final LongAdder balancesUndelivered = counter("bridge_balances_undelivered_total",
+            "Balances not sent because no player was connected to the backend to carry them");
+    final LongAdder bridgeForeignMessages = counter("bridge_foreign_messages_total",
+            "Bridge messages ignored because they did not come from a backend server");
+    final LongAdder bridgeRateLimitedMessages = counter("bridge_rate_limited_messages_total",
+            "Bridge messages dropped by the per-backend message limit");
+    final LongAdder bridgeRateLimitedOps = counter("bridge_rate_limited_operations_total",
+            "Bridge operations dropped by the per-backend action limits");
+    final LongAdder bridgeLogsSuppressed = counter("bridge_logs_suppressed_total",
+            "Bridge warnings left out of the log because a backend produced too many");
+    final LatencyHistogram bridgeDecodeLatency = histogram("bridge_decode_seconds", "Time to decode one bridge message");
+    final LatencyHistogram bridgeQueueLatency = histogram("bridge_queue_seconds",
+            "Time from receiving a bridge operation to applying it");
+
+    // --------------- Audit ---------------
+
+    final LongAdder auditEntries = counter("audit_entries_total", "Audit entries written");
+    final LongAdder auditDropped = counter("audit_dropped_total", "Audit entries dropped because the queue was full");
+
+    // --------------- Replication ---------------
+
+    final LongAdder replicationFramesSent = counter("replication_frames_sent_total", "Replication frames published");
+    final LongAdder replicationUpdatesSent = counter("replication_updates_sent_total", "Balances sent to other proxies");
+    final LongAdder replicationFramesReceived = counter("replication_frames_received_total",
+            "Replication frames received from other proxies");
+    final LongAdder replicationFramesDropped = counter("replication_frames_dropped_total",
+            "Replication frames lost to a full queue, a failed write or a bad frame");
+    final LongAdder replicationUpdatesApplied = counter("replication_updates_applied_total",
+            "Gives and takes made here to bring balances in line with other proxies");
+    final LongAdder replicationConflicts = counter("replication_conflicts_total",
+            "Balances changed here and on another proxy at once; both changes are kept");
+    final LongAdder replicationOverdrafts = counter("replication_overdrafts_total",
+            "Balances found below zero after merging, from tokens spent on several proxies at once");
+    final LongAdder replicationResyncs = counter("replication_resyncs_total",
+            "Full state sent to a peer or a fresh log so it catches up on anything it missed");
+
+    // --------------- Commands ---------------
+
+    final LongAdder commands = counter("commands_total", "/eventtokens invocations");
+    final LongAdder commandErrors = counter("command_errors_total",
+            "/eventtokens invocations refused for bad input, permissions or unknown players");
+
+    private LongAdder counter(String name, String help) {
+        LongAdder adder = new LongAdder();
+        counters.add(new Counter("eventcurrency_" + name, help, adder));
+        return adder;
+    }
+
+    private LatencyHistogram histogram(String name, String help) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histograms.add(new Histogram("eventcurrency_" + name, help, histogram));
+        return histogram;
+    }
+
+    /** Registers a value read at export time, such as a queue depth. */
+    void gauge(String name, String help, LongSupplier value) {
+        gauge(name, help, null, value);
+    }
+
+    /** A gauge kept per currency and exported with a currency label; null for none. */
+    void gauge(String name, String help, String currency, LongSupplier value) {
+        gauges.add(new Gauge("eventcurrency_" + name, help, currency, value));
+    }
+
+    // --------------- Export ---------------
+
+    /** Renders everything in the Prometheus text exposition format, histograms as summaries in seconds. */
+    String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Counter c : counters) {
+            header(out, c.name, c.help, "counter");
+            out.append(c.name).append(' ').append(c.adder.sum()).append('\n');
+        }
+        // One family per name, so the currencies of a per-currency gauge share one header
+        Map<String, List<Gauge>> families = new LinkedHashMap<>();
+        for (Gauge g : gauges) {
+            families.computeIfAbsent(g.name, k -> new ArrayList<>()).add(g);
+        }
+        for (List<Gauge> family : families.values()) {
+            header(out, family.get(0).name, family.get(0).help, "gauge");
+            for (Gauge g : family) {
+                out.append(g.name);
+                if (g.currency != null) {
+                    out.append("{currency=\"").append(g.currency).append("\"}");
+                }
+                out.append(' ').append(g.value.getAsLong()).append('\n');
+            }
+        }
+        for (Histogram h : histograms) {
+            header(out, h.name, h.help, "summary");
+            LatencyHistogram lh = h.histogram;
+            for (double q : new double[] { 0.5, 0.9, 0.99, 1.0 }) {
+                out.append(h.name).append("{quantile=\"").append(q).append("\"} ")
+                        .append(seconds(q == 1.0 ? lh.maxNanos() : lh.quantile(q))).append('\n');
+            }
+            out.append(h.name).append("_sum ").append(seconds(lh.totalNanos())).append('\n');
+            out.append(h.name).append("_count ").append(lh.count()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    /** p50 / p99 / max in milliseconds, for chat. */
+    static String summary(LatencyHistogram h) {
+        if (h.count() == 0) {
+            return "no samples";
+        }
+        return String.format(Locale.ROOT, "p50 %.2f ms, p99 %.2f ms, max %.2f ms (%d samples)",
+                h.quantile(0.5) / 1e6, h.quantile(0.99) / 1e6, h.maxNanos() / 1e6, h.count());
+    }
+}
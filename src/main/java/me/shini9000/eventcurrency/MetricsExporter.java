@@ -0,0 +1,80 @@
+package me.shini9000.eventcurrency;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+
+/**
+ * Optional ways to get {@link Metrics} out of the proxy, both off by default:
+ * <ul>
+ *   <li>a Prometheus text file rewritten every few seconds, for node_exporter's textfile collector</li>
+ *   <li>a tiny HTTP endpoint at {@code http://127.0.0.1:<port>/metrics}, bound to loopback only</li>
+ * </ul>
+ */
+final class MetricsExporter {
+
+    private final Metrics metrics;
+    private final Logger logger;
+    private HttpServer http;
+
+    MetricsExporter(Metrics metrics, Logger logger) {
+        this.metrics = metrics;
+        this.logger = logger;
+    }
+
+    /** Rewrites {@code file} every {@code intervalSeconds} on the given executor. */
+    void startFile(File file, long intervalSeconds, ScheduledExecutorService executor) {
+        long interval = Math.max(1L, intervalSeconds);
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                writeFile(file);
+            } catch (Exception ex) {
+                logger.warn("Failed to write {}: {}", file.getName(), ex.getMessage());
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    // Written next to the target and moved over it, so a scraper never reads a half-written file
+    private void writeFile(File file) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Files.writeString(tmp.toPath(), metrics.toPrometheus(), StandardCharsets.UTF_8);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    void startHttp(int port) {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                try (exchange) {
+                    byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(body);
+                    }
+                }
+            });
+            server.start(); // default executor: requests are served one at a time on the server thread
+            this.http = server;
+            logger.info("Serving metrics on http://127.0.0.1:{}/metrics", port);
+        } catch (IOException ex) {
+            logger.error("Failed to start the metrics endpoint on port {}", port, ex);
+        }
+    }
+
+    void stop() {
+        if (http != null) {
+            http.stop(0);
+        }
+    }
+}
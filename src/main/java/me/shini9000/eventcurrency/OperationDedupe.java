@@ -0,0 +1,249 @@
+package me.shini9000.eventcurrency;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * Operation IDs applied within the last {@code window}, so a backend that resends a message after
+ * a timeout does not award the same tokens twice.
+ *
+ * IDs sit in a ring of {@code BUCKETS} open-addressing long sets, each covering one slice of the
+ * window. A lookup probes every live bucket, and when time moves on, the oldest bucket is cleared and
+ * reused. Both are O(1) and nothing is allocated per ID. Each bucket holds at most
+ * {@code maxIds / BUCKETS} IDs. When the newest bucket fills up early, the ring turns ahead of
+ * time, so a flood shortens the window instead of growing memory.
+ *
+ * The ring is saved to dedupe.dat at every checkpoint, before the journal generations holding the
+ * same IDs are deleted, and the journal replays the rest. A restart therefore remembers every
+ * ID applied within the window.
+ *
+ * <pre>
+ * int magic "ECDD"   int version   long bucket millis   int buckets
+ * buckets x { long slot, int count, count x long id }
+ * int crc32(everything before it)
+ * </pre>
+ */
+final class OperationDedupe {
+
+    private static final int MAGIC = 0x45434444; // "ECDD"
+    private static final int VERSION = 1;
+    private static final int BUCKETS = 8;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final long bucketMillis;
+    private final int maxPerBucket;
+    private final LongSupplier clock;
+
+    // Guarded by this; 0 marks an empty slot (IDs are never 0)
+    private final long[][] sets = new long[BUCKETS][];
+    private final int[] sizes = new int[BUCKETS];
+    private final long[] slots = new long[BUCKETS]; // time slot each bucket was opened in
+    private int head; // bucket new IDs go into; the one after it is the oldest
+
+    OperationDedupe(long windowMillis, int maxIds) {
+        this(windowMillis, maxIds, System::currentTimeMillis);
+    }
+
+    OperationDedupe(long windowMillis, int maxIds, LongSupplier clock) {
+        this.bucketMillis = Math.max(1L, windowMillis / (BUCKETS - 1)); // the live buckets always span the window
+        this.maxPerBucket = Math.max(INITIAL_CAPACITY / 2, maxIds / BUCKETS);
+        this.clock = clock;
+        for (int i = 0; i < BUCKETS; i++) {
+            sets[i] = new long[INITIAL_CAPACITY];
+            slots[i] = Long.MIN_VALUE;
+        }
+    }
+
+    /** Mixes the sending backend into a wire ID so IDs from different backends do not collide. Never 0. */
+    static long key(String backend, long operationId) {
+        long h = BalanceTable.hash(backend.hashCode(), operationId);
+        return h != 0L ? h : 1L;
+    }
+
+    /** Records the ID; false if it was already seen within the window. */
+    synchronized boolean add(long id) {
+        long now = advance();
+        if (contains(id)) {
+            return false;
+        }
+        if (sizes[head] >= maxPerBucket) {
+            rotate(now); // full: retire the oldest bucket early
+        }
+        insert(head, id);
+        return true;
+    }
+
+    synchronized int size() {
+        advance();
+        int total = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            total += sizes[b];
+        }
+        return total;
+    }
+
+    private boolean contains(long id) {
+        for (int b = 0; b < BUCKETS; b++) {
+            if (sizes[b] == 0) {
+                continue;
+            }
+            long[] set = sets[b];
+            int mask = set.length - 1;
+            int i = (int) id & mask;
+            while (set[i] != 0L) {
+                if (set[i] == id) {
+                    return true;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+        return false;
+    }
+
+    private void insert(int b, long id) {
+        long[] set = sets[b];
+        if ((sizes[b] + 1) * 2 > set.length) {
+            set = grow(set);
+            sets[b] = set;
+        }
+        int mask = set.length - 1;
+        int i = (int) id & mask;
+        while (set[i] != 0L) {
+            i = (i + 1) & mask;
+        }
+        set[i] = id;
+        sizes[b]++;
+    }
+
+    private static long[] grow(long[] old) {
+        long[] set = new long[old.length * 2];
+        int mask = set.length - 1;
+        for (long id : old) {
+            if (id != 0L) {
+                int i = (int) id & mask;
+                while (set[i] != 0L) {
+                    i = (i + 1) & mask;
+                }
+                set[i] = id;
+            }
+        }
+        return set;
+    }
+
+    // Opens a bucket per time slot that has passed (at most a full turn) and drops any older than the window
+    private long advance() {
+        long now = Math.floorDiv(clock.getAsLong(), bucketMillis);
+        long steps = slots[head] == Long.MIN_VALUE ? 1 : Math.min(now - slots[head], BUCKETS);
+        for (long i = 0; i < steps; i++) {
+            rotate(now);
+        }
+        for (int b = 0; b < BUCKETS; b++) {
+            if (sizes[b] > 0 && slots[b] <= now - BUCKETS) {
+                reset(b, slots[b]);
+            }
+        }
+        return now;
+    }
+
+    private void rotate(long now) {
+        head = (head + 1) % BUCKETS;
+        reset(head, now);
+    }
+
+    private void reset(int b, long slot) {
+        if (sizes[b] > 0) {
+            if (sets[b].length > INITIAL_CAPACITY * 16) {
+                sets[b] = new long[INITIAL_CAPACITY]; // do not keep a burst's memory around
+            } else {
+                Arrays.fill(sets[b], 0L);
+            }
+        }
+        sizes[b] = 0;
+        slots[b] = slot;
+    }
+
+    // --------------- Persistence ---------------
+
+    /** Writes the live buckets to a temp file and moves it into place. */
+    void save(File file) throws IOException {
+        ByteBuffer buf;
+        synchronized (this) {
+            advance();
+            int total = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                total += sizes[b];
+            }
+            buf = ByteBuffer.allocate(4 + 4 + 8 + 4 + BUCKETS * (8 + 4) + total * 8 + 4);
+            buf.putInt(MAGIC).putInt(VERSION).putLong(bucketMillis).putInt(BUCKETS);
+            for (int i = 1; i <= BUCKETS; i++) {
+                int b = (head + i) % BUCKETS; // oldest first
+                buf.putLong(slots[b]).putInt(sizes[b]);
+                for (long id : sets[b]) {
+                    if (id != 0L) {
+                        buf.putLong(id);
+                    }
+                }
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putInt((int) crc.getValue()).flip();
+
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            ch.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Adds the IDs saved in {@code file} that are still inside the window. Expects a fresh instance.
+     *
+     * @throws IOException if the file is damaged or of another format
+     */
+    synchronized void load(File file) throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        if (data.length < 24) {
+            throw new IOException(file.getName() + " is truncated");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        if (buf.getInt(data.length - 4) != (int) crc.getValue()) {
+            throw new IOException(file.getName() + " failed its checksum");
+        }
+        if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            throw new IOException(file.getName() + " is not an operation dedupe file");
+        }
+        long savedMillis = buf.getLong();
+        int buckets = buf.getInt();
+        long horizon = clock.getAsLong() - bucketMillis * BUCKETS;
+        for (int i = 0; i < buckets; i++) {
+            long slot = buf.getLong();
+            int count = buf.getInt();
+            // Buckets come oldest first; each one still inside the window gets a bucket of its own again
+            boolean live = slot != Long.MIN_VALUE && (slot + 1) * savedMillis > horizon;
+            if (live && count > 0) {
+                rotate(Math.floorDiv(slot * savedMillis, bucketMillis));
+            }
+            for (int k = 0; k < count; k++) {
+                long id = buf.getLong();
+                if (live && !contains(id)) {
+                    insert(head, id);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package me.shini9000.eventcurrency;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+
+/**
+ * Every player name this proxy has seen, so commands can target players who are offline without a
+ * Mojang lookup.
+ *
+ * On disk it is an append-only log, names.dat, with one record for each time a player shows up
+ * under a new name:
+ *
+ * <pre>
+ * int magic "ECNM"   int version
+ * n x { long msb, long lsb, byte length, length x UTF-8 name, int crc32(record) }
+ * </pre>
+ *
+ * A torn record at the end is dropped on load. The log is rewritten without superseded records once
+ * they make up most of it. In memory, names sit in a case-insensitive sorted map, so prefix lookups
+ * for tab completion are a range scan. The most recent completions are cached and cleared whenever
+ * a name changes.
+ */
+final class PlayerNameIndex implements AutoCloseable {
+
+    record Known(UUID id, String name) {
+    }
+
+    private static final int MAGIC = 0x45434E4D; // "ECNM"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_NAME_BYTES = 64;
+    private static final int COMPLETION_LIMIT = 100;
+    private static final int COMPLETION_CACHE_SIZE = 256;
+
+    private final File file;
+    private final Executor io;
+    private final Logger logger;
+
+    // Guarded by this
+    private final TreeMap<String, Known> byName = new TreeMap<>();
+    private final Map<UUID, String> byId = new HashMap<>();
+    private final LinkedHashMap<String, List<String>> completions =
+            new LinkedHashMap<>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+                    return size() > COMPLETION_CACHE_SIZE;
+                }
+            };
+
+    private FileChannel channel; // appended to on the I/O thread
+
+    PlayerNameIndex(File dataFolder, Executor io, Logger logger) {
+        this.file = new File(dataFolder, "names.dat");
+        this.io = io;
+        this.logger = logger;
+    }
+
+    /** Reads names.dat, compacting it if most of it is superseded, and opens it for appending. */
+    synchronized void load() {
+        try {
+            if (!file.exists() || readAll()) {
+                rewrite();
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException ex) {
+            logger.error("Failed to open {}, offline name lookups are limited to this session", file.getName(), ex);
+        }
+        logger.info("Loaded {} player names.", byId.size());
+    }
+
+    /** Returns whether the file should be rewritten: a damaged tail, or mostly superseded records. */
+    private boolean readAll() throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        if (data.length < HEADER_BYTES || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            throw new IOException(file.getName() + " is not a player name index");
+        }
+        CRC32 crc = new CRC32();
+        int records = 0;
+        int end = HEADER_BYTES; // after the last intact record
+        while (buf.remaining() >= 17) {
+            int start = buf.position();
+            long msb = buf.getLong();
+            long lsb = buf.getLong();
+            int length = buf.get() & 0xFF;
+            if (length > MAX_NAME_BYTES || buf.remaining() < length + 4) {
+                break;
+            }
+            String name = new String(data, buf.position(), length, StandardCharsets.UTF_8);
+            buf.position(buf.position() + length);
+            crc.reset();
+            crc.update(data, start, 17 + length);
+            if ((int) crc.getValue() != buf.getInt()) {
+                break;
+            }
+            put(new UUID(msb, lsb), name);
+            records++;
+            end = buf.position();
+        }
+        if (end < data.length) {
+            logger.warn("Ignoring {} damaged bytes at the end of {}", data.length - end, file.getName());
+            return true;
+        }
+        return records > 2 * byId.size() + 1024;
+    }
+
+    // Current names only; the old file stays until the new one is synced and moved over it
+    private void rewrite() throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(ch, ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).flip());
+            for (Known known : byName.values()) {
+                writeFully(ch, encode(known));
+            }
+            ch.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // --------------- Updates ---------------
+
+    /** Remembers the name a player logged in with; writes to disk only when it is new for them. */
+    void record(UUID id, String name) {
+        Known known;
+        synchronized (this) {
+            if (name.equals(byId.get(id))) {
+                return;
+            }
+            known = put(id, name);
+            completions.clear();
+        }
+        try {
+            io.execute(() -> append(known));
+        } catch (RejectedExecutionException ex) {
+            append(known); // shutting down: the I/O thread is gone, but the file is open until close()
+        }
+    }
+
+    private Known put(UUID id, String name) {
+        String previous = byId.put(id, name);
+        if (previous != null) {
+            String key = key(previous);
+            Known old = byName.get(key);
+            if (old != null && old.id().equals(id)) {
+                byName.remove(key);
+            }
+        }
+        Known known = new Known(id, name);
+        Known displaced = byName.put(key(name), known);
+        if (displaced != null && !displaced.id().equals(id)) {
+            byId.remove(displaced.id()); // the name now belongs to someone else
+        }
+        return known;
+    }
+
+    private synchronized void append(Known known) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            writeFully(channel, encode(known));
+        } catch (IOException ex) {
+            logger.error("Failed to record the name of {}", known.id(), ex);
+        }
+    }
+
+    // --------------- Lookups ---------------
+
+    /** The player last seen under this name, in any letter case. */
+    synchronized Optional<Known> find(String name) {
+        return Optional.ofNullable(byName.get(key(name)));
+    }
+
+    /** Last known name of the player, or null if they never joined. */
+    synchronized String nameOf(UUID id) {
+        return byId.get(id);
+    }
+
+    /** The first known names starting with {@code prefix}, in alphabetical order. */
+    synchronized List<String> complete(String prefix) {
+        String from = key(prefix);
+        List<String> cached = completions.get(from);
+        if (cached == null) {
+            List<String> out = new ArrayList<>();
+            for (Map.Entry<String, Known> e : byName.tailMap(from, true).entrySet()) {
+                if (out.size() == COMPLETION_LIMIT || !e.getKey().startsWith(from)) {
+                    break;
+                }
+                out.add(e.getValue().name());
+            }
+            cached = List.copyOf(out);
+            completions.put(from, cached);
+        }
+        return cached;
+    }
+
+    synchronized int size() {
+        return byId.size();
+    }
+
+    // --------------- Encoding ---------------
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static ByteBuffer encode(Known known) {
+        byte[] name = known.name().getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(name.length, MAX_NAME_BYTES);
+        ByteBuffer buf = ByteBuffer.allocate(17 + length + 4);
+        buf.putLong(known.id().getMostSignificantBits())
+                .putLong(known.id().getLeastSignificantBits())
+                .put((byte) length)
+                .put(name, 0, length);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putInt((int) crc.getValue());
+        return buf.flip();
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+    }
+
+    /** Called once the I/O thread has stopped, so nothing else will be appended. */
+    @Override
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.force(true);
+            channel.close();
+        } catch (IOException ex) {
+            logger.error("Failed to close {}", file.getName(), ex);
+        }
+        channel = null;
+    }
+}
@@ -0,0 +1,35 @@
+package me.shini9000.eventcurrency;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Carries {@link Replicator} frames between proxies. Frames are opaque, self-contained byte
+ * arrays; a transport may drop or repeat them, but must never deliver part of one. Frames hold
+ * whole account states, so anything a peer missed is made up by sending it a {@link Receiver#snapshot}.
+ */
+interface ReplicationTransport {
+
+    /** The replicator's side of a transport. */
+    interface Receiver {
+
+        /** A frame from another proxy; may be called from any thread. */
+        void receive(byte[] frame);
+
+        /**
+         * Frames holding the state of every account this proxy knows, encoded one at a time as the
+         * iterator is advanced. Accounts that change meanwhile are also published as usual.
+         */
+        Iterator<byte[]> snapshot();
+    }
+
+    String name();
+
+    /** Starts delivering frames from other proxies. */
+    void start(Receiver receiver) throws IOException;
+
+    /** Sends a frame to every other proxy. Must not block for long; it runs on the replication thread. */
+    void publish(byte[] frame);
+
+    void close();
+}
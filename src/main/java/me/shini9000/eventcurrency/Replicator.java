@@ -0,0 +1,804 @@
+package me.shini9000.eventcurrency;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+
+/**
+ * Keeps the ledgers of several proxies in step. Every account this proxy changes is marked, and a
+ * few times a second what changed goes out over the {@link ReplicationTransport}; changes arriving
+ * from other proxies are given or taken on the local ledger. Reads never wait on any of this, they
+ * go straight to the local {@link BalanceTable}.
+ *
+ * <p>Each account is kept as counters: for every node, everything it has given and everything it
+ * has taken, plus a base, the balance the account had when replication was first turned on (where
+ * proxies disagree on it, the node listed first in {@code replication.nodes} wins). Proxies merge
+ * counters by taking the larger of each, and the balance is the base plus all gives less all takes.
+ * Changes made on two proxies at once therefore both count, and a frame that arrives late, twice or
+ * out of order changes nothing.
+ *
+ * <p>This proxy finds what it changed itself by comparing each marked balance with the one it last
+ * left there, and moves the local balance to the merged one with ordinary gives and deductions, so
+ * changes made meanwhile are never overwritten. Proxies that spend the same tokens at once can take
+ * the merged balance below zero; the account then shows 0 and the shortfall comes out of its next gives.
+ *
+ * <p>The counters are kept in {@code <currency>.dat} under the state directory, an append-only log:
+ *
+ * <pre>
+ * int magic "ECRS"   int version   int node count   int hash of replication.nodes
+ * n x { byte type, payload, int crc32(record) }
+ *   ACCOUNT long msb, long lsb, long base, long base node, long expected, long correction id,
+ *           long correction, node count x long given, node count x long taken
+ *   COMMIT  long correction id
+ * </pre>
+ *
+ * The records of a batch are synced before its corrections reach the ledger, and each correction
+ * is tagged with its ID as a ledger operation, so after a crash the ones since the last COMMIT are
+ * applied exactly once. On start the ledger is scanned for balances that moved while nothing was
+ * listening (a crash before a flush, or replication turned off for a while); they go out with the
+ * first flush. The log is rewritten once most of it is superseded.
+ *
+ * <p>Everything except marking runs on one thread, so the counters need no locking.
+ *
+ * <p>Every account that ever held tokens keeps its counters in memory for as long as replication
+ * runs, about 200 + 16 x node count bytes each, also over a lazy backend: the log is only read
+ * back at startup, so an account cannot be dropped and fetched again later. Size the heap for
+ * the whole ledger when replication is enabled.
+ *
+ * <p>Frame layout (big-endian):
+ * <pre>
+ * int    magic "ECRP"
+ * byte   version = 2
+ * short  origin node index
+ * short  node count
+ * int    hash of replication.nodes
+ * UTF    currency
+ * int    account count
+ * count x { long msb, long lsb, long base, short base node or -1, node count x long given,
+ *           node count x long taken }
+ * </pre>
+ */
+final class Replicator {
+
+    static final int MAX_FRAME_BYTES = 4 << 20;
+    private static final int MAGIC = 0x45435250; // "ECRP"
+    private static final int VERSION = 2;
+    private static final int STATE_MAGIC = 0x45435253; // "ECRS"
+    private static final int STATE_VERSION = 1;
+    private static final int STATE_HEADER_BYTES = 16;
+    private static final byte ACCOUNT = 1;
+    private static final byte COMMIT = 2;
+    private static final int MAX_NODES = 64;
+    private static final int MAX_ACCOUNTS_PER_FRAME = 4096;
+    static final int NO_BASE = -1;
+
+    /** One account's counters. */
+    static final class Account {
+        long base;
+        int baseNode = NO_BASE;
+        long expected; // the local balance as this replicator last left it
+        final long[] given;
+        final long[] taken;
+
+        Account(int nodes) {
+            this.given = new long[nodes];
+            this.taken = new long[nodes];
+        }
+
+        long merged() {
+            long total = base;
+            for (int i = 0; i < given.length; i++) {
+                total += given[i] - taken[i];
+            }
+            return total;
+        }
+
+        /** Takes whatever {@code other} has that is newer; true if anything changed. */
+        boolean merge(long otherBase, int otherBaseNode, long[] otherGiven, long[] otherTaken) {
+            boolean changed = false;
+            if (otherBaseNode != NO_BASE && (baseNode == NO_BASE || otherBaseNode < baseNode
+                    || otherBaseNode == baseNode && otherBase > base)) {
+                base = otherBase;
+                baseNode = otherBaseNode;
+                changed = true;
+            }
+            for (int i = 0; i < given.length; i++) {
+                if (otherGiven[i] > given[i]) {
+                    given[i] = otherGiven[i];
+                    changed = true;
+                }
+                if (otherTaken[i] > taken[i]) {
+                    taken[i] = otherTaken[i];
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+    }
+
+    private record LoadedLog(boolean rewrite, long committed) {
+    }
+
+    private final class Replica {
+        final String currency;
+        final Ledger ledger;
+        final File file;
+        final DirtyKeySet pending = new DirtyKeySet();
+        final Map<UUID, Account> accounts = new HashMap<>();
+        final Ledger.ChangeListener listener;
+        FileChannel channel; // null if the state log could not be opened
+        long records; // in the log, superseded or not
+        boolean failing; // the last write failed; warned once until one succeeds
+
+        Replica(String currency, Ledger ledger) {
+            this.currency = currency;
+            this.ledger = ledger;
+            this.file = new File(stateDirectory, currency + ".dat");
+            // Balances this thread moves came from another proxy and must not be sent back
+            this.listener = (msb, lsb) -> {
+                if (Thread.currentThread() != thread) {
+                    pending.add(msb, lsb);
+                }
+            };
+        }
+    }
+
+    private final String[] nodes;
+    private final int self;
+    private final int nodesHash;
+    private final int perFrame;
+    private final File stateDirectory;
+    private final ReplicationTransport transport;
+    private final long flushMillis;
+    private final Logger logger;
+    private final Metrics metrics;
+    private final Map<String, Replica> replicas = new LinkedHashMap<>();
+    private final AuditLog.Cause[] causes;
+    private long correctionSequence;
+    private boolean warnedNodeMismatch;
+    private boolean closed;
+    private volatile Thread thread;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "EventCurrency-Replication");
+        t.setDaemon(true);
+        thread = t;
+        return t;
+    });
+
+    /**
+     * {@code nodes} is the same ordered list on every proxy and must contain {@code node}; its order
+     * fixes each node's counters and which base wins. Counters are kept under {@code stateDirectory}.
+     */
+    Replicator(String node, List<String> nodes, Map<String, Ledger> ledgers, File stateDirectory,
+               ReplicationTransport transport, long flushMillis, Logger logger, Metrics metrics) {
+        this.nodes = nodes.toArray(String[]::new);
+        this.self = nodes.indexOf(node);
+        if (self < 0 || this.nodes.length > MAX_NODES) {
+            throw new IllegalArgumentException("replication.nodes must list replication.node-id and at most "
+                    + MAX_NODES + " nodes");
+        }
+        this.nodesHash = nodes.hashCode();
+        this.perFrame = Math.min(MAX_ACCOUNTS_PER_FRAME, (MAX_FRAME_BYTES - 1024) / (26 + 16 * this.nodes.length));
+        this.stateDirectory = stateDirectory;
+        this.transport = transport;
+        this.flushMillis = Math.max(1L, flushMillis);
+        this.logger = logger;
+        this.metrics = metrics;
+        this.causes = new AuditLog.Cause[this.nodes.length];
+        for (int i = 0; i < causes.length; i++) {
+            causes[i] = AuditLog.Cause.replica(this.nodes[i]);
+        }
+        ledgers.forEach((currency, ledger) -> replicas.put(currency, new Replica(currency, ledger)));
+    }
+
+    /** Loads the counters (finishing anything a crash interrupted), then starts the transport. */
+    void start() throws IOException {
+        if (!stateDirectory.isDirectory() && !stateDirectory.mkdirs()) {
+            throw new IOException("cannot create " + stateDirectory.getAbsolutePath());
+        }
+        for (Replica r : replicas.values()) {
+            r.ledger.addChangeListener(r.listener);
+        }
+        try {
+            executor.submit(() -> {
+                for (Replica r : replicas.values()) {
+                    open(r);
+                }
+                return null;
+            }).get();
+        } catch (ExecutionException ex) {
+            throw new IOException("failed to load the replication state: " + ex.getCause().getMessage(), ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while loading the replication state");
+        }
+        transport.start(new ReplicationTransport.Receiver() {
+            @Override
+            public void receive(byte[] frame) {
+                metrics.replicationFramesReceived.increment();
+                try {
+                    executor.execute(() -> Replicator.this.receive(frame));
+                } catch (RejectedExecutionException ignored) {
+                    // shutting down
+                }
+            }
+
+            @Override
+            public Iterator<byte[]> snapshot() {
+                return Replicator.this.snapshot();
+            }
+        });
+        executor.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        logger.info("Replication started as node {} ({} of {}) over {}", nodes[self], self + 1, nodes.length,
+                transport.name());
+    }
+
+    /** Sends what is still pending and stops; the ledgers must still be open. */
+    void close() {
+        try {
+            executor.execute(this::finish);
+        } catch (RejectedExecutionException ignored) {
+            // already stopped
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                logger.warn("Replication did not stop within 5s; unsent changes go out after the next start.");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (Replica r : replicas.values()) {
+            r.ledger.removeChangeListener(r.listener);
+        }
+        transport.close();
+    }
+
+    private void finish() {
+        flush();
+        closed = true;
+        for (Replica r : replicas.values()) {
+            if (r.channel == null) {
+                continue;
+            }
+            try {
+                r.channel.close();
+            } catch (IOException ex) {
+                logger.warn("Failed to close {}: {}", r.file.getName(), ex.getMessage());
+            }
+            r.channel = null;
+        }
+    }
+
+    // --------------- Sending ---------------
+
+    private void flush() {
+        for (Replica r : replicas.values()) {
+            try {
+                flush(r);
+            } catch (Exception ex) {
+                logger.warn("Failed to replicate {}: {}", r.currency, ex.getMessage());
+            }
+        }
+    }
+
+    // Whatever moved a marked balance since this thread last left it there was done here
+    private void flush(Replica r) throws IOException {
+        long[] keys = r.pending.drain();
+        if (keys.length == 0 || closed) {
+            return;
+        }
+        List<UUID> changed = new ArrayList<>();
+        for (int i = 0; i < keys.length; i += 2) {
+            UUID id = new UUID(keys[i], keys[i + 1]);
+            Account a = r.accounts.get(id);
+            long balance = r.ledger.get(keys[i], keys[i + 1]);
+            long delta = balance - (a == null ? 0L : a.expected);
+            if (delta == 0L) {
+                continue; // changed back, or only moved by this thread
+            }
+            if (a == null) {
+                a = new Account(nodes.length); // not here when replication started, so it began at 0
+                r.accounts.put(id, a);
+            }
+            a.expected = balance;
+            if (delta > 0) {
+                a.given[self] += delta;
+            } else {
+                a.taken[self] -= delta;
+            }
+            changed.add(id);
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+        settle(r, changed, causes[self]);
+        for (int from = 0; from < changed.size(); from += perFrame) {
+            transport.publish(encodeFrame(r, changed, from, Math.min(changed.size(), from + perFrame)));
+        }
+    }
+
+    private byte[] encodeFrame(Replica r, List<UUID> ids, int from, int to) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (to - from) * (26 + 16 * nodes.length));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeShort(self);
+        out.writeShort(nodes.length);
+        out.writeInt(nodesHash);
+        out.writeUTF(r.currency);
+        out.writeInt(to - from);
+        for (int i = from; i < to; i++) {
+            UUID id = ids.get(i);
+            Account a = r.accounts.get(id);
+            out.writeLong(id.getMostSignificantBits());
+            out.writeLong(id.getLeastSignificantBits());
+            out.writeLong(a.base);
+            out.writeShort(a.baseNode);
+            for (long v : a.given) {
+                out.writeLong(v);
+            }
+            for (long v : a.taken) {
+                out.writeLong(v);
+            }
+        }
+        metrics.replicationFramesSent.increment();
+        metrics.replicationUpdatesSent.add(to - from);
+        return bytes.toByteArray();
+    }
+
+    // Accounts are listed on the replication thread and each frame is encoded there, so callers may run anywhere
+    private Iterator<byte[]> snapshot() {
+        List<Replica> order = new ArrayList<>(replicas.values());
+        List<List<UUID>> keys = onReplicationThread(() -> {
+            List<List<UUID>> all = new ArrayList<>();
+            for (Replica r : order) {
+                all.add(new ArrayList<>(r.accounts.keySet()));
+            }
+            return all;
+        });
+        metrics.replicationResyncs.increment();
+        return new Iterator<>() {
+            private int replica;
+            private int from;
+
+            @Override
+            public boolean hasNext() {
+                while (replica < keys.size() && from >= keys.get(replica).size()) {
+                    replica++;
+                    from = 0;
+                }
+                return replica < keys.size();
+            }
+
+            @Override
+            public byte[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Replica r = order.get(replica);
+                List<UUID> ids = keys.get(replica);
+                int start = from;
+                from = Math.min(ids.size(), from + perFrame);
+                return onReplicationThread(() -> encodeFrame(r, ids, start, from));
+            }
+        };
+    }
+
+    private <T> T onReplicationThread(Callable<T> task) {
+        try {
+            return Thread.currentThread() == thread ? task.call() : executor.submit(task).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted", ex);
+        } catch (Exception ex) {
+            throw new IllegalStateException("replication state unavailable: " + ex.getMessage(), ex);
+        }
+    }
+
+    // --------------- Receiving ---------------
+
+    private void receive(byte[] frame) {
+        try {
+            apply(frame);
+        } catch (IOException | RuntimeException ex) {
+            metrics.replicationFramesDropped.increment();
+            logger.warn("Dropping a malformed replication frame: {}", ex.getMessage());
+        }
+    }
+
+    private void apply(byte[] frame) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+            throw new IOException("not a replication frame");
+        }
+        int origin = in.readUnsignedShort();
+        int nodeCount = in.readUnsignedShort();
+        if (nodeCount != nodes.length || in.readInt() != nodesHash || origin >= nodeCount) {
+            metrics.replicationFramesDropped.increment();
+            if (!warnedNodeMismatch) {
+                warnedNodeMismatch = true;
+                logger.warn("Ignoring replication frames from a proxy with a different replication.nodes list "
+                        + "({} nodes here, {} there)", nodes.length, nodeCount);
+            }
+            return;
+        }
+        Replica r = replicas.get(in.readUTF());
+        if (r == null || closed) {
+            metrics.replicationFramesDropped.increment();
+            return; // a currency this proxy does not have
+        }
+        int count = in.readInt();
+        if (count < 0 || count > MAX_ACCOUNTS_PER_FRAME) {
+            throw new IOException("bad account count " + count);
+        }
+        List<UUID> changed = new ArrayList<>();
+        long[] given = new long[nodeCount];
+        long[] taken = new long[nodeCount];
+        for (int i = 0; i < count; i++) {
+            long msb = in.readLong();
+            long lsb = in.readLong();
+            long base = in.readLong();
+            int baseNode = in.readShort();
+            boolean valid = base >= 0 && baseNode >= NO_BASE && baseNode < nodeCount;
+            for (int n = 0; n < nodeCount; n++) {
+                given[n] = in.readLong();
+                valid &= given[n] >= 0;
+            }
+            for (int n = 0; n < nodeCount; n++) {
+                taken[n] = in.readLong();
+                valid &= taken[n] >= 0;
+            }
+            if (!valid) {
+                throw new IOException("negative counter");
+            }
+            UUID id = new UUID(msb, lsb);
+            Account a = r.accounts.get(id);
+            Account merged = a != null ? a : new Account(nodeCount);
+            if (!merged.merge(base, baseNode, given, taken)) {
+                continue; // nothing we have not seen
+            }
+            if (a == null) {
+                r.accounts.put(id, merged);
+            }
+            if (r.pending.contains(msb, lsb)) {
+                metrics.replicationConflicts.increment(); // both changes are kept; ours goes out with the next flush
+            }
+            changed.add(id);
+        }
+        if (!changed.isEmpty()) {
+            settle(r, changed, causes[origin]);
+        }
+    }
+
+    // --------------- Settling ---------------
+
+    /**
+     * Moves each account's local balance to its merged one. Changes made here meanwhile stay on top,
+     * since only the difference to what this thread last left there is applied. The new counters
+     * are synced before any of it reaches the ledger.
+     */
+    private void settle(Replica r, List<UUID> ids, AuditLog.Cause cause) {
+        List<ByteBuffer> out = new ArrayList<>(ids.size());
+        long[] corrections = new long[ids.size()];
+        long[] correctionIds = new long[ids.size()];
+        for (int i = 0; i < ids.size(); i++) {
+            Account a = r.accounts.get(ids.get(i));
+            long merged = a.merged();
+            if (merged < 0) {
+                metrics.replicationOverdrafts.increment();
+            }
+            corrections[i] = Math.max(0L, merged) - a.expected;
+            if (corrections[i] != 0L) {
+                correctionIds[i] = nextCorrection();
+                a.expected += corrections[i];
+            }
+            out.add(encodeAccount(ids.get(i), a, correctionIds[i], corrections[i]));
+        }
+        append(r, out, true);
+        List<ByteBuffer> after = new ArrayList<>();
+        long last = 0L;
+        for (int i = 0; i < ids.size(); i++) {
+            if (corrections[i] == 0L) {
+                continue;
+            }
+            UUID id = ids.get(i);
+            Account a = r.accounts.get(id);
+            long applied = correct(r, id, corrections[i], correctionIds[i], cause);
+            if (applied != corrections[i]) {
+                // Spent here meanwhile; the spend goes out with the next flush and the rest is settled then
+                a.expected += applied - corrections[i];
+                after.add(encodeAccount(id, a, 0L, 0L));
+            }
+            last = correctionIds[i];
+            metrics.replicationUpdatesApplied.increment();
+        }
+        if (last != 0L) {
+            after.add(encode(COMMIT, last));
+            append(r, after, false);
+        }
+        if (r.channel != null && r.records > 2L * r.accounts.size() + 1024) {
+            compact(r);
+        }
+    }
+
+    /** Gives or takes the correction unless its ID was applied already; returns what it moved. */
+    private long correct(Replica r, UUID id, long amount, long correctionId, AuditLog.Cause cause) {
+        long operation = OperationDedupe.key("replication", correctionId);
+        if (!r.ledger.claimOperation(operation)) {
+            return amount;
+        }
+        long msb = id.getMostSignificantBits();
+        long lsb = id.getLeastSignificantBits();
+        if (amount > 0) {
+            r.ledger.add(msb, lsb, amount, operation, cause);
+            return amount;
+        }
+        long[] taken = { -amount };
+        r.ledger.deductAll(new long[] { msb, lsb }, taken, operation, cause);
+        return -taken[0];
+    }
+
+    // Strictly increasing, and ahead of anything used before a restart as long as the clock is
+    private long nextCorrection() {
+        correctionSequence = Math.max(correctionSequence + 1, System.currentTimeMillis() * 1000L);
+        return correctionSequence;
+    }
+
+    // --------------- State log ---------------
+
+    private void open(Replica r) throws IOException {
+        Map<UUID, long[]> unfinished = new HashMap<>(); // id -> correction id, amount
+        LoadedLog loaded = null;
+        if (r.file.exists()) {
+            try {
+                loaded = readAll(r, unfinished);
+            } catch (IOException ex) {
+                logger.warn("Discarding {}: {}. Balances here count as this proxy's from now on.", r.file.getName(),
+                        ex.getMessage());
+                r.accounts.clear();
+                unfinished.clear();
+            }
+        }
+        if (loaded == null) {
+            baseline(r);
+        } else {
+            finishCorrections(r, unfinished, loaded.committed());
+            rescan(r);
+        }
+        if (loaded == null || loaded.rewrite() || !unfinished.isEmpty()) {
+            rewrite(r);
+        }
+        r.channel = FileChannel.open(r.file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        logger.info("Loaded replication state for {} account(s) of {}", r.accounts.size(), r.currency);
+    }
+
+    /** Returns whether to rewrite the log; throws if it is unreadable or was written for another node list. */
+    private LoadedLog readAll(Replica r, Map<UUID, long[]> unfinished) throws IOException {
+        byte[] data = Files.readAllBytes(r.file.toPath());
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        if (data.length < STATE_HEADER_BYTES || buf.getInt() != STATE_MAGIC || buf.getInt() != STATE_VERSION) {
+            throw new IOException("not a replication state log");
+        }
+        if (buf.getInt() != nodes.length || buf.getInt() != nodesHash) {
+            throw new IOException("it was written for a different replication.nodes list");
+        }
+        int accountLongs = 7 + 2 * nodes.length;
+        CRC32 crc = new CRC32();
+        int end = STATE_HEADER_BYTES;
+        long committed = 0L;
+        while (buf.remaining() >= 1) {
+            int start = buf.position();
+            byte type = buf.get();
+            int longs = switch (type) {
+                case ACCOUNT -> accountLongs;
+                case COMMIT -> 1;
+                default -> -1;
+            };
+            if (longs < 0 || buf.remaining() < longs * 8 + 4) {
+                break;
+            }
+            long[] v = new long[longs];
+            for (int i = 0; i < longs; i++) {
+                v[i] = buf.getLong();
+            }
+            crc.reset();
+            crc.update(data, start, 1 + longs * 8);
+            if ((int) crc.getValue() != buf.getInt()) {
+                break;
+            }
+            if (type == ACCOUNT) {
+                UUID id = new UUID(v[0], v[1]);
+                Account a = new Account(nodes.length);
+                a.base = v[2];
+                a.baseNode = (int) v[3];
+                a.expected = v[4];
+                System.arraycopy(v, 7, a.given, 0, nodes.length);
+                System.arraycopy(v, 7 + nodes.length, a.taken, 0, nodes.length);
+                r.accounts.put(id, a);
+                if (v[5] != 0L) {
+                    unfinished.put(id, new long[] { v[5], v[6] });
+                } else {
+                    unfinished.remove(id);
+                }
+                correctionSequence = Math.max(correctionSequence, v[5]);
+            } else if (type == COMMIT) {
+                committed = Math.max(committed, v[0]);
+                correctionSequence = Math.max(correctionSequence, v[0]);
+            }
+            r.records++;
+            end = buf.position();
+        }
+        if (end < data.length) {
+            logger.warn("Ignoring {} damaged bytes at the end of {}", data.length - end, r.file.getName());
+            return new LoadedLog(true, committed);
+        }
+        return new LoadedLog(r.records > 2L * r.accounts.size() + 1024, committed);
+    }
+
+    // Corrections recorded before a crash that may not have reached the ledger; their operation IDs tell
+    private void finishCorrections(Replica r, Map<UUID, long[]> unfinished, long committed) {
+        int applied = 0;
+        for (Map.Entry<UUID, long[]> e : unfinished.entrySet()) {
+            long[] c = e.getValue();
+            if (c[0] <= committed) {
+                continue;
+            }
+            long moved = correct(r, e.getKey(), c[1], c[0], causes[self]);
+            r.accounts.get(e.getKey()).expected += moved - c[1];
+            applied++;
+        }
+        if (applied > 0) {
+            logger.info("Finished {} replicated change(s) to {} interrupted by a crash", applied, r.currency);
+        }
+    }
+
+    /**
+     * First start: every balance held here becomes this node's base for that account. Balances are
+     * taken as visited rather than read back, so a lazy ledger is not loaded whole; one that moves
+     * meanwhile is already marked and its difference goes out with the first flush.
+     */
+    private void baseline(Replica r) throws IOException {
+        DirtyKeySet empty = new DirtyKeySet(); // resident at zero; an older stored balance must not count
+        r.ledger.forEachAccount((msb, lsb, balance) -> {
+            UUID id = new UUID(msb, lsb);
+            if (r.accounts.containsKey(id) || empty.contains(msb, lsb)) {
+                return; // resident accounts come first and are the current ones
+            }
+            if (balance <= 0) {
+                empty.add(msb, lsb);
+                return;
+            }
+            Account a = new Account(nodes.length);
+            a.base = balance;
+            a.baseNode = self;
+            a.expected = balance;
+            r.accounts.put(id, a);
+        });
+        logger.info("No replication state for {} yet; starting from the {} balance(s) held here", r.currency,
+                r.accounts.size());
+    }
+
+    // Balances that moved since they were last recorded go out with the first flush
+    private void rescan(Replica r) throws IOException {
+        r.ledger.forEachAccount((msb, lsb, balance) -> {
+            Account a = r.accounts.get(new UUID(msb, lsb));
+            if (a == null ? balance != 0L : balance != a.expected) {
+                r.pending.add(msb, lsb);
+            }
+        });
+    }
+
+    private void compact(Replica r) {
+        try {
+            r.channel.close();
+            rewrite(r);
+        } catch (IOException ex) {
+            logger.error("Failed to compact {}", r.file.getName(), ex);
+        }
+        try {
+            r.channel = FileChannel.open(r.file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException ex) {
+            r.channel = null;
+            logger.error("Failed to reopen {}; replicated changes are no longer crash-safe until restart",
+                    r.file.getName(), ex);
+        }
+    }
+
+    // Every account with no correction outstanding; the old file stays until the new one is synced and moved over it
+    private void rewrite(Replica r) throws IOException {
+        File tmp = new File(r.file.getParentFile(), r.file.getName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(ch, ByteBuffer.allocate(STATE_HEADER_BYTES)
+                    .putInt(STATE_MAGIC).putInt(STATE_VERSION).putInt(nodes.length).putInt(nodesHash).flip());
+            for (Map.Entry<UUID, Account> e : r.accounts.entrySet()) {
+                writeFully(ch, encodeAccount(e.getKey(), e.getValue(), 0L, 0L));
+            }
+            ch.force(true);
+        }
+        Files.move(tmp.toPath(), r.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        r.records = r.accounts.size();
+    }
+
+    /** Appends the records, syncing if asked; corrections go ahead either way, as they would without a log. */
+    private void append(Replica r, List<ByteBuffer> out, boolean sync) {
+        if (r.channel == null || out.isEmpty()) {
+            return;
+        }
+        try {
+            for (ByteBuffer record : out) {
+                writeFully(r.channel, record);
+            }
+            if (sync) {
+                r.channel.force(false);
+            }
+            r.records += out.size();
+            r.failing = false;
+        } catch (IOException ex) {
+            if (!r.failing) {
+                r.failing = true;
+                logger.error("Failed to write {}; replicated changes are not crash-safe until it works again",
+                        r.file.getName(), ex);
+            }
+        }
+    }
+
+    private ByteBuffer encodeAccount(UUID id, Account a, long correctionId, long correction) {
+        long[] v = new long[7 + 2 * nodes.length];
+        v[0] = id.getMostSignificantBits();
+        v[1] = id.getLeastSignificantBits();
+        v[2] = a.base;
+        v[3] = a.baseNode;
+        v[4] = a.expected;
+        v[5] = correctionId;
+        v[6] = correction;
+        System.arraycopy(a.given, 0, v, 7, nodes.length);
+        System.arraycopy(a.taken, 0, v, 7 + nodes.length, nodes.length);
+        return encode(ACCOUNT, v);
+    }
+
+    private static ByteBuffer encode(byte type, long... values) {
+        ByteBuffer buf = ByteBuffer.allocate(1 + values.length * 8 + 4);
+        buf.put(type);
+        for (long v : values) {
+            buf.putLong(v);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putInt((int) crc.getValue());
+        return buf.flip();
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package me.shini9000.eventcurrency;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed-size pool of JDBC connections for the embedded database. Connections are opened on
+ * demand up to {@code maxSize} and handed back with {@link #release}; a borrower waits up to
+ * {@code borrowTimeoutMs} when all of them are in use.
+ *
+ * The driver is called directly rather than through {@code DriverManager}, which does not see
+ * drivers loaded by a plugin's class loader.
+ */
+final class SqlConnectionPool implements AutoCloseable {
+
+    private final Driver driver;
+    private final String url;
+    private final int maxSize;
+    private final long borrowTimeoutMs;
+    private final ArrayBlockingQueue<Connection> idle;
+    private final AtomicInteger open = new AtomicInteger();
+    private volatile boolean closed;
+
+    SqlConnectionPool(Driver driver, String url, int maxSize, long borrowTimeoutMs) {
+        this.driver = driver;
+        this.url = url;
+        this.maxSize = Math.max(1, maxSize);
+        this.borrowTimeoutMs = borrowTimeoutMs;
+        this.idle = new ArrayBlockingQueue<>(this.maxSize);
+    }
+
+    Connection borrow() throws SQLException {
+        while (true) {
+            if (closed) {
+                throw new SQLException("connection pool is closed");
+            }
+            Connection c = idle.poll();
+            if (c == null && open.incrementAndGet() <= maxSize) {
+                try {
+                    return connect();
+                } catch (SQLException ex) {
+                    open.decrementAndGet();
+                    throw ex;
+                }
+            }
+            if (c == null) {
+                open.decrementAndGet();
+                try {
+                    c = idle.poll(borrowTimeoutMs, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("interrupted while waiting for a connection", ex);
+                }
+                if (c == null) {
+                    throw new SQLException("no database connection free after " + borrowTimeoutMs + " ms");
+                }
+            }
+            if (!c.isClosed()) {
+                return c;
+            }
+            open.decrementAndGet(); // died while idle; try again
+        }
+    }
+
+    void release(Connection c) {
+        try {
+            if (c.isClosed()) {
+                open.decrementAndGet();
+                return;
+            }
+            if (!c.getAutoCommit()) {
+                c.rollback();
+                c.setAutoCommit(true);
+            }
+            if (closed || !idle.offer(c)) {
+                open.decrementAndGet();
+                c.close();
+            }
+        } catch (SQLException ex) {
+            open.decrementAndGet();
+            try {
+                c.close();
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+
+    private Connection connect() throws SQLException {
+        Connection c = driver.connect(url, new Properties());
+        if (c == null) {
+            throw new SQLException("driver does not accept " + url);
+        }
+        return c;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Connection c;
+        while ((c = idle.poll()) != null) {
+            open.decrementAndGet();
+            try {
+                c.close();
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+}
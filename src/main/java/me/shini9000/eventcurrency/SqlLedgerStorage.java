@@ -0,0 +1,309 @@
+package me.shini9000.eventcurrency;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+
+/**
+ * Embedded H2 backend: one {@code balances} row per account, written with batched MERGE upserts of
+ * the accounts that changed since the last checkpoint, in the same transaction as the journal
+ * generation they cover. Runs in-process against balances.mv.db, no database server needed.
+ *
+ * In lazy mode nothing is read at startup; the {@link BalanceTable} fetches each account through
+ * {@link #loadOne} the first time it is used (and on login, see {@link EventCurrency}).
+ */
+final class SqlLedgerStorage implements LedgerStorage {
+
+    private static final String GENERATION_KEY = "journal-generation";
+
+    private static final String CREATE_BALANCES =
+            "CREATE TABLE IF NOT EXISTS balances ("
+                    + "msb BIGINT NOT NULL, lsb BIGINT NOT NULL, balance BIGINT NOT NULL, "
+                    + "PRIMARY KEY (msb, lsb))";
+    private static final String CREATE_META =
+            "CREATE TABLE IF NOT EXISTS ledger_meta (name VARCHAR(64) PRIMARY KEY, val BIGINT NOT NULL)";
+    private static final String CREATE_RANK_INDEX =
+            "CREATE INDEX IF NOT EXISTS balances_rank ON balances (balance DESC, msb, lsb)";
+    private static final String UPSERT_BALANCE =
+            "MERGE INTO balances (msb, lsb, balance) KEY (msb, lsb) VALUES (?, ?, ?)";
+    private static final String UPSERT_META =
+            "MERGE INTO ledger_meta (name, val) KEY (name) VALUES (?, ?)";
+    private static final String SELECT_META = "SELECT val FROM ledger_meta WHERE name = ?";
+    private static final String SELECT_ALL = "SELECT msb, lsb, balance FROM balances";
+    private static final String SELECT_ONE = "SELECT balance FROM balances WHERE msb = ? AND lsb = ?";
+    private static final String COUNT_RANKED = "SELECT COUNT(*) FROM balances WHERE balance > 0";
+    private static final String COUNT_AHEAD = "SELECT COUNT(*) FROM balances WHERE balance > ?";
+    private static final String COUNT_TIED_AHEAD =
+            "SELECT COUNT(*) FROM balances WHERE balance = ? AND (msb < ? OR (msb = ? AND lsb < ?))";
+    private static final String SELECT_RANKED =
+            "SELECT msb, lsb, balance FROM balances WHERE balance > 0 ORDER BY balance DESC, msb, lsb LIMIT ? OFFSET ?";
+
+    private final SqlConnectionPool pool;
+    private final boolean lazy;
+    private final int batchSize;
+    private final Logger logger;
+
+    SqlLedgerStorage(File dataFolder, int poolSize, int batchSize, boolean lazy, Logger logger) throws IOException {
+        String url = "jdbc:h2:file:" + new File(dataFolder, "balances").getAbsolutePath() + ";DB_CLOSE_ON_EXIT=FALSE";
+        this.pool = new SqlConnectionPool(new org.h2.Driver(), url, poolSize, 5000L);
+        this.lazy = lazy;
+        this.batchSize = Math.max(1, batchSize);
+        this.logger = logger;
+        Connection c = borrow();
+        try (Statement st = c.createStatement()) {
+            st.execute(CREATE_BALANCES);
+            st.execute(CREATE_META);
+            if (lazy) {
+                st.execute(CREATE_RANK_INDEX); // only the lazy leaderboard asks ranking queries
+            }
+        } catch (SQLException ex) {
+            throw new IOException("Failed to create the balances schema", ex);
+        } finally {
+            pool.release(c);
+        }
+    }
+
+    @Override
+    public String name() {
+        return "h2";
+    }
+
+    @Override
+    public boolean isEmpty() throws IOException {
+        return readGeneration() < 0; // every write records a generation
+    }
+
+    @Override
+    public long load(BalanceVisitor visitor) throws IOException {
+        long generation = Math.max(0L, readGeneration());
+        if (lazy) {
+            return generation;
+        }
+        long start = System.nanoTime();
+        long[] count = {0L};
+        scan((msb, lsb, balance) -> {
+            visitor.accept(msb, lsb, balance);
+            count[0]++;
+        });
+        logger.info("Loaded {} balances from the database in {} ms.", count[0],
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return generation;
+    }
+
+    @Override
+    public void scan(BalanceVisitor visitor) throws IOException {
+        Connection c = borrow();
+        try (Statement st = c.createStatement()) {
+            st.setFetchSize(batchSize);
+            try (ResultSet rs = st.executeQuery(SELECT_ALL)) {
+                while (rs.next()) {
+                    visitor.accept(rs.getLong(1), rs.getLong(2), rs.getLong(3));
+                }
+            }
+        } catch (SQLException ex) {
+            throw new IOException("Failed to read balances", ex);
+        } finally {
+            pool.release(c);
+        }
+    }
+
+    @Override
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    @Override
+    public long loadOne(long msb, long lsb) throws IOException {
+        Connection c = borrow();
+        try (PreparedStatement ps = c.prepareStatement(SELECT_ONE)) {
+            ps.setLong(1, msb);
+            ps.setLong(2, lsb);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : -1L;
+            }
+        } catch (SQLException ex) {
+            throw new IOException("Failed to load a balance", ex);
+        } finally {
+            pool.release(c);
+        }
+    }
+
+    @Override
+    public long countRanked() throws IOException {
+        if (!lazy) {
+            return LedgerStorage.super.countRanked();
+        }
+        Connection c = borrow();
+        try (PreparedStatement ps = c.prepareStatement(COUNT_RANKED)) {
+            return count(ps);
+        } catch (SQLException ex) {
+            throw new IOException("Failed to count ranked balances", ex);
+        } finally {
+            pool.release(c);
+        }
+    }
+
+    @Override
+    public long countRankedBefore(long balance, long msb, long lsb) throws IOException {
+        if (!lazy) {
+            return LedgerStorage.super.countRankedBefore(balance, msb, lsb);
+        }
+        Connection c = borrow();
+        try (PreparedStatement ahead = c.prepareStatement(COUNT_AHEAD);
+             PreparedStatement tied = c.prepareStatement(COUNT_TIED_AHEAD)) {
+            ahead.setLong(1, Math.max(0L, balance));
+            tied.setLong(1, balance);
+            tied.setLong(2, msb);
+            tied.setLong(3, msb);
+            tied.setLong(4, lsb);
+            return count(ahead) + (balance > 0 ? count(tied) : 0L);
+        } catch (SQLException ex) {
+            throw new IOException("Failed to rank a balance", ex);
+        } finally {
+            pool.release(c);
+        }
+    }
+
+    @Override
+    public void ranked(long offset, int limit, BalanceVisitor visitor) throws IOException {
+        if (!lazy) {
+            LedgerStorage.super.ranked(offset, limit, visitor);
+            return;
+        }
+        Connection c = borrow();
+        try (PreparedStatement ps = c.prepareStatement(SELECT_RANKED)) {
+            ps.setInt(1, limit);
+            ps.setLong(2, offset);
+            ps.setFetchSize(Math.min(limit, batchSize));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    visitor.accept(rs.getLong(1), rs.getLong(2), rs.getLong(3));
+                }
+            }
+        } catch (SQLException ex) {
+            throw new IOException("Failed to read ranked balances", ex);
+        } finally {
+            pool.release(c);
+        }
+    }
+
+    private static long count(PreparedStatement ps) throws SQLException {
+        try (ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0L;
+        }
+    }
+
+    @Override
+    public boolean wantsFullWrite() {
+        return false; // upserts are already incremental
+    }
+
+    @Override
+    public void writeChanges(long generation, long[] keys, long[] balances) throws IOException {
+        writeAll(generation, out -> {
+            for (int i = 0; i < balances.length; i++) {
+                out.accept(keys[2 * i], keys[2 * i + 1], balances[i]);
+            }
+        });
+    }
+
+    /** Upserts every balance; accounts are never removed, so rows missing from {@code source} stay as they are. */
+    @Override
+    public void writeAll(long generation, Consumer<BalanceVisitor> source) throws IOException {
+        Connection c = borrow();
+        try {
+            c.setAutoCommit(false);
+            try (PreparedStatement ps = c.prepareStatement(UPSERT_BALANCE)) {
+                BatchUpsert upsert = new BatchUpsert(ps, batchSize);
+                source.accept(upsert);
+                upsert.finish();
+            }
+            try (PreparedStatement ps = c.prepareStatement(UPSERT_META)) {
+                ps.setString(1, GENERATION_KEY);
+                ps.setLong(2, generation);
+                ps.executeUpdate();
+            }
+            c.commit();
+        } catch (SQLException ex) {
+            throw new IOException("Failed to write balances", ex); // release() rolls back
+        } finally {
+            pool.release(c);
+        }
+    }
+
+    private long readGeneration() throws IOException {
+        Connection c = borrow();
+        try (PreparedStatement ps = c.prepareStatement(SELECT_META)) {
+            ps.setString(1, GENERATION_KEY);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : -1L;
+            }
+        } catch (SQLException ex) {
+            throw new IOException("Failed to read the journal generation", ex);
+        } finally {
+            pool.release(c);
+        }
+    }
+
+    private Connection borrow() throws IOException {
+        try {
+            return pool.borrow();
+        } catch (SQLException ex) {
+            throw new IOException("Failed to open the balances database", ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    /** Adds rows to the batch and flushes it every {@code batchSize} rows; the first failure is kept for {@link #finish}. */
+    private static final class BatchUpsert implements BalanceVisitor {
+        private final PreparedStatement ps;
+        private final int batchSize;
+        private int pending;
+        private SQLException failure;
+
+        BatchUpsert(PreparedStatement ps, int batchSize) {
+            this.ps = ps;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public void accept(long msb, long lsb, long balance) {
+            if (failure != null) {
+                return;
+            }
+            try {
+                ps.setLong(1, msb);
+                ps.setLong(2, lsb);
+                ps.setLong(3, balance);
+                ps.addBatch();
+                if (++pending == batchSize) {
+                    ps.executeBatch();
+                    pending = 0;
+                }
+            } catch (SQLException ex) {
+                failure = ex;
+            }
+        }
+
+        void finish() throws SQLException {
+            if (failure != null) {
+                throw failure;
+            }
+            if (pending > 0) {
+                ps.executeBatch();
+            }
+        }
+    }
+}
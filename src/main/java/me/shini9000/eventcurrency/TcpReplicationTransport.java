@@ -0,0 +1,307 @@
+package me.shini9000.eventcurrency;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+
+/**
+ * Replication over plain TCP: every proxy listens on {@code replication.tcp.bind:port} and keeps one
+ * outgoing connection per peer, each fed by its own sender thread from a bounded queue. Frames are
+ * sent as {@code int length, bytes}.
+ *
+ * <p>A connection starts with a challenge: the listener sends {@code int magic "ECRH"} and 16 random
+ * bytes, and the connecting proxy answers with their HMAC-SHA256 under {@code replication.tcp.secret}.
+ * Anything else is disconnected before a frame is read. The traffic itself is not encrypted.
+ *
+ * <p>Every time a sender connects it first sends a {@link ReplicationTransport.Receiver#snapshot},
+ * so a peer catches up on whatever it missed while it was down or its queue overflowed; frames still
+ * queued from before are dropped, as the snapshot covers them. A peer whose queue overflows while
+ * connected is reconnected to get the same.
+ */
+final class TcpReplicationTransport implements ReplicationTransport {
+
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    private static final long MAX_BACKOFF_MS = 10_000L;
+    private static final int CHALLENGE_MAGIC = 0x45435248; // "ECRH"
+    private static final int CHALLENGE_BYTES = 16;
+
+    private final String bindHost;
+    private final int port;
+    private final byte[] secret;
+    private final SecureRandom random = new SecureRandom();
+    private final List<Peer> peers = new ArrayList<>();
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+    private final Logger logger;
+    private final Metrics metrics;
+    private volatile boolean running;
+    private ServerSocket server;
+    private Thread acceptor;
+    private Receiver receiver;
+
+    TcpReplicationTransport(String bindHost, int port, String secret, List<String> peerAddresses, int queueCapacity,
+                            Logger logger, Metrics metrics) {
+        this.bindHost = bindHost;
+        this.port = port;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.logger = logger;
+        this.metrics = metrics;
+        for (String address : peerAddresses) {
+            int colon = address.lastIndexOf(':');
+            try {
+                peers.add(new Peer(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)),
+                        Math.max(16, queueCapacity)));
+            } catch (RuntimeException ex) {
+                logger.warn("Ignoring replication peer '{}': expected host:port.", address);
+            }
+        }
+    }
+
+    @Override
+    public String name() {
+        return "tcp";
+    }
+
+    @Override
+    public void start(Receiver receiver) throws IOException {
+        if (secret.length == 0) {
+            throw new IOException("replication.tcp.secret is not set");
+        }
+        this.receiver = receiver;
+        running = true;
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress(bindHost, port));
+        acceptor = new Thread(this::accept, "EventCurrency-Replication-Accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (Peer peer : peers) {
+            peer.thread.start();
+        }
+        logger.info("Replicating over TCP on {}:{} to {} peer(s)", bindHost, port, peers.size());
+    }
+
+    @Override
+    public void publish(byte[] frame) {
+        for (Peer peer : peers) {
+            if (!peer.queue.offer(frame)) {
+                metrics.replicationFramesDropped.increment();
+                if (!peer.behind) {
+                    peer.behind = true;
+                    logger.warn("Replication peer {}:{} fell behind; it gets everything again once reconnected",
+                            peer.host, peer.port);
+                    closeQuietly(peer.socket); // reconnecting resends everything
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        closeQuietly(server);
+        for (Peer peer : peers) {
+            peer.thread.interrupt();
+            closeQuietly(peer.socket);
+        }
+        inbound.forEach(TcpReplicationTransport::closeQuietly);
+    }
+
+    // --------------- Receiving ---------------
+
+    private void accept() {
+        while (running) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException ex) {
+                if (running) {
+                    logger.warn("Replication listener failed: {}", ex.getMessage());
+                }
+                return;
+            }
+            inbound.add(socket);
+            Thread reader = new Thread(() -> read(socket),
+                    "EventCurrency-Replication-" + socket.getRemoteSocketAddress());
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    private void read(Socket socket) {
+        try (socket; DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            if (!challenge(socket, in)) {
+                logger.warn("Refused a replication connection from {}: it does not know replication.tcp.secret",
+                        socket.getRemoteSocketAddress());
+                return;
+            }
+            while (running) {
+                int length = in.readInt();
+                if (length <= 0 || length > Replicator.MAX_FRAME_BYTES) {
+                    logger.warn("Closing replication connection from {}: bad frame length {}",
+                            socket.getRemoteSocketAddress(), length);
+                    return;
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                receiver.receive(frame);
+            }
+        } catch (EOFException ignored) {
+            // peer went away
+        } catch (IOException ex) {
+            if (running) {
+                logger.debug("Replication connection from {} closed: {}", socket.getRemoteSocketAddress(), ex.getMessage());
+            }
+        } finally {
+            inbound.remove(socket);
+        }
+    }
+
+    private boolean challenge(Socket socket, DataInputStream in) throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        byte[] nonce = new byte[CHALLENGE_BYTES];
+        random.nextBytes(nonce);
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeInt(CHALLENGE_MAGIC);
+        out.write(nonce);
+        out.flush();
+        byte[] answer = new byte[32];
+        in.readFully(answer);
+        socket.setSoTimeout(0);
+        return MessageDigest.isEqual(answer, answer(nonce));
+    }
+
+    private byte[] answer(byte[] nonce) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return mac.doFinal(nonce);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("HmacSHA256 is unavailable", ex);
+        }
+    }
+
+    // --------------- Sending ---------------
+
+    private final class Peer {
+        final String host;
+        final int port;
+        final BlockingQueue<byte[]> queue;
+        final Thread thread;
+        volatile Socket socket;
+        volatile boolean behind; // frames were dropped; cleared by the snapshot on the next connect
+
+        Peer(String host, int port, int capacity) {
+            this.host = host;
+            this.port = port;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.thread = new Thread(this::run, "EventCurrency-Replication-" + host + ":" + port);
+            this.thread.setDaemon(true);
+        }
+
+        private void run() {
+            long backoff = 250L;
+            boolean warned = false;
+            while (running) {
+                try (Socket s = new Socket()) {
+                    s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                    s.setTcpNoDelay(true);
+                    socket = s;
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                    answerChallenge(s, out);
+                    logger.info("Connected to replication peer {}:{}", host, port);
+                    backoff = 250L;
+                    warned = false;
+                    resync(out);
+                    while (running) {
+                        byte[] frame = queue.take();
+                        write(out, frame);
+                        // Drain whatever else is queued before flushing, so a burst goes out in few packets
+                        for (byte[] next; (next = queue.poll()) != null; ) {
+                            write(out, next);
+                        }
+                        out.flush();
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                } catch (IOException | RuntimeException ex) {
+                    if (!running) {
+                        return;
+                    }
+                    if (!warned) {
+                        logger.warn("Replication peer {}:{} unreachable ({}), retrying", host, port, ex.getMessage());
+                        warned = true;
+                    }
+                }
+                // The queue keeps filling meanwhile; once it is full publish() drops, and the next snapshot makes up for it
+                try {
+                    TimeUnit.MILLISECONDS.sleep(backoff);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                backoff = Math.min(MAX_BACKOFF_MS, backoff * 2);
+            }
+        }
+
+        private void answerChallenge(Socket s, DataOutputStream out) throws IOException {
+            s.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            if (in.readInt() != CHALLENGE_MAGIC) {
+                throw new IOException("not a replication listener");
+            }
+            byte[] nonce = new byte[CHALLENGE_BYTES];
+            in.readFully(nonce);
+            out.write(answer(nonce));
+            out.flush();
+            s.setSoTimeout(0);
+        }
+
+        // Queued frames are older than the snapshot taken after them, so they can go
+        private void resync(DataOutputStream out) throws IOException {
+            queue.clear();
+            behind = false;
+            for (Iterator<byte[]> frames = receiver.snapshot(); frames.hasNext(); ) {
+                write(out, frames.next());
+            }
+            out.flush();
+        }
+
+        private void write(DataOutputStream out, byte[] frame) throws IOException {
+            out.writeInt(frame.length);
+            out.write(frame);
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable c) {
+        if (c == null) {
+            return;
+        }
+        try {
+            c.close();
+        } catch (IOException ignored) {
+            // closing anyway
+        }
+    }
+}
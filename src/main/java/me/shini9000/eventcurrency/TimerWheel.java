@@ -0,0 +1,112 @@
+package me.shini9000.eventcurrency;
+
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timer wheel: four levels of 64 slots, each level's slot spanning a whole turn of the
+ * level below. A timer goes into the lowest level whose span still reaches its deadline and is
+ * moved down a level each time the wheel turns onto its slot, so scheduling is O(1) and
+ * advancing costs one slot per tick plus the timers that actually come due. Timers further away
+ * than the top level reaches wait in its farthest slot and are placed again when that comes round.
+ *
+ * Not thread-safe; the owner serialises access.
+ */
+final class TimerWheel<T> {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long TOP_REACH = (1L << (BITS * LEVELS)) - (1L << (BITS * (LEVELS - 1)));
+
+    private static final class Timer<T> {
+        final long tick;
+        final T value;
+        Timer<T> next;
+
+        Timer(long tick, T value) {
+            this.tick = tick;
+            this.value = value;
+        }
+    }
+
+    private final long tickMillis;
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private final Timer<T>[][] slots = new Timer[LEVELS][SLOTS];
+    private long currentTick; // the next tick to fire; everything before it has fired
+    private int size;
+
+    TimerWheel(long tickMillis, long nowMillis) {
+        this.tickMillis = Math.max(1L, tickMillis);
+        this.currentTick = nowMillis / this.tickMillis;
+    }
+
+    /** Deadlines in a tick that has already fired count as due on the next one. */
+    void schedule(long deadlineMillis, T value) {
+        insert(new Timer<>(Math.max(currentTick, deadlineMillis / tickMillis), value));
+        size++;
+    }
+
+    /** Fires every timer due by {@code nowMillis}, earlier ticks first. */
+    void advance(long nowMillis, Consumer<T> due) {
+        long target = nowMillis / tickMillis;
+        if (size == 0) {
+            currentTick = Math.max(currentTick, target + 1); // nothing to cascade on the way
+            return;
+        }
+        for (; currentTick <= target; currentTick++) {
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (BITS * level)) - 1)) == 0) {
+                    cascade(level, (int) (currentTick >>> (BITS * level)) & MASK);
+                }
+            }
+            int slot = (int) currentTick & MASK;
+            Timer<T> t = slots[0][slot];
+            slots[0][slot] = null;
+            for (; t != null; t = t.next) {
+                size--;
+                due.accept(t.value);
+            }
+            if (size == 0) {
+                currentTick = target;
+            }
+        }
+    }
+
+    /** Visits every pending timer's value, in no particular order. */
+    void forEach(Consumer<T> visitor) {
+        for (Timer<T>[] level : slots) {
+            for (Timer<T> t : level) {
+                for (; t != null; t = t.next) {
+                    visitor.accept(t.value);
+                }
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void cascade(int level, int slot) {
+        Timer<T> t = slots[level][slot];
+        slots[level][slot] = null;
+        while (t != null) {
+            Timer<T> next = t.next;
+            insert(t);
+            t = next;
+        }
+    }
+
+    private void insert(Timer<T> t) {
+        long delta = t.tick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+            level++;
+        }
+        long placeAt = level == LEVELS - 1 ? Math.min(t.tick, currentTick + TOP_REACH) : t.tick;
+        int slot = (int) (placeAt >>> (BITS * level)) & MASK;
+        t.next = slots[level][slot];
+        slots[level][slot] = t;
+    }
+}
@@ -0,0 +1,62 @@
+package me.shini9000.eventcurrency;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket refilling at {@code perSecond} up to {@code burst} tokens.
+ *
+ * Kept as a single "theoretical arrival time" (the generic cell rate algorithm): the instant at
+ * which the bucket would be full again. Taking {@code n} tokens pushes it {@code n} intervals
+ * further out, and is refused if that would put it more than {@code burst} intervals ahead of now.
+ * One CAS per call and no allocation, so it can sit on the event thread.
+ */
+final class TokenBucket {
+
+    private final long intervalNanos; // one token's worth of time; 0 = unlimited
+    private final long burstNanos;
+    private final AtomicLong full = new AtomicLong(Long.MIN_VALUE / 2);
+
+    private TokenBucket(long intervalNanos, long burst) {
+        this.intervalNanos = intervalNanos;
+        this.burstNanos = intervalNanos * Math.max(1L, burst);
+    }
+
+    /** A rate of 0 or less admits everything. */
+    static TokenBucket perSecond(long perSecond, long burst) {
+        return new TokenBucket(perSecond <= 0 ? 0L : Math.max(1L, TimeUnit.SECONDS.toNanos(1) / perSecond), burst);
+    }
+
+    /** For rates below one a second: a token every {@code interval}. */
+    static TokenBucket every(long interval, TimeUnit unit, long burst) {
+        return new TokenBucket(Math.max(1L, unit.toNanos(interval)), burst);
+    }
+
+    boolean tryAcquire(int n) {
+        return tryAcquire(n, System.nanoTime());
+    }
+
+    boolean tryAcquire(int n, long nowNanos) {
+        if (intervalNanos == 0L) {
+            return true;
+        }
+        long cost = intervalNanos * n;
+        while (true) {
+            long current = full.get();
+            long next = Math.max(current, nowNanos) + cost;
+            if (next - nowNanos > burstNanos) {
+                return false;
+            }
+            if (full.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /** Gives back tokens taken for something that was not done after all. */
+    void refund(int n) {
+        if (intervalNanos != 0L) {
+            full.addAndGet(-intervalNanos * n);
+        }
+    }
+}
@@ -0,0 +1,523 @@
+package me.shini9000.eventcurrency;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+
+/**
+ * Tokens that do not last: grants that are taken back when they expire, and decay that takes a
+ * share of any balance nobody has touched for a while. Both are timers on a {@link TimerWheel}, so
+ * a tick only costs the timers that come due, and everything due in a tick is taken from the
+ * ledger as one batch per kind.
+ *
+ * An expiring grant takes back what it gave, or what is left of the balance if that is less. With
+ * decay enabled, a balance that has not changed for decay.idle-days loses decay.percent of itself,
+ * and again after each further idle period, until the share rounds down to nothing. Accounts that
+ * already had tokens when decay was enabled start their idle period at that first start.
+ *
+ * Pending grants and the last activity of decaying accounts live in expiry.dat, an append-only log:
+ *
+ * <pre>
+ * int magic "ECEX"   int version
+ * n x { byte type, payload, int crc32(record) }
+ *   GRANT  long id, long msb, long lsb, long amount, long expiresAt
+ *   DONE   long id
+ *   ACTIVE long msb, long lsb, long millis
+ * </pre>
+ *
+ * The DONE records of a tick are synced before its grants are taken back, so a crash can at worst
+ * cost a grant its expiry, never take it back twice. Activity is recorded to the minute. The log
+ * is rewritten once most of it is superseded.
+ */
+final class TokenExpiry {
+
+    record Grant(long id, long msb, long lsb, long amount, long expiresAt) {
+    }
+
+    private record IdleCheck(long msb, long lsb) {
+    }
+
+    private static final int MAGIC = 0x45434558; // "ECEX"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final byte GRANT = 1;
+    private static final byte DONE = 2;
+    private static final byte ACTIVE = 3;
+    private static final long ACTIVITY_GRANULARITY_MS = 60_000L;
+    private static final long RETRY_DELAY_MS = 60_000L;
+
+    private final File file;
+    private final Ledger ledger;
+    private final Executor io;
+    private final Logger logger;
+    private final Metrics metrics;
+    private final long tickMillis;
+    private final long idleMillis; // 0 = no decay
+    private final int decayPercent;
+    private final DirtyKeySet touched = new DirtyKeySet();
+    // Our own deductions are not activity, or every decay would restart the idle period it ends
+    private volatile Thread deducting;
+    private final Ledger.ChangeListener touchListener = (msb, lsb) -> {
+        if (Thread.currentThread() != deducting) {
+            touched.add(msb, lsb);
+        }
+    };
+    private final AtomicBoolean tickPending = new AtomicBoolean();
+    private volatile boolean decayHere = true;
+
+    // Guarded by this
+    private TimerWheel<Object> wheel;
+    private final Map<UUID, Long> lastActive = new HashMap<>(); // each decaying account has one IdleCheck in the wheel
+    private long nextId = 1L;
+    private long records; // in the log, superseded or not
+    private FileChannel channel; // null if the log could not be opened
+    private boolean closed;
+
+    TokenExpiry(File file, Ledger ledger, Executor io, Logger logger, Metrics metrics, String currency,
+                long tickMillis, long idleMillis, int decayPercent) {
+        this.file = file;
+        this.ledger = ledger;
+        this.io = io;
+        this.logger = logger;
+        this.metrics = metrics;
+        this.tickMillis = Math.max(1L, tickMillis);
+        this.idleMillis = decayPercent > 0 ? Math.max(0L, idleMillis) : 0L;
+        this.decayPercent = Math.min(100, Math.max(0, decayPercent));
+        metrics.gauge("expiry_timers", "Expiring grants and decay checks waiting on the timer wheel", currency,
+                this::size);
+    }
+
+    long tickMillis() {
+        return tickMillis;
+    }
+
+    private synchronized long size() {
+        return wheel == null ? 0L : wheel.size();
+    }
+
+    // --------------- Lifecycle ---------------
+
+    /** Reads expiry.dat, puts everything it holds back on the wheel and starts tracking activity. */
+    synchronized void open() {
+        long now = System.currentTimeMillis();
+        wheel = new TimerWheel<>(tickMillis, now);
+        Map<Long, Grant> grants = new HashMap<>();
+        try {
+            boolean rewrite = !file.exists() || readAll(grants);
+            for (Grant g : grants.values()) {
+                wheel.schedule(g.expiresAt(), g);
+            }
+            if (idleMillis > 0) {
+                lastActive.forEach((id, last) -> wheel.schedule(last + idleMillis,
+                        new IdleCheck(id.getMostSignificantBits(), id.getLeastSignificantBits())));
+            } else {
+                lastActive.clear();
+            }
+            if (rewrite) {
+                rewrite();
+            }
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException ex) {
+            logger.error("Failed to open {}, expiring grants made from now on only last until restart",
+                    file.getName(), ex);
+        }
+        if (idleMillis > 0) {
+            ledger.addChangeListener(touchListener);
+            if (lastActive.isEmpty()) {
+                io.execute(this::trackExisting); // nothing tracked yet: decay was just enabled
+            }
+        }
+        logger.info("Loaded {} expiring grants{}.", grants.size(),
+                idleMillis > 0 ? " and " + lastActive.size() + " decaying balances" : "");
+    }
+
+    // Off the startup path, like the leaderboard; accounts touched meanwhile are already tracked and keep their time
+    private void trackExisting() {
+        List<long[]> accounts = new ArrayList<>();
+        try {
+            ledger.forEachAccount((msb, lsb, balance) -> {
+                if (balance > 0) {
+                    accounts.add(new long[] { msb, lsb });
+                }
+            });
+        } catch (IOException ex) {
+            logger.error("Failed to read the accounts to decay, only accounts that change from now on will", ex);
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long minute = now - now % ACTIVITY_GRANULARITY_MS;
+            List<ByteBuffer> out = new ArrayList<>();
+            for (long[] a : accounts) {
+                if (lastActive.putIfAbsent(new UUID(a[0], a[1]), minute) == null) {
+                    wheel.schedule(minute + idleMillis, new IdleCheck(a[0], a[1]));
+                    out.add(encode(ACTIVE, a[0], a[1], minute));
+                }
+            }
+            append(out, false);
+            logger.info("Tracking {} existing balances for decay.", out.size());
+        }
+    }
+
+    /** Returns whether the file should be rewritten: a damaged tail, or mostly superseded records. */
+    private boolean readAll(Map<Long, Grant> grants) throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        if (data.length < HEADER_BYTES || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            throw new IOException(file.getName() + " is not a token expiry log");
+        }
+        Set<Long> done = new HashSet<>();
+        CRC32 crc = new CRC32();
+        int end = HEADER_BYTES;
+        while (buf.remaining() >= 1) {
+            int start = buf.position();
+            byte type = buf.get();
+            int longs = switch (type) {
+                case GRANT -> 5;
+                case DONE -> 1;
+                case ACTIVE -> 3;
+                default -> -1;
+            };
+            if (longs < 0 || buf.remaining() < longs * 8 + 4) {
+                break;
+            }
+            long[] v = new long[longs];
+            for (int i = 0; i < longs; i++) {
+                v[i] = buf.getLong();
+            }
+            crc.reset();
+            crc.update(data, start, 1 + longs * 8);
+            if ((int) crc.getValue() != buf.getInt()) {
+                break;
+            }
+            switch (type) {
+                case GRANT -> grants.put(v[0], new Grant(v[0], v[1], v[2], v[3], v[4]));
+                case DONE -> done.add(v[0]);
+                default -> lastActive.put(new UUID(v[0], v[1]), v[2]);
+            }
+            nextId = Math.max(nextId, (type == ACTIVE ? 0L : v[0]) + 1);
+            records++;
+            end = buf.position();
+        }
+        grants.keySet().removeAll(done);
+        if (end < data.length) {
+            logger.warn("Ignoring {} damaged bytes at the end of {}", data.length - end, file.getName());
+            return true;
+        }
+        return records > 2L * (grants.size() + lastActive.size()) + 1024;
+    }
+
+    // Live grants and activity only; the old file stays until the new one is synced and moved over it
+    private void rewrite() throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        long written = 0;
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(ch, ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).flip());
+            List<ByteBuffer> out = new ArrayList<>();
+            wheel.forEach(v -> {
+                if (v instanceof Grant g) {
+                    out.add(encode(GRANT, g.id(), g.msb(), g.lsb(), g.amount(), g.expiresAt()));
+                }
+            });
+            lastActive.forEach((id, last) ->
+                    out.add(encode(ACTIVE, id.getMostSignificantBits(), id.getLeastSignificantBits(), last)));
+            for (ByteBuffer record : out) {
+                writeFully(ch, record);
+            }
+            written = out.size();
+            ch.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = written;
+    }
+
+    /** Waits for a tick in progress, then stops; anything due later is handled after the next start. */
+    synchronized void close() {
+        closed = true;
+        ledger.removeChangeListener(touchListener);
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.force(true);
+            channel.close();
+        } catch (IOException ex) {
+            logger.error("Failed to close {}", file.getName(), ex);
+        }
+        channel = null;
+    }
+
+    // --------------- Grants ---------------
+
+    /**
+     * Adds the tokens now and takes them back at {@code expiresAt}, as far as they are still there.
+     * Returns the new balance.
+     */
+    long grant(long msb, long lsb, long amount, long expiresAt, AuditLog.Cause cause) {
+        if (amount <= 0) {
+            return ledger.get(msb, lsb);
+        }
+        Grant grant;
+        synchronized (this) {
+            grant = new Grant(nextId++, msb, lsb, amount, expiresAt);
+        }
+        long balance = ledger.add(msb, lsb, amount, 0L, cause);
+        try {
+            // On the I/O thread like every tick, so its GRANT record always lands before its DONE
+            io.execute(() -> schedule(grant));
+        } catch (RejectedExecutionException ex) {
+            // Shutting down: nothing would ever take it back, so it is not given at all
+            long[] amounts = { amount };
+            deduct(new long[] { msb, lsb }, amounts, cause);
+            logger.warn("Took back an expiring grant of {} made while shutting down", amounts[0]);
+            return ledger.get(msb, lsb);
+        }
+        metrics.expiringGrants.increment();
+        return balance;
+    }
+
+    private synchronized void schedule(Grant grant) {
+        if (closed) {
+            return;
+        }
+        // Not synced on its own: a crash before the next tick's sync can only cost the grant its expiry
+        append(List.of(encode(GRANT, grant.id(), grant.msb(), grant.lsb(), grant.amount(), grant.expiresAt())), false);
+        wheel.schedule(grant.expiresAt(), grant);
+    }
+
+    /**
+     * With replication, decay runs on one proxy only and reaches the others like any other change;
+     * the rest keep tracking activity but leave idle balances alone.
+     */
+    void setDecayHere(boolean decayHere) {
+        this.decayHere = decayHere;
+    }
+
+    // --------------- Ticks ---------------
+
+    /** Called by the scheduler every tick; the work happens on the I/O thread, at most one tick queued at a time. */
+    void tick() {
+        if (!tickPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            io.execute(this::advance);
+        } catch (RejectedExecutionException ex) {
+            tickPending.set(false); // shutting down
+        }
+    }
+
+    private synchronized void advance() {
+        tickPending.set(false);
+        if (closed) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            List<ByteBuffer> out = new ArrayList<>();
+            if (idleMillis > 0) {
+                noteActivity(touched.drain(), now, out);
+            }
+            List<Grant> grants = new ArrayList<>();
+            List<IdleCheck> checks = new ArrayList<>();
+            wheel.advance(now, v -> {
+                if (v instanceof Grant g) {
+                    grants.add(g);
+                } else {
+                    checks.add((IdleCheck) v);
+                }
+            });
+            for (Grant g : grants) {
+                out.add(encode(DONE, g.id()));
+            }
+            long[] decayKeys = new long[checks.size() * 2];
+            long[] decayAmounts = new long[checks.size()];
+            int decaying = decideDecay(checks, now, decayKeys, decayAmounts, out);
+
+            // A decaying account's check is only put back once its new idle period is on disk
+            if (!append(out, true)) {
+                // Taking tokens back without a durable DONE could take them twice after a crash
+                for (Grant g : grants) {
+                    wheel.schedule(now + RETRY_DELAY_MS, g);
+                }
+                for (int i = 0; i < decaying; i++) {
+                    wheel.schedule(now + RETRY_DELAY_MS, new IdleCheck(decayKeys[2 * i], decayKeys[2 * i + 1]));
+                }
+                return;
+            }
+            if (!grants.isEmpty()) {
+                expire(grants);
+            }
+            for (int i = 0; i < decaying; i++) {
+                lastActive.put(new UUID(decayKeys[2 * i], decayKeys[2 * i + 1]), now);
+                wheel.schedule(now + idleMillis, new IdleCheck(decayKeys[2 * i], decayKeys[2 * i + 1]));
+            }
+            if (decaying > 0) {
+                long[] amounts = Arrays.copyOf(decayAmounts, decaying);
+                deduct(Arrays.copyOf(decayKeys, decaying * 2), amounts, AuditLog.Cause.DECAY);
+                metrics.decayedAccounts.add(decaying);
+                for (long taken : amounts) {
+                    metrics.decayedTokens.add(taken);
+                }
+            }
+            if (records > 2L * (wheel.size() + lastActive.size()) + 1024) {
+                compact();
+            }
+        } catch (Exception ex) {
+            logger.error("Token expiry tick failed", ex); // the next tick tries again
+        }
+    }
+
+    // Every grant due this tick comes off the ledger as one batched mutation
+    private void expire(List<Grant> grants) {
+        long[] keys = new long[grants.size() * 2];
+        long[] amounts = new long[grants.size()];
+        for (int i = 0; i < amounts.length; i++) {
+            Grant g = grants.get(i);
+            keys[2 * i] = g.msb();
+            keys[2 * i + 1] = g.lsb();
+            amounts[i] = g.amount();
+        }
+        deduct(keys, amounts, AuditLog.Cause.EXPIRY);
+        metrics.expiredGrants.add(amounts.length);
+        for (long taken : amounts) {
+            metrics.expiredTokens.add(taken);
+        }
+    }
+
+    private void deduct(long[] keys, long[] amounts, AuditLog.Cause cause) {
+        deducting = Thread.currentThread();
+        try {
+            ledger.deductAll(keys, amounts, cause);
+        } finally {
+            deducting = null;
+        }
+    }
+
+    // Accounts changed since the last tick start (or restart) their idle period
+    private void noteActivity(long[] keys, long now, List<ByteBuffer> out) {
+        long minute = now - now % ACTIVITY_GRANULARITY_MS;
+        for (int i = 0; i < keys.length; i += 2) {
+            Long previous = lastActive.put(new UUID(keys[i], keys[i + 1]), minute);
+            if (previous == null) {
+                wheel.schedule(minute + idleMillis, new IdleCheck(keys[i], keys[i + 1]));
+            }
+            if (previous == null || previous != minute) {
+                out.add(encode(ACTIVE, keys[i], keys[i + 1], minute));
+            }
+        }
+    }
+
+    /**
+     * Fills in the accounts that decay this tick and returns how many; the rest are put back on the
+     * wheel or dropped. Decaying accounts are left to the caller, which restarts their idle period
+     * only once its ACTIVE record is written.
+     */
+    private int decideDecay(List<IdleCheck> checks, long now, long[] keys, long[] amounts, List<ByteBuffer> out) {
+        int n = 0;
+        for (IdleCheck check : checks) {
+            UUID id = new UUID(check.msb(), check.lsb());
+            Long last = lastActive.get(id);
+            if (last == null) {
+                continue;
+            }
+            if (now - last < idleMillis) {
+                wheel.schedule(last + idleMillis, check); // touched since this check was scheduled
+                continue;
+            }
+            if (!decayHere) {
+                wheel.schedule(now + idleMillis, check);
+                continue;
+            }
+            long balance = ledger.get(check.msb(), check.lsb());
+            long share = balance / 100 * decayPercent + balance % 100 * decayPercent / 100;
+            if (share <= 0) {
+                lastActive.remove(id); // nothing left to decay until the balance changes again
+                continue;
+            }
+            out.add(encode(ACTIVE, check.msb(), check.lsb(), now));
+            keys[2 * n] = check.msb();
+            keys[2 * n + 1] = check.lsb();
+            amounts[n++] = share;
+        }
+        return n;
+    }
+
+    private void compact() {
+        try {
+            channel.close();
+            rewrite();
+        } catch (IOException ex) {
+            logger.error("Failed to compact {}", file.getName(), ex);
+        }
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException ex) {
+            channel = null;
+            logger.error("Failed to reopen {}, expiring grants made from now on only last until restart",
+                    file.getName(), ex);
+        }
+    }
+
+    // --------------- Encoding ---------------
+
+    /** Appends the records, syncing if asked; false if they may not have reached the disk. */
+    private synchronized boolean append(List<ByteBuffer> out, boolean sync) {
+        if (channel == null || out.isEmpty()) {
+            return true; // without a log there is nothing to keep consistent
+        }
+        try {
+            for (ByteBuffer record : out) {
+                writeFully(channel, record);
+            }
+            if (sync) {
+                channel.force(false);
+            }
+            records += out.size();
+            return true;
+        } catch (IOException ex) {
+            logger.error("Failed to write {}", file.getName(), ex);
+            return false;
+        }
+    }
+
+    private static ByteBuffer encode(byte type, long... values) {
+        ByteBuffer buf = ByteBuffer.allocate(1 + values.length * 8 + 4);
+        buf.put(type);
+        for (long v : values) {
+            buf.putLong(v);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putInt((int) crc.getValue());
+        return buf.flip();
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+    }
+}
@@ -3,14 +3,15 @@ package me.shini9000.eventcurrency;
 
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.connection.PluginMessageEvent;
+import com.velocitypowered.api.event.player.ServerPostConnectEvent;
 import com.velocitypowered.api.proxy.Player;
 import com.velocitypowered.api.proxy.ProxyServer;
+import com.velocitypowered.api.proxy.ServerConnection;
 import com.velocitypowered.api.proxy.messages.ChannelIdentifier;
 import com.velocitypowered.api.proxy.messages.MinecraftChannelIdentifier;
 import net.kyori.adventure.text.Component;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -20,10 +21,38 @@ public final class VelocityBridgeListener {
 
     private final EventCurrency plugin;
     private final ProxyServer server;
+    private final BridgeIngestPipeline pipeline;
+    private final BridgeOutbox outbox;
+    private final Ledger.ChangeListener pushListener;
+    private final boolean pushBalances;
+    private final Ledger ledger;
+    private final Metrics metrics;
+    private final BridgeRateLimiter limiter;
+    private final BridgeRateLimiter.Backend clients; // log sampling for messages that did not come from a backend
 
     public VelocityBridgeListener(EventCurrency plugin) {
         this.plugin = plugin;
         this.server = plugin.getServer();
+        this.ledger = plugin.getLedger();
+        this.metrics = plugin.getMetrics();
+        EventCurrencyConfig config = plugin.getConfig();
+        this.limiter = new BridgeRateLimiter(config, plugin.getLogger(), metrics);
+        this.clients = limiter.backend("<clients>");
+        this.pipeline = new BridgeIngestPipeline(plugin.getLogger(), this::apply, metrics.bridgeQueueLatency,
+                config.getInt("bridge.workers", 2),
+                config.getInt("bridge.lane-capacity", 1024),
+                config.getInt("bridge.max-pending-per-backend", 2048),
+                config.getEnum("bridge.overflow-policy", BridgeIngestPipeline.OverflowPolicy.class,
+                        BridgeIngestPipeline.OverflowPolicy.DROP),
+                config.getLong("bridge.block-timeout-ms", 50L));
+        metrics.gauge("bridge_queued", "Bridge operations waiting for a worker", pipeline::queued);
+        this.outbox = new BridgeOutbox(server, ledger, metrics, plugin.getLogger(),
+                config.getLong("bridge.reply-coalesce-ms", 20L));
+        this.pushBalances = config.getBoolean("bridge.push-balances", true);
+        this.pushListener = outbox::changed;
+        if (pushBalances) {
+            ledger.addChangeListener(pushListener);
+        }
     }
 
     @Subscribe
@@ -32,50 +61,135 @@ public final class VelocityBridgeListener {
         if (!id.equals(CHANNEL)) {
             return;
         }
+        // Ours whatever happens next: never passed on to the client or to a backend
+        event.setResult(PluginMessageEvent.ForwardResult.handled());
+        metrics.bridgeFrames.increment();
 
-        // No source type check needed; we only act on our channel
-        byte[] data = event.getData();
-        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
-            String action = in.readUTF();
-            UUID targetUuid = UUID.fromString(in.readUTF());
-            long amount = in.readLong();
-            String executorName = in.readUTF(); // optional: for auditing
-
-            Optional<Player> targetOpt = server.getPlayer(targetUuid);
-            if (!targetOpt.isPresent()) {
-                plugin.getLogger().warn("Target player not online on proxy: {}", targetUuid);
-                return;
-            }
-            Player target = targetOpt.get();
-
-            switch (action) {
-                case "give":
-                    long newBalGive = plugin.add(target.getUniqueId(), amount);
-                    target.sendMessage(Component.text("You received " + amount + " event tokens. New balance: " + newBalGive));
-                    break;
-
-                case "take":
-                case "remove":
-                    boolean ok = plugin.spend(target.getUniqueId(), amount);
-                    if (ok) {
-                        long newBalTake = plugin.getBalance(target.getUniqueId());
-                        target.sendMessage(Component.text(amount + " event tokens were removed. New balance: " + newBalTake));
-                    } else {
-                        target.sendMessage(Component.text("Not enough tokens to remove " + amount + "."));
-                    }
-                    break;
-
-                case "set":
-                    long clamped = Math.max(0L, amount);
-                    plugin.setBalance(target.getUniqueId(), clamped);
-                    target.sendMessage(Component.text("Your event tokens were set to " + clamped));
-                    break;
-
-                default:
-                    plugin.getLogger().warn("Unknown action from bridge: {}", action);
+        // A client can send on any channel; only a backend server may touch balances
+        if (!(event.getSource() instanceof ServerConnection conn)) {
+            metrics.bridgeForeignMessages.increment();
+            limiter.warn(clients, "Ignoring a bridge message from {}: not a backend server",
+                    event.getSource() instanceof Player p ? p.getUsername() : event.getSource());
+            return;
+        }
+        String backendName = conn.getServerInfo().getName();
+        BridgeRateLimiter.Backend backend = limiter.backend(backendName);
+        if (!limiter.admitMessage(backend)) {
+            return;
+        }
+
+        // Only decode here; lookups, balance changes and chat happen on the pipeline's workers
+        try {
+            long start = System.nanoTime();
+            BridgeReader in = BridgeReader.read(event.getData());
+            metrics.bridgeDecodeLatency.recordSince(start);
+            if (limiter.admitOperations(backend, in)) {
+                pipeline.submit(backendName, in);
             }
+        } catch (IllegalArgumentException ex) {
+            metrics.bridgeParseFailures.increment();
+            limiter.warn(backend, "Ignoring a malformed bridge message from {}: {}", backendName, ex.getMessage());
         } catch (Exception ex) {
-            plugin.getLogger().error("Failed to process plugin message", ex);
+            limiter.warn(backend, "Failed to process a bridge message from {}", backendName, ex);
+        }
+    }
+
+    // A backend the player just joined has no balance for them yet
+    @Subscribe
+    public void onServerPostConnect(ServerPostConnectEvent event) {
+        if (pushBalances) {
+            UUID id = event.getPlayer().getUniqueId();
+            outbox.changed(id.getMostSignificantBits(), id.getLeastSignificantBits());
+        }
+    }
+
+    BridgeIngestPipeline getPipeline() {
+        return pipeline;
+    }
+
+    void shutdown(long timeoutMs) {
+        ledger.removeChangeListener(pushListener);
+        pipeline.shutdown(timeoutMs);
+        outbox.shutdown();
+    }
+
+    // Runs on a pipeline worker; executorName goes to the audit log. Retries of an operation share
+    // its target and therefore its lane, so claiming the ID here cannot race with another copy of it.
+    private void apply(String backend, int opcode, long msb, long lsb, long amount, long operationId,
+                       String executorName) {
+        if (opcode == BridgeProtocol.OP_QUERY) {
+            outbox.query(backend, msb, lsb); // answered for offline players too
+            return;
+        }
+        long operation = operationId != 0L ? OperationDedupe.key(backend, operationId) : 0L;
+        if (opcode == BridgeProtocol.OP_GIVE_ALL || opcode == BridgeProtocol.OP_TAKE_ALL) {
+            if (operation == 0L || ledger.claimOperation(operation)) {
+                applyToBackend(backend, opcode == BridgeProtocol.OP_GIVE_ALL, amount, operation,
+                        AuditLog.Cause.backend(backend, executorName));
+            }
+            return;
+        }
+        UUID targetUuid = new UUID(msb, lsb);
+        Optional<Player> targetOpt = server.getPlayer(targetUuid);
+        if (!targetOpt.isPresent()) {
+            metrics.bridgeOfflineTargets.increment();
+            limiter.warn(limiter.backend(backend), "Target player not online on proxy: {} (from {})", targetUuid, backend);
+            return;
+        }
+        Player target = targetOpt.get();
+        if (operation != 0L && !ledger.claimOperation(operation)) {
+            return; // a resend of something already applied
+        }
+        metrics.bridgeOps.increment();
+        AuditLog.Cause cause = AuditLog.Cause.backend(backend, executorName);
+
+        switch (opcode) {
+            case BridgeProtocol.OP_GIVE:
+                long newBalGive = ledger.add(msb, lsb, amount, operation, cause);
+                target.sendMessage(Component.text("You received " + amount + " event tokens. New balance: " + newBalGive));
+                break;
+
+            case BridgeProtocol.OP_TAKE:
+                boolean ok = ledger.spend(msb, lsb, amount, operation, cause);
+                if (ok) {
+                    long newBalTake = plugin.getBalance(target.getUniqueId());
+                    target.sendMessage(Component.text(amount + " event tokens were removed. New balance: " + newBalTake));
+                } else {
+                    target.sendMessage(Component.text("Not enough tokens to remove " + amount + "."));
+                }
+                break;
+
+            case BridgeProtocol.OP_SET:
+                long clamped = Math.max(0L, amount);
+                ledger.set(msb, lsb, clamped, operation, cause);
+                target.sendMessage(Component.text("Your event tokens were set to " + clamped));
+                break;
+
+            default:
+                limiter.warn(limiter.backend(backend), "Unknown action from bridge: {} (from {})",
+                        BridgeProtocol.opcodeName(opcode), backend);
+        }
+    }
+
+    // Everyone on the sending backend, as one batch
+    private void applyToBackend(String backend, boolean give, long amount, long operation, AuditLog.Cause cause) {
+        List<Player> players = server.getServer(backend)
+                .map(s -> List.copyOf(s.getPlayersConnected()))
+                .orElse(List.of());
+        if (players.isEmpty()) {
+            return;
+        }
+        metrics.bridgeOps.increment();
+        List<UUID> ids = players.stream().map(Player::getUniqueId).toList();
+        if (give) {
+            long[] balances = plugin.addAll(ledger, ids, amount, operation, cause);
+            plugin.messageEach(players, i -> Component.text("You received " + amount
+                    + " event tokens. New balance: " + balances[i]));
+        } else {
+            long[] balances = plugin.spendAll(ledger, ids, amount, operation, cause);
+            plugin.messageEach(players, i -> Component.text(balances[i] < 0
+                    ? "Not enough tokens to remove " + amount + "."
+                    : amount + " event tokens were removed. New balance: " + balances[i]));
         }
     }
 }
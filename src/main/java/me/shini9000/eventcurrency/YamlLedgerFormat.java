@@ -0,0 +1,84 @@
+package me.shini9000.eventcurrency;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * The original human-readable balances.yml layout, used by {@link YamlLedgerStorage}, for migrating
+ * old installs to the binary store and for exporting the ledger for inspection.
+ */
+final class YamlLedgerFormat {
+
+    private YamlLedgerFormat() {
+    }
+
+    /**
+     * Reads a balances.yml file, skipping malformed entries.
+     *
+     * @return the journal generation recorded in the file, or 0 if it predates the journal
+     */
+    static long read(File file, BalanceVisitor visitor, Logger logger) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            Object root = new Yaml().load(fis);
+            if (!(root instanceof Map<?, ?> map)) {
+                logger.warn("{} is empty or malformed, ignoring it.", file.getName());
+                return 0L;
+            }
+            Object balancesNode = map.get("balances");
+            if (balancesNode instanceof Map<?, ?> bmap) {
+                bmap.forEach((k, v) -> {
+                    try {
+                        UUID id = UUID.fromString(String.valueOf(k));
+                        long val = Long.parseLong(String.valueOf(v));
+                        visitor.accept(id.getMostSignificantBits(), id.getLeastSignificantBits(), Math.max(0L, val));
+                    } catch (Exception ex) {
+                        logger.warn("Skipping malformed balance entry: {} -> {}", k, v);
+                    }
+                });
+            }
+            Object generation = map.get("journal-generation");
+            return generation instanceof Number n ? n.longValue() : 0L;
+        }
+    }
+
+    /** Writes every balance {@code source} feeds into the visitor as a block-style YAML document. */
+    static void write(File file, Consumer<BalanceVisitor> source) throws IOException {
+        write(file, -1L, source);
+    }
+
+    /** As {@link #write(File, Consumer)}, recording the journal generation the file covers unless it is negative. */
+    static void write(File file, long generation, Consumer<BalanceVisitor> source) throws IOException {
+        Map<String, Object> root = new LinkedHashMap<>();
+        Map<String, Object> bmap = new LinkedHashMap<>();
+        source.accept((msb, lsb, balance) -> bmap.put(new UUID(msb, lsb).toString(), balance));
+        root.put("balances", bmap);
+        if (generation >= 0) {
+            root.put("journal-generation", generation);
+        }
+
+        DumperOptions opts = new DumperOptions();
+        opts.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+        opts.setPrettyFlow(true);
+        Yaml yaml = new Yaml(opts);
+
+        try (FileOutputStream fos = new FileOutputStream(file);
+             Writer writer = new OutputStreamWriter(fos, StandardCharsets.UTF_8)) {
+            yaml.dump(root, writer);
+            writer.flush();
+            fos.getFD().sync();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package me.shini9000.eventcurrency;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+
+/**
+ * The original balances.yml store: readable and hand-editable while the proxy is down, but every
+ * checkpoint rewrites the whole file. Fine for small networks; use {@code file} or {@code h2} once
+ * the ledger grows.
+ */
+final class YamlLedgerStorage implements LedgerStorage {
+
+    private final File balancesFile;
+    private final Logger logger;
+
+    YamlLedgerStorage(File dataFolder, Logger logger) {
+        this.balancesFile = new File(dataFolder, "balances.yml");
+        this.logger = logger;
+    }
+
+    @Override
+    public String name() {
+        return "yaml";
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !balancesFile.exists();
+    }
+
+    @Override
+    public long load(BalanceVisitor visitor) throws IOException {
+        return balancesFile.exists() ? YamlLedgerFormat.read(balancesFile, visitor, logger) : 0L;
+    }
+
+    @Override
+    public void scan(BalanceVisitor visitor) throws IOException {
+        load(visitor);
+    }
+
+    @Override
+    public boolean isLazy() {
+        return false;
+    }
+
+    @Override
+    public long loadOne(long msb, long lsb) {
+        return -1L;
+    }
+
+    @Override
+    public boolean wantsFullWrite() {
+        return true; // a YAML document cannot be patched in place
+    }
+
+    // Normally unused since wantsFullWrite() is always true, but still correct: merge into what is stored and rewrite
+    @Override
+    public void writeChanges(long generation, long[] keys, long[] balances) throws IOException {
+        BalanceTable merged = new BalanceTable();
+        load(merged::set);
+        for (int i = 0; i < balances.length; i++) {
+            merged.set(keys[2 * i], keys[2 * i + 1], balances[i]);
+        }
+        writeAll(generation, merged::forEach);
+    }
+
+    @Override
+    public void writeAll(long generation, Consumer<BalanceVisitor> source) throws IOException {
+        File tmp = new File(balancesFile.getParentFile(), balancesFile.getName() + ".tmp");
+        YamlLedgerFormat.write(tmp, generation, source);
+        Files.move(tmp.toPath(), balancesFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() {
+    }
+}
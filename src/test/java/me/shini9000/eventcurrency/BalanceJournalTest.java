@@ -0,0 +1,89 @@
+package me.shini9000.eventcurrency;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class BalanceJournalTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BalanceJournalTest.class);
+
+    @TempDir
+    File directory;
+
+    @Test
+    void replaysSetsAndBatchesInOrder() throws IOException {
+        BalanceJournal journal = open(1L);
+        journal.appendSet(1L, 2L, 10L, 0L);
+        journal.appendBatch(new long[] { 3L, 4L, 5L, 6L }, new long[] { 30L, 50L }, 2, 77L);
+        journal.appendSet(1L, 2L, 15L, 78L);
+        journal.close();
+
+        List<long[]> records = new ArrayList<>();
+        List<Long> operations = new ArrayList<>();
+        long highest = BalanceJournal.replay(directory, 1L,
+                (msb, lsb, balance) -> records.add(new long[] { msb, lsb, balance }), operations::add, LOGGER);
+
+        assertEquals(1L, highest);
+        assertEquals(4, records.size());
+        assertArrayEquals(new long[] { 1L, 2L, 10L }, records.get(0));
+        assertArrayEquals(new long[] { 3L, 4L, 30L }, records.get(1));
+        assertArrayEquals(new long[] { 5L, 6L, 50L }, records.get(2));
+        assertArrayEquals(new long[] { 1L, 2L, 15L }, records.get(3));
+        assertEquals(List.of(77L, 78L), operations);
+    }
+
+    @Test
+    void rotationSealsEarlierRecordsIntoTheOldGeneration() throws IOException {
+        BalanceJournal journal = open(1L);
+        journal.appendSet(1L, 1L, 1L, 0L);
+        long next = journal.rotate();
+        journal.appendSet(1L, 2L, 2L, 0L);
+        journal.close();
+
+        assertEquals(2L, next);
+        List<Long> fromNext = new ArrayList<>();
+        BalanceJournal.replay(directory, next, (msb, lsb, balance) -> fromNext.add(lsb), op -> { }, LOGGER);
+        assertEquals(List.of(2L), fromNext);
+
+        journal = open(3L);
+        journal.deleteBefore(next);
+        journal.close();
+        List<Long> all = new ArrayList<>();
+        BalanceJournal.replay(directory, 1L, (msb, lsb, balance) -> all.add(lsb), op -> { }, LOGGER);
+        assertEquals(List.of(2L), all);
+    }
+
+    @Test
+    void tornTailIsIgnored() throws IOException {
+        BalanceJournal journal = open(1L);
+        journal.appendSet(1L, 1L, 1L, 0L);
+        journal.flush();
+        journal.appendSet(1L, 2L, 2L, 0L);
+        journal.close();
+
+        File file = new File(directory, "balances-1.journal");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        List<Long> seen = new ArrayList<>();
+        BalanceJournal.replay(directory, 1L, (msb, lsb, balance) -> seen.add(lsb), op -> { }, LOGGER);
+        assertEquals(List.of(1L), seen);
+    }
+
+    private BalanceJournal open(long generation) throws IOException {
+        BalanceJournal journal = new BalanceJournal(directory, LOGGER, BalanceJournal.FsyncMode.NEVER, 1000L, 0L);
+        journal.open(generation);
+        return journal;
+    }
+}
@@ -0,0 +1,150 @@
+package me.shini9000.eventcurrency;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class BalanceTableTest {
+
+    @Test
+    void addSpendAndSet() {
+        BalanceTable table = new BalanceTable();
+        assertEquals(0L, table.get(1L, 2L));
+        assertFalse(table.contains(1L, 2L));
+
+        assertEquals(10L, table.add(1L, 2L, 10L));
+        assertEquals(4L, table.trySpend(1L, 2L, 6L));
+        assertEquals(BalanceTable.INSUFFICIENT, table.trySpend(1L, 2L, 5L));
+        assertEquals(BalanceTable.INSUFFICIENT, table.trySpend(3L, 4L, 1L));
+        assertEquals(4L, table.set(1L, 2L, 100L));
+        assertEquals(100L, table.get(1L, 2L));
+        assertTrue(table.contains(1L, 2L));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    void addSaturatesInsteadOfOverflowing() {
+        BalanceTable table = new BalanceTable();
+        table.set(1L, 1L, Long.MAX_VALUE - 1);
+        assertEquals(Long.MAX_VALUE, table.add(1L, 1L, 5L));
+    }
+
+    @Test
+    void growsPastItsInitialCapacity() {
+        BalanceTable table = new BalanceTable(2, 4);
+        for (long i = 0; i < 10_000; i++) {
+            table.add(i, ~i, i + 1);
+        }
+        assertEquals(10_000, table.size());
+        for (long i = 0; i < 10_000; i++) {
+            assertEquals(i + 1, table.get(i, ~i));
+        }
+        Map<Long, Long> seen = new HashMap<>();
+        table.forEach((msb, lsb, balance) -> seen.put(msb, balance));
+        assertEquals(10_000, seen.size());
+        assertEquals(5_000L, seen.get(4_999L).longValue());
+    }
+
+    @Test
+    void listenerSeesEveryChangeInOrder() {
+        BalanceTable table = new BalanceTable();
+        StringBuilder log = new StringBuilder();
+        table.setListener((msb, lsb, oldBalance, newBalance, operation) ->
+                log.append(oldBalance).append("->").append(newBalance).append('@').append(operation).append(' '));
+        table.add(1L, 1L, 5L, 7L);
+        table.trySpend(1L, 1L, 2L, 8L);
+        table.trySpend(1L, 1L, 50L, 9L); // refused, not reported
+        table.set(1L, 1L, 1L, 0L);
+        assertEquals("0->5@7 5->3@8 3->1@0 ", log.toString());
+    }
+
+    @Test
+    void snapshotKeepsThePointInTimeView() {
+        BalanceTable table = new BalanceTable(4, 4);
+        for (long i = 0; i < 100; i++) {
+            table.set(i, i, 10L);
+        }
+        Map<Long, Long> seen = new HashMap<>();
+        try (BalanceTable.Snapshot snapshot = table.snapshot()) {
+            for (long i = 0; i < 100; i += 2) {
+                table.add(i, i, 5L); // written after the cut: copied for the snapshot first
+            }
+            table.add(1_000L, 1_000L, 1L); // created after the cut
+            snapshot.forEach((msb, lsb, balance) -> seen.put(msb, balance));
+            table.add(1L, 1L, 5L); // after its segment was visited
+        }
+        assertEquals(100, seen.size());
+        for (long i = 0; i < 100; i++) {
+            assertEquals(10L, seen.get(i).longValue());
+        }
+        assertEquals(15L, table.get(0L, 0L));
+        assertEquals(15L, table.get(1L, 1L));
+    }
+
+    @Test
+    void onlyOneSnapshotAtATime() {
+        BalanceTable table = new BalanceTable();
+        BalanceTable.Snapshot first = table.snapshot();
+        assertThrows(IllegalStateException.class, table::snapshot);
+        first.close();
+        table.snapshot().close();
+    }
+
+    @Test
+    void batchesReportEveryAccountOnce() {
+        BalanceTable table = new BalanceTable();
+        table.set(1L, 1L, 10L);
+        table.set(2L, 2L, 3L);
+        long[] keys = { 1L, 1L, 2L, 2L, 3L, 3L };
+        long[][] reported = new long[1][];
+
+        long[] added = table.addAll(keys, 5L, 9L, (k, balances, operation) -> {
+            assertEquals(9L, operation);
+            reported[0] = balances.clone();
+        });
+        assertArrayEquals(new long[] { 15L, 8L, 5L }, added);
+        assertArrayEquals(added, reported[0]);
+
+        long[] spent = table.spendAll(keys, 6L, 0L, null);
+        assertArrayEquals(new long[] { 9L, 2L, BalanceTable.INSUFFICIENT }, spent);
+        assertEquals(5L, table.get(3L, 3L));
+
+        long[] amounts = { 4L, 50L, 1L, 0L };
+        long[] deducted = table.deductAll(new long[] { 1L, 1L, 2L, 2L, 3L, 3L, 4L, 4L }, amounts, 0L, null);
+        assertArrayEquals(new long[] { 5L, 0L, 4L, 0L }, deducted);
+        assertArrayEquals(new long[] { 4L, 2L, 1L, 0L }, amounts);
+        assertFalse(table.contains(4L, 4L));
+    }
+
+    @Test
+    void batchIsAllOrNothingWhenTheLoaderFails() {
+        BalanceTable table = new BalanceTable(1, 4);
+        table.set(1L, 1L, 10L);
+        table.setLoader((msb, lsb) -> {
+            if (msb == 3L) {
+                throw new UncheckedIOException(new IOException("store down"));
+            }
+            return msb == 2L ? 7L : -1L;
+        });
+        boolean[] reported = { false };
+        long[] keys = { 1L, 1L, 2L, 2L, 3L, 3L };
+
+        assertThrows(UncheckedIOException.class,
+                () -> table.addAll(keys, 5L, 0L, (k, balances, operation) -> reported[0] = true));
+        assertFalse(reported[0]);
+        assertEquals(10L, table.get(1L, 1L));
+        assertEquals(7L, table.get(2L, 2L)); // loaded, but not changed
+
+        table.setLoader((msb, lsb) -> -1L);
+        assertArrayEquals(new long[] { 15L, 12L, 5L }, table.addAll(keys, 5L, 0L, null));
+    }
+}
@@ -0,0 +1,117 @@
+package me.shini9000.eventcurrency;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+class BridgeReaderTest {
+
+    private static final UUID TARGET = new UUID(0x0123456789ABCDEFL, 0xFEDCBA9876543210L);
+
+    @Test
+    void readsWhatTheWriterWrote() {
+        byte[] frame = new BridgeWriter("Steve", true)
+                .add(BridgeProtocol.OP_GIVE, TARGET, 300L, 11L)
+                .add(BridgeProtocol.OP_SET, TARGET, 0L, 12L)
+                .toByteArray();
+        BridgeReader in = BridgeReader.read(frame);
+        assertEquals(BridgeProtocol.VERSION_BATCH, in.version());
+        assertEquals("Steve", in.executor());
+        assertEquals(2, in.count());
+
+        assertTrue(in.next());
+        assertEquals(BridgeProtocol.OP_GIVE, in.opcode());
+        assertEquals(TARGET.getMostSignificantBits(), in.msb());
+        assertEquals(TARGET.getLeastSignificantBits(), in.lsb());
+        assertEquals(300L, in.amount());
+        assertEquals(11L, in.operationId());
+        assertTrue(in.next());
+        assertEquals(BridgeProtocol.OP_SET, in.opcode());
+        assertEquals(0L, in.amount());
+        assertFalse(in.next());
+
+        in.reset();
+        assertTrue(in.next());
+        assertEquals(300L, in.amount());
+    }
+
+    @Test
+    void readsLegacyMessages() throws IOException {
+        BridgeReader in = BridgeReader.read(legacy("remove", 5L));
+        assertEquals(BridgeProtocol.VERSION_LEGACY, in.version());
+        assertEquals("Console", in.executor());
+        assertTrue(in.next());
+        assertEquals(BridgeProtocol.OP_TAKE, in.opcode());
+        assertEquals(5L, in.amount());
+        assertFalse(in.next());
+    }
+
+    @Test
+    void rejectsTruncatedAndOverlongFrames() {
+        byte[] frame = new BridgeWriter("Steve").add(BridgeProtocol.OP_GIVE, TARGET, 1L).toByteArray();
+        for (int length = 0; length < frame.length; length++) {
+            byte[] truncated = Arrays.copyOf(frame, length);
+            assertThrows(IllegalArgumentException.class, () -> BridgeReader.read(truncated));
+        }
+        assertThrows(IllegalArgumentException.class, () -> BridgeReader.read(Arrays.copyOf(frame, frame.length + 1)));
+    }
+
+    @Test
+    void rejectsBadLengthsAndCounts() {
+        byte[] minusOne = { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01 };
+        byte[] negativeName = concat(new byte[] { BridgeProtocol.MAGIC, BridgeProtocol.VERSION_BATCH,
+                BridgeProtocol.FLAG_EXECUTOR }, minusOne, new byte[] { 0 });
+        assertThrows(IllegalArgumentException.class, () -> BridgeReader.read(negativeName));
+
+        byte[] negativeCount = concat(new byte[] { BridgeProtocol.MAGIC, BridgeProtocol.VERSION_BATCH, 0 }, minusOne);
+        assertThrows(IllegalArgumentException.class, () -> BridgeReader.read(negativeCount));
+
+        byte[] tooMany = new byte[] { BridgeProtocol.MAGIC, BridgeProtocol.VERSION_BATCH, 0, (byte) 0x81, 0x40 };
+        assertThrows(IllegalArgumentException.class, () -> BridgeReader.read(tooMany));
+
+        byte[] wrongVersion = new byte[] { BridgeProtocol.MAGIC, 9, 0, 0 };
+        assertThrows(IllegalArgumentException.class, () -> BridgeReader.read(wrongVersion));
+    }
+
+    @Test
+    void rejectsAmountsThatMoveNothing() throws IOException {
+        byte[] zeroGive = new BridgeWriter("Steve").add(BridgeProtocol.OP_GIVE, TARGET, 0L).toByteArray();
+        assertThrows(IllegalArgumentException.class, () -> BridgeReader.read(zeroGive));
+        byte[] zeroTakeAll = new BridgeWriter("Steve").add(BridgeProtocol.OP_TAKE_ALL, 0L, 0L, 0L).toByteArray();
+        assertThrows(IllegalArgumentException.class, () -> BridgeReader.read(zeroTakeAll));
+
+        byte[] legacyNegativeTake = legacy("take", -5L);
+        assertThrows(IllegalArgumentException.class, () -> BridgeReader.read(legacyNegativeTake));
+        byte[] legacyNegativeSet = legacy("set", -1L);
+        assertThrows(IllegalArgumentException.class, () -> BridgeReader.read(legacyNegativeSet));
+    }
+
+    private static byte[] legacy(String action, long amount) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(action);
+            out.writeUTF(TARGET.toString());
+            out.writeLong(amount);
+            out.writeUTF("Console");
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            bytes.writeBytes(part);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,61 @@
+package me.shini9000.eventcurrency;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+
+    @Test
+    void smallValuesAreExact() {
+        for (long v = 0; v < 32; v++) {
+            assertEquals(v, LatencyHistogram.midpoint(LatencyHistogram.bucket(v)));
+        }
+    }
+
+    @Test
+    void bucketsAreMonotonicAndMidpointsStayInTheirBucket() {
+        int last = LatencyHistogram.bucket(Long.MAX_VALUE);
+        for (int b = 0; b <= last; b++) {
+            assertEquals(b, LatencyHistogram.bucket(LatencyHistogram.midpoint(b)));
+        }
+        int previous = -1;
+        for (long v = 0; v < 1_000_000; v += 7) {
+            int b = LatencyHistogram.bucket(v);
+            assertTrue(b >= previous);
+            previous = b;
+        }
+    }
+
+    @Test
+    void midpointIsWithinThreePercent() {
+        SplittableRandom random = new SplittableRandom(3);
+        for (int i = 0; i < 100_000; i++) {
+            long v = random.nextLong(32, Long.MAX_VALUE);
+            long mid = LatencyHistogram.midpoint(LatencyHistogram.bucket(v));
+            assertTrue(Math.abs((double) mid - v) / v <= 1.0 / 32, v + " reported as " + mid);
+        }
+    }
+
+    @Test
+    void quantilesFollowTheRecordedValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0L, histogram.quantile(0.5));
+        for (long v = 1; v <= 1_000; v++) {
+            histogram.record(v * 1_000);
+        }
+        assertEquals(1_000, histogram.count());
+        assertEquals(1_000_000L, histogram.maxNanos());
+        assertEquals(500_500_000L, histogram.totalNanos());
+        assertEquals(500_000.0, histogram.quantile(0.5), 500_000.0 / 32);
+        assertEquals(990_000.0, histogram.quantile(0.99), 990_000.0 / 32);
+        assertTrue(histogram.quantile(1.0) <= histogram.maxNanos());
+
+        LatencyHistogram single = new LatencyHistogram();
+        single.record(40L); // its bucket's midpoint is 41
+        assertEquals(40L, single.quantile(1.0)); // capped at the real maximum
+    }
+}
@@ -0,0 +1,201 @@
+package me.shini9000.eventcurrency;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+class LeaderboardTest {
+
+    @Test
+    void ranksByBalanceThenUuid() {
+        BalanceTable table = new BalanceTable();
+        Leaderboard board = new Leaderboard(table, 2);
+        give(table, board, 1L, 50L);
+        give(table, board, 3L, 70L);
+        give(table, board, 2L, 50L);
+
+        assertEquals(3, board.size());
+        assertEquals(1, board.rank(3L, 3L));
+        assertEquals(2, board.rank(1L, 1L));
+        assertEquals(3, board.rank(2L, 2L));
+        assertEquals(0, board.rank(9L, 9L));
+
+        List<Leaderboard.Entry> first = board.page(1, 2);
+        assertEquals(2, first.size());
+        assertEquals(new Leaderboard.Entry(1, 3L, 3L, 70L), first.get(0));
+        assertEquals(new Leaderboard.Entry(2, 1L, 1L, 50L), first.get(1));
+        assertEquals(List.of(new Leaderboard.Entry(3, 2L, 2L, 50L)), board.page(2, 2));
+        assertTrue(board.page(3, 2).isEmpty());
+    }
+
+    @Test
+    void accountsAtZeroLeaveTheRanking() {
+        BalanceTable table = new BalanceTable();
+        Leaderboard board = new Leaderboard(table, 10);
+        give(table, board, 1L, 5L);
+        give(table, board, 2L, 6L);
+        table.set(2L, 2L, 0L);
+        board.markChanged(2L, 2L);
+
+        assertEquals(1, board.size());
+        assertEquals(0, board.rank(2L, 2L));
+        assertEquals(1, board.rank(1L, 1L));
+    }
+
+    @Test
+    void topVersionOnlyMovesForTheTop() {
+        BalanceTable table = new BalanceTable();
+        Leaderboard board = new Leaderboard(table, 1);
+        give(table, board, 1L, 100L);
+        give(table, board, 2L, 10L);
+        long version = board.topVersion();
+
+        give(table, board, 2L, 5L); // still second
+        assertEquals(version, board.topVersion());
+        give(table, board, 2L, 500L); // takes first place
+        assertTrue(board.topVersion() != version);
+    }
+
+    @Test
+    void seedNeverOverridesAChange() {
+        BalanceTable table = new BalanceTable();
+        Leaderboard board = new Leaderboard(table, 10);
+        give(table, board, 1L, 40L);
+        board.size(); // folds the change in
+        table.set(2L, 2L, 20L);
+        board.seed(1L, 1L);
+        board.seed(2L, 2L);
+        assertEquals(1, board.rank(1L, 1L));
+        assertEquals(2, board.rank(2L, 2L));
+    }
+
+    @Test
+    void boundedBoardKeepsTheTopAndAsksTheStoreForTheRest() throws IOException {
+        BalanceTable table = new BalanceTable();
+        StoredRanking store = new StoredRanking();
+        for (long id = 1; id <= 10; id++) {
+            store.put(id, id * 10); // account 10 is richest
+        }
+        Leaderboard board = new Leaderboard(table, 2, 3, store);
+        board.refill();
+
+        assertEquals(10, board.size());
+        assertEquals(1, board.rank(10L, 10L));
+        assertEquals(3, board.rank(8L, 8L));
+        assertEquals(List.of(new Leaderboard.Entry(3, 8L, 8L, 80L), new Leaderboard.Entry(4, 7L, 7L, 70L)),
+                board.page(2, 2));
+
+        table.set(4L, 4L, 40L); // loaded, not yet changed
+        assertEquals(7, board.rank(4L, 4L));
+        table.set(4L, 4L, 95L);
+        board.markChanged(4L, 4L);
+        assertEquals(2, board.rank(4L, 4L)); // now kept
+        assertEquals(new Leaderboard.Entry(2, 4L, 4L, 95L), board.page(1, 3).get(1));
+        assertEquals(0, board.rank(42L, 42L));
+    }
+
+    @Test
+    void boundedBoardRefillsOnceAKeptAccountFalls() throws IOException {
+        BalanceTable table = new BalanceTable();
+        StoredRanking store = new StoredRanking();
+        for (long id = 1; id <= 10; id++) {
+            store.put(id, id * 10);
+        }
+        Leaderboard board = new Leaderboard(table, 2, 3, store);
+        board.refill();
+
+        table.set(10L, 10L, 5L);
+        board.markChanged(10L, 10L);
+        board.refresh();
+        assertTrue(board.isStale());
+        store.put(10L, 5L); // checkpointed
+        board.refill();
+        assertFalse(board.isStale());
+        assertEquals(List.of(new Leaderboard.Entry(1, 9L, 9L, 90L), new Leaderboard.Entry(2, 8L, 8L, 80L),
+                new Leaderboard.Entry(3, 7L, 7L, 70L)), board.page(1, 3));
+        assertEquals(10, board.rank(10L, 10L));
+    }
+
+    @Test
+    void matchesASortedListUnderRandomChanges() {
+        BalanceTable table = new BalanceTable();
+        Leaderboard board = new Leaderboard(table, 10);
+        SplittableRandom random = new SplittableRandom(7);
+        for (int step = 0; step < 20_000; step++) {
+            long id = random.nextLong(500);
+            table.set(id, id, random.nextInt(4) == 0 ? 0L : random.nextLong(1_000));
+            board.markChanged(id, id);
+            if (step % 1_000 == 0) {
+                board.refresh();
+            }
+        }
+
+        List<long[]> expected = new ArrayList<>();
+        table.forEach((msb, lsb, balance) -> {
+            if (balance > 0) {
+                expected.add(new long[] { msb, balance });
+            }
+        });
+        expected.sort(Comparator.<long[]>comparingLong(e -> -e[1]).thenComparingLong(e -> e[0]));
+
+        assertEquals(expected.size(), board.size());
+        List<Leaderboard.Entry> all = board.page(1, expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            long[] e = expected.get(i);
+            assertEquals(e[0], all.get(i).msb());
+            assertEquals(e[1], all.get(i).balance());
+            assertEquals(i + 1, board.rank(e[0], e[0]));
+        }
+    }
+
+    /** The rows a lazy backend would have at its last checkpoint. */
+    private static final class StoredRanking implements Leaderboard.Ranking {
+
+        private final Map<Long, Long> rows = new HashMap<>();
+
+        void put(long id, long balance) {
+            rows.put(id, balance);
+        }
+
+        private List<long[]> sorted() {
+            List<long[]> out = new ArrayList<>();
+            rows.forEach((id, balance) -> {
+                if (balance > 0) {
+                    out.add(new long[] { id, balance });
+                }
+            });
+            out.sort(Comparator.<long[]>comparingLong(e -> -e[1]).thenComparingLong(e -> e[0]));
+            return out;
+        }
+
+        @Override
+        public long count() {
+            return sorted().size();
+        }
+
+        @Override
+        public long countBefore(long balance, long msb, long lsb) {
+            return sorted().stream().filter(e -> e[1] > balance || e[1] == balance && e[0] < msb).count();
+        }
+
+        @Override
+        public void page(long offset, int limit, BalanceVisitor visitor) {
+            sorted().stream().skip(offset).limit(limit).forEach(e -> visitor.accept(e[0], e[0], e[1]));
+        }
+    }
+
+    private static void give(BalanceTable table, Leaderboard board, long id, long amount) {
+        table.add(id, id, amount);
+        board.markChanged(id, id);
+    }
+}
@@ -0,0 +1,54 @@
+package me.shini9000.eventcurrency;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class ReplicatorAccountTest {
+
+    @Test
+    void mergeKeepsTheLargerOfEachCounter() {
+        Replicator.Account a = new Replicator.Account(2);
+        a.given[0] = 10L;
+        a.taken[1] = 3L;
+
+        assertTrue(a.merge(0L, Replicator.NO_BASE, new long[] { 4L, 7L }, new long[] { 1L, 2L }));
+        assertArrayEquals(new long[] { 10L, 7L }, a.given);
+        assertArrayEquals(new long[] { 1L, 3L }, a.taken);
+        assertEquals(13L, a.merged());
+    }
+
+    @Test
+    void mergeIsIdempotentAndOrderFree() {
+        long[][] given = { { 5L, 0L, 2L }, { 1L, 9L, 0L }, { 3L, 3L, 3L } };
+        long[][] taken = { { 0L, 1L, 0L }, { 4L, 0L, 0L }, { 0L, 0L, 6L } };
+        Replicator.Account forward = new Replicator.Account(3);
+        Replicator.Account backward = new Replicator.Account(3);
+        for (int i = 0; i < 3; i++) {
+            forward.merge(0L, Replicator.NO_BASE, given[i], taken[i]);
+            backward.merge(0L, Replicator.NO_BASE, given[2 - i], taken[2 - i]);
+        }
+        assertArrayEquals(forward.given, backward.given);
+        assertArrayEquals(forward.taken, backward.taken);
+        assertFalse(forward.merge(0L, Replicator.NO_BASE, given[1], taken[1])); // a repeat changes nothing
+        assertEquals(5L + 9L + 3L - 4L - 1L - 6L, forward.merged());
+    }
+
+    @Test
+    void baseFromTheFirstListedNodeWins() {
+        Replicator.Account a = new Replicator.Account(3);
+        long[] none = new long[3];
+        assertTrue(a.merge(50L, 2, none, none));
+        assertEquals(50L, a.merged());
+        assertTrue(a.merge(20L, 0, none, none)); // node 0 is listed before node 2
+        assertFalse(a.merge(90L, 1, none, none));
+        assertFalse(a.merge(0L, Replicator.NO_BASE, none, none));
+        assertEquals(20L, a.merged());
+        assertTrue(a.merge(30L, 0, none, none)); // same node: the later, larger base
+        assertEquals(0, a.baseNode);
+        assertEquals(30L, a.base);
+    }
+}
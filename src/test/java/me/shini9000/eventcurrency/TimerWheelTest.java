@@ -0,0 +1,64 @@
+package me.shini9000.eventcurrency;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+class TimerWheelTest {
+
+    @Test
+    void firesEachTimerOnceInItsTick() {
+        TimerWheel<Long> wheel = new TimerWheel<>(10L, 1_000L);
+        wheel.schedule(1_005L, 100L); // the tick that fires next
+        wheel.schedule(1_015L, 101L);
+        wheel.schedule(500L, 50L); // already past: due on the next tick
+        List<Long> fired = new ArrayList<>();
+
+        wheel.advance(1_009L, fired::add);
+        fired.sort(null);
+        assertEquals(List.of(50L, 100L), fired);
+        wheel.advance(1_009L, fired::add);
+        assertEquals(2, fired.size());
+        wheel.advance(1_010L, fired::add);
+        assertEquals(List.of(50L, 100L, 101L), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void cascadesFarTimersDownToTheirTick() {
+        TimerWheel<Integer> wheel = new TimerWheel<>(1L, 0L);
+        SplittableRandom random = new SplittableRandom(11);
+        long horizon = 1L << 25; // further than the top level reaches in one placement
+        long[] deadlines = new long[20_000];
+        for (int i = 0; i < deadlines.length; i++) {
+            deadlines[i] = random.nextLong(horizon);
+            wheel.schedule(deadlines[i], i);
+        }
+        assertEquals(deadlines.length, wheel.size());
+
+        boolean[] seen = new boolean[deadlines.length];
+        int[] fired = { 0 };
+        long now = -1L; // before the first tick
+        while (now < horizon) {
+            long previous = now;
+            long at = now = Math.min(horizon, now + 1 + random.nextLong(100_000));
+            long[] last = { Long.MIN_VALUE };
+            wheel.advance(at, i -> {
+                assertTrue(!seen[i], "fired twice");
+                assertTrue(deadlines[i] <= at, "fired early");
+                assertTrue(deadlines[i] > previous, "fired late");
+                assertTrue(deadlines[i] >= last[0], "fired out of order");
+                seen[i] = true;
+                last[0] = deadlines[i];
+                fired[0]++;
+            });
+        }
+        assertEquals(deadlines.length, fired[0]);
+        assertEquals(0, wheel.size());
+    }
+}